@@ -0,0 +1,76 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Result of {@link VerifiableLog#addAll(Iterable)}, with the outcome for each entry in the order submitted.
+ */
+public class AddAllResponse {
+	private List<AddEntryResponse> responses;
+	private Map<Integer,ContinusecException> failures;
+
+	/**
+	 * Package private constructor. Use {@link VerifiableLog#addAll(Iterable)} to instantiate.
+	 * @param futures the completed future for each entry, in the order submitted.
+	 */
+	protected AddAllResponse(List<CompletableFuture<AddEntryResponse>> futures) {
+		ArrayList<AddEntryResponse> rv = new ArrayList<AddEntryResponse>(futures.size());
+		TreeMap<Integer,ContinusecException> errs = new TreeMap<Integer,ContinusecException>();
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				rv.add(futures.get(i).join());
+			} catch (CompletionException e) {
+				rv.add(null);
+				errs.put(i, (e.getCause() instanceof ContinusecException) ? (ContinusecException) e.getCause() : new ContinusecException(e));
+			}
+		}
+		this.responses = Collections.unmodifiableList(rv);
+		this.failures = Collections.unmodifiableMap(errs);
+	}
+
+	/**
+	 * Were all entries added successfully?
+	 * @return true if no entry failed.
+	 */
+	public boolean isSuccess() {
+		return this.failures.isEmpty();
+	}
+
+	/**
+	 * Get the response for each entry, in the order submitted.
+	 * @return the responses, with null in place of each entry that failed.
+	 */
+	public List<AddEntryResponse> getResponses() {
+		return this.responses;
+	}
+
+	/**
+	 * Get the failures.
+	 * @return a map from the index of each entry that failed (in the order submitted) to the reason, in index order.
+	 */
+	public Map<Integer,ContinusecException> getFailures() {
+		return this.failures;
+	}
+}
@@ -16,6 +16,12 @@
 
 package com.continusec.client;
 
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+
+import org.apache.commons.codec.binary.Base64;
+
 /**
  * Response from adding entries to a log/map.
  * Can be used in subsequent calls to {@link VerifiableLog#verifyInclusion(LogTreeHead, MerkleTreeLeaf)}.
@@ -41,4 +47,28 @@ public class AddEntryResponse implements MerkleTreeLeaf {
 	public byte[] getLeafHash() throws ContinusecException {
 		return this.mtlHash;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Package private method to read the response to an add or set request.
+	 * @param r the reader, positioned at the start of the response.
+	 * @return the add entry response.
+	 * @throws IOException upon error reading the response.
+	 * @throws ContinusecException if the response does not include a leaf hash.
+	 */
+	protected static AddEntryResponse fromJsonReader(JsonReader r) throws IOException, ContinusecException {
+		byte[] mtlHash = null;
+		r.beginObject();
+		while (r.hasNext()) {
+			if (r.nextName().equals("leaf_hash")) {
+				mtlHash = Base64.decodeBase64(r.nextString());
+			} else {
+				r.skipValue();
+			}
+		}
+		r.endObject();
+		if (mtlHash == null) {
+			throw new InternalErrorException();
+		}
+		return new AddEntryResponse(mtlHash);
+	}
+}
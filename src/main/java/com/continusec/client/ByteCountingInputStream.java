@@ -0,0 +1,52 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.io.InputStream;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.input.ProxyInputStream;
+
+/**
+ * Package private stream wrapper that adds the number of bytes read to one or more shared counters.
+ */
+class ByteCountingInputStream extends ProxyInputStream {
+	private AtomicLong[] counters;
+
+	/**
+	 * Package private constructor.
+	 * @param in the stream to wrap.
+	 * @param counters the counters to add to as bytes are read.
+	 */
+	protected ByteCountingInputStream(InputStream in, AtomicLong... counters) {
+		super(in);
+		this.counters = counters;
+	}
+
+	/**
+	 * Add the number of bytes read to the counters.
+	 * @param n the number of bytes read, or -1 at end of stream.
+	 */
+	protected void afterRead(int n) {
+		if (n > 0) {
+			for (AtomicLong counter : this.counters) {
+				counter.addAndGet(n);
+			}
+		}
+	}
+}
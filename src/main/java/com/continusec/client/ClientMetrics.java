@@ -0,0 +1,73 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+/**
+ * Interface called by {@link ContinusecClient} to record metrics about requests and proof verification,
+ * set with {@link ContinusecClient#setMetrics(ClientMetrics)}. All methods do nothing by default, so
+ * implementations need only override those they are interested in. See {@link InMemoryClientMetrics} for
+ * a simple implementation.
+ * <p>
+ * Methods are called on the thread making the request (or reading the response), so should return quickly.
+ */
+public interface ClientMetrics {
+	/**
+	 * Called when a response has been received and its body read to the end or closed. This is called for
+	 * every response, whatever the status code, and for each attempt if requests are retried or hedged.
+	 * For entries read by {@link LogEntryIterator} this is called once the iterator has finished with each batch.
+	 * @param op the operation the request was made for.
+	 * @param method the HTTP method.
+	 * @param statusCode the HTTP status code.
+	 * @param nanos the time from sending the request until the body was read or closed, in nanoseconds.
+	 * @param bytesOnWire the number of body bytes read from the network.
+	 * @param bytesDecoded the number of body bytes after decompression.
+	 */
+	default void requestCompleted(Operation op, String method, int statusCode, long nanos, long bytesOnWire, long bytesDecoded) {
+	}
+
+	/**
+	 * Called when an attempt at a request fails, either due to a network error, an error response, or a
+	 * response that could not be parsed.
+	 * @param op the operation the request was made for.
+	 * @param method the HTTP method.
+	 * @param e the exception that the attempt failed with.
+	 * @param nanos the time taken by the attempt, in nanoseconds.
+	 */
+	default void requestFailed(Operation op, String method, ContinusecException e, long nanos) {
+	}
+
+	/**
+	 * Called when a proof fetched by an operation has been verified (or failed to verify).
+	 * @param op the operation that fetched the proof.
+	 * @param nanos the time taken to verify the proof, in nanoseconds.
+	 * @param verified true if the proof verified successfully.
+	 */
+	default void verificationCompleted(Operation op, long nanos, boolean verified) {
+	}
+
+	/**
+	 * Called when {@link LogEntryIterator} has read a page of entries from the server, with the page size chosen by the
+	 * client's {@link EntryPageSizer}. Pages served from a {@link ResponseCache} are not included.
+	 * @param requested the number of entries asked for.
+	 * @param returned the number of entries the server returned, which may be fewer.
+	 * @param bytes the size of the response body after decompression.
+	 * @param nanos the time from requesting the page until it was read, or -1 if not known (e.g. when the page was
+	 *              parsed as the entries were consumed).
+	 */
+	default void entriesPageCompleted(int requested, int returned, long bytes, long nanos) {
+	}
+}
@@ -0,0 +1,224 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+/**
+ * Adaptive limit on the number of requests in flight, set on a client with
+ * {@link ContinusecClient#setConcurrencyLimiter(ConcurrencyLimiter)}:
+ * <pre>{@code
+ * ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+ * limiter.setLimitBounds(1, 50);
+ * client.setConcurrencyLimiter(limiter);
+ * }</pre>
+ * <p>
+ * Requests over the limit wait inside the client until another request completes. The limit is adjusted
+ * using additive increase, multiplicative decrease (AIMD): each request that completes in good time grows
+ * the limit by a fraction, so that the limit grows by about one per round trip, while any sign of overload
+ * shrinks it by a ratio, at most once per round trip. Overload is signalled by a {@link InternalErrorException} (i.e. a 5xx response),
+ * a {@link ContinusecNetworkException}, or a latency more than a tolerance above the lowest recently observed.
+ * Other failures such as {@link ObjectNotFoundException} do not change the limit.
+ * <p>
+ * Each attempt (including retries and hedges) holds a slot while it is sent and its response read, except for
+ * streamed responses such as those read by {@link LogEntryIterator}, which hold a slot until the response headers
+ * are received. A single limiter may be shared by many clients to limit them together.
+ */
+public class ConcurrencyLimiter {
+	// the lowest latency is re-measured every this many samples, so that the baseline can move up as well as down
+	private static final int BASELINE_SAMPLES = 500;
+
+	private int minLimit = 1;
+	private int maxLimit = 200;
+	private double limit = 20.0;
+	private double backoffRatio = 0.9;
+	private double latencyTolerance = 2.0;
+
+	private int inFlight = 0;
+	private int waiting = 0;
+
+	private long lastDecrease = System.nanoTime();
+	private long baselineNanos = Long.MAX_VALUE;
+	private long windowMinNanos = Long.MAX_VALUE;
+	private int windowSamples = 0;
+
+	/**
+	 * Create a limiter with the default settings: an initial limit of 20, within bounds of 1 and 200.
+	 */
+	public ConcurrencyLimiter() {
+	}
+
+	/**
+	 * Create a limiter with a custom initial limit, within the default bounds of 1 and 200.
+	 * @param initialLimit the initial number of requests allowed in flight, between 1 and 200.
+	 */
+	public ConcurrencyLimiter(int initialLimit) {
+		this(initialLimit, 1, 200);
+	}
+
+	/**
+	 * Create a limiter with a custom initial limit and bounds.
+	 * @param initialLimit the initial number of requests allowed in flight, between minLimit and maxLimit.
+	 * @param minLimit the lowest the limit may fall to.
+	 * @param maxLimit the highest the limit may grow to.
+	 */
+	public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException();
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = initialLimit;
+	}
+
+	/**
+	 * Set the bounds within which the limit is adjusted.
+	 * @param minLimit the lowest the limit may fall to.
+	 * @param maxLimit the highest the limit may grow to.
+	 */
+	public synchronized void setLimitBounds(int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit) {
+			throw new IllegalArgumentException();
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = Math.max(minLimit, Math.min(maxLimit, this.limit));
+		this.notifyAll();
+	}
+
+	/**
+	 * Set the ratio the limit is multiplied by when overload is detected.
+	 * @param backoffRatio the ratio, greater than 0 and less than 1.
+	 */
+	public synchronized void setBackoffRatio(double backoffRatio) {
+		if (backoffRatio <= 0.0 || backoffRatio >= 1.0) {
+			throw new IllegalArgumentException();
+		}
+		this.backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * Set how much slower than the lowest recent latency a request may be before it is considered a sign of overload.
+	 * @param latencyTolerance the multiple of the lowest recent latency, e.g. 2.0 for twice as slow, or
+	 * {@link Double#POSITIVE_INFINITY} to adjust the limit on failures only.
+	 */
+	public synchronized void setLatencyTolerance(double latencyTolerance) {
+		if (latencyTolerance < 1.0) {
+			throw new IllegalArgumentException();
+		}
+		this.latencyTolerance = latencyTolerance;
+	}
+
+	/**
+	 * Get the current limit on the number of requests in flight.
+	 * @return the current limit.
+	 */
+	public synchronized int getLimit() {
+		return (int) this.limit;
+	}
+
+	/**
+	 * Get the number of requests currently in flight.
+	 * @return the number of requests in flight.
+	 */
+	public synchronized int getInFlight() {
+		return this.inFlight;
+	}
+
+	/**
+	 * Get the number of requests currently waiting for a slot.
+	 * @return the queue depth.
+	 */
+	public synchronized int getQueueDepth() {
+		return this.waiting;
+	}
+
+	/**
+	 * Package private method to wait for a slot. Each successful call must be followed by exactly one call to
+	 * {@link #onSuccess(long)}, {@link #onDropped(long)} or {@link #onIgnored()}.
+	 * @throws ContinusecException if interrupted while waiting.
+	 */
+	protected synchronized void acquire() throws ContinusecException {
+		this.waiting++;
+		try {
+			while (this.inFlight >= (int) this.limit) {
+				this.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ContinusecException(e);
+		} finally {
+			this.waiting--;
+		}
+		this.inFlight++;
+	}
+
+	/**
+	 * Package private method to return a slot after a request completed.
+	 * @param nanos the latency of the request in nanoseconds.
+	 */
+	protected synchronized void onSuccess(long nanos) {
+		this.inFlight--;
+
+		this.windowMinNanos = Math.min(this.windowMinNanos, nanos);
+		this.baselineNanos = Math.min(this.baselineNanos, nanos);
+		if (++this.windowSamples >= BASELINE_SAMPLES) {
+			this.baselineNanos = this.windowMinNanos;
+			this.windowMinNanos = Long.MAX_VALUE;
+			this.windowSamples = 0;
+		}
+
+		if (nanos > this.baselineNanos * this.latencyTolerance) {
+			if (this.limit <= this.minLimit) {
+				// requests are slow even at the lowest limit, so the server is slower rather than overloaded by us
+				this.baselineNanos = nanos;
+			} else {
+				this.decrease(nanos);
+			}
+		} else if (this.inFlight + 1 >= this.limit / 2) {
+			// only grow if the current limit is being used, else an idle client would grow without bound
+			this.limit = Math.min(this.maxLimit, this.limit + (1.0 / this.limit));
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Package private method to return a slot after a request failed in a way that indicates overload.
+	 * @param nanos the time taken by the request in nanoseconds.
+	 */
+	protected synchronized void onDropped(long nanos) {
+		this.inFlight--;
+		this.decrease(nanos);
+		this.notifyAll();
+	}
+
+	/**
+	 * Package private method to return a slot without adjusting the limit.
+	 */
+	protected synchronized void onIgnored() {
+		this.inFlight--;
+		this.notifyAll();
+	}
+
+	private void decrease(long nanos) {
+		// requests sent before the last decrease were sent under the old limit, so should not reduce it again
+		long now = System.nanoTime();
+		if (now - nanos - this.lastDecrease < 0) {
+			return;
+		}
+		this.lastDecrease = now;
+		this.limit = Math.max(this.minLimit, this.limit * this.backoffRatio);
+	}
+}
@@ -18,20 +18,33 @@ package com.continusec.client;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.net.URL;
-import java.net.HttpURLConnection;
-import java.io.OutputStream;
-import java.io.InputStream;
-import java.net.MalformedURLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonArray;
+import org.apache.commons.codec.digest.DigestUtils;
 
-import org.apache.commons.io.IOUtils;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
 
 /**
  * Main entry point for interacting with Continusec's Verifiable Data Structure APIs.
@@ -44,6 +57,20 @@ import org.apache.commons.io.IOUtils;
  * // use the map ...
  *
  * }</pre>
+ * <p>
+ * All requests are sent via a {@link Transport}. Unless one is specified, the shared
+ * {@link DefaultTransport#getSharedInstance()} is used, which reuses keep-alive connections across
+ * all clients in the JVM.
+ * <p>
+ * Methods ending in {@code Async} on {@link VerifiableLog} and {@link VerifiableMap} return a
+ * {@link CompletableFuture} and run on the executor set by {@link #setExecutor(Executor)}, which
+ * allows a single thread to keep many requests in flight. Each request still occupies one executor
+ * thread while it is sent and its response read, so the number of requests in flight is bounded by
+ * the size of the executor (by default {@link #DEFAULT_ASYNC_THREADS}), with further requests queued:
+ * <pre>{@code
+ * client.setExecutor(Executors.newFixedThreadPool(200));
+ * CompletableFuture<AddEntryResponse> f = log.addAsync(new RawDataEntry("foo".getBytes()));
+ * }</pre>
  */
 public class ContinusecClient {
 	/**
@@ -52,9 +79,42 @@ public class ContinusecClient {
 	 */
 	public static final int HEAD = 0;
 
+	/**
+	 * The number of threads in the shared default pool used to run asynchronous requests, matching the
+	 * default total connection limit of {@link DefaultTransport}.
+	 */
+	public static final int DEFAULT_ASYNC_THREADS = DefaultTransport.DEFAULT_MAX_TOTAL_CONNECTIONS;
+
 	private String account;
 	private String apiKey;
 	private String baseURL;
+	private Transport transport;
+	private volatile Executor executor;
+	private volatile boolean compressionEnabled = true;
+	private volatile boolean coalescingEnabled = true;
+	private volatile RetryPolicy retryPolicy = null;
+	private volatile HedgingPolicy hedgingPolicy = null;
+	private volatile ConcurrencyLimiter concurrencyLimiter = null;
+	private volatile RateLimiter rateLimiter = null;
+	private volatile TreeHeadCache treeHeadCache = null;
+	private volatile ResponseCache responseCache = null;
+	private volatile int entriesReadAhead = 2;
+	private volatile EntryPageSizer entryPageSizer = new EntryPageSizer();
+	private volatile ClientMetrics metrics = NO_METRICS;
+	private CopyOnWriteArrayList<RequestListener> listeners = new CopyOnWriteArrayList<RequestListener>();
+
+	private AtomicLong bytesOnWire = new AtomicLong();
+	private AtomicLong bytesDecoded = new AtomicLong();
+
+	private ConcurrentHashMap<String,CompletableFuture<Object>> inFlightReads = new ConcurrentHashMap<String,CompletableFuture<Object>>();
+	private AtomicLong coalescedCount = new AtomicLong();
+
+	private static ExecutorService defaultExecutor = null;
+	private static ExecutorService backgroundExecutor = null;
+
+	private static final ThreadLocal<CancellableCall> cancellableCall = new ThreadLocal<CancellableCall>();
+
+	private static final ClientMetrics NO_METRICS = new ClientMetrics() {};
 
 	/**
 	 * Create an anonymous ContinusecClient for a given account. The account must have
@@ -85,9 +145,507 @@ public class ContinusecClient {
 	 * @param baseURL the base URL to send API requests to.
 	 */
 	public ContinusecClient(String account, String apiKey, String baseURL) {
+		this(account, apiKey, baseURL, DefaultTransport.getSharedInstance());
+	}
+
+	/**
+	 * Create a ContinusecClient for a given account with specified API Key, base URL
+	 * and transport. The same transport may be shared between many clients.
+	 *
+	 * @param account the account number, found on the "Settings" tab in the console.
+	 * @param apiKey the API Key, found on the "API Keys" tab in the console.
+	 * @param baseURL the base URL to send API requests to.
+	 * @param transport the transport used to send HTTP requests.
+	 */
+	public ContinusecClient(String account, String apiKey, String baseURL, Transport transport) {
 		this.account = account;
 		this.apiKey = apiKey;
 		this.baseURL = baseURL;
+		this.transport = transport;
+	}
+
+	/**
+	 * Get the transport used by this client.
+	 * @return the transport.
+	 */
+	public Transport getTransport() {
+		return this.transport;
+	}
+
+	/**
+	 * Set the executor used to run asynchronous requests made via this client. Each request runs as a
+	 * blocking call on one of its threads, so the executor should have about as many threads as
+	 * requests are to be kept in flight. Tasks on the executor should not block waiting for other
+	 * asynchronous requests made via the client, as those may be queued behind them.
+	 * @param executor the executor, or null to use a shared default pool of {@link #DEFAULT_ASYNC_THREADS}
+	 * daemon threads, with further requests queued until a thread is free.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Get the executor used to run asynchronous requests made via this client.
+	 * @return the executor.
+	 */
+	public Executor getExecutor() {
+		Executor rv = this.executor;
+		if (rv == null) {
+			rv = getDefaultExecutor();
+		}
+		return rv;
+	}
+
+	private static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			ThreadPoolExecutor e = new ThreadPoolExecutor(DEFAULT_ASYNC_THREADS, DEFAULT_ASYNC_THREADS, 60L,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+				Thread t = new Thread(r, "continusec-client-async");
+				t.setDaemon(true);
+				return t;
+			});
+			// idle threads exit, so that a client that is no longer used holds no threads
+			e.allowCoreThreadTimeOut(true);
+			defaultExecutor = e;
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Hedged attempts and batches of entries read ahead do not run on the client executor, as the caller blocks waiting
+	 * for them, which with a bounded executor could leave every thread waiting for work queued behind it.
+	 */
+	private static synchronized ExecutorService getBackgroundExecutor() {
+		if (backgroundExecutor == null) {
+			backgroundExecutor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "continusec-client-background");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return backgroundExecutor;
+	}
+
+	/**
+	 * Set whether this client asks the server to compress responses with gzip or deflate. Compressed
+	 * responses are decompressed as they are read. Enabled by default.
+	 * @param enabled true to send an Accept-Encoding header with each request.
+	 */
+	public void setCompressionEnabled(boolean enabled) {
+		this.compressionEnabled = enabled;
+	}
+
+	/**
+	 * Returns whether this client asks the server to compress responses.
+	 * @return true if compression is enabled.
+	 */
+	public boolean isCompressionEnabled() {
+		return this.compressionEnabled;
+	}
+
+	/**
+	 * Set whether identical read requests made at the same time share a single request to the server. If enabled
+	 * (the default), a thread that asks for the same tree head, proof or other JSON response as a request already in
+	 * flight from this client waits for that request and receives the same result (or exception), rather than sending
+	 * its own. The result returned may therefore have been requested from the server slightly before the call was made.
+	 * @param enabled true to coalesce identical concurrent GET requests.
+	 */
+	public void setCoalescingEnabled(boolean enabled) {
+		this.coalescingEnabled = enabled;
+	}
+
+	/**
+	 * Returns whether identical concurrent read requests are coalesced.
+	 * @return true if coalescing is enabled.
+	 */
+	public boolean isCoalescingEnabled() {
+		return this.coalescingEnabled;
+	}
+
+	/**
+	 * Get the number of requests that were not sent, as they were satisfied by an identical request already in flight.
+	 * @return the number of coalesced requests.
+	 */
+	public long getCoalescedCount() {
+		return this.coalescedCount.get();
+	}
+
+	/**
+	 * Set the policy for retrying failed requests. See {@link RetryPolicy} for details. A single policy may
+	 * be shared by many clients.
+	 * @param policy the retry policy, or null (the default) to never retry.
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		this.retryPolicy = policy;
+	}
+
+	/**
+	 * Get the policy for retrying failed requests.
+	 * @return the retry policy, or null if failed requests are not retried.
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	/**
+	 * Set the policy for hedging slow read requests. See {@link HedgingPolicy} for details.
+	 * @param policy the hedging policy, or null (the default) to never hedge.
+	 */
+	public void setHedgingPolicy(HedgingPolicy policy) {
+		this.hedgingPolicy = policy;
+	}
+
+	/**
+	 * Get the policy for hedging slow read requests.
+	 * @return the hedging policy, or null if requests are not hedged.
+	 */
+	public HedgingPolicy getHedgingPolicy() {
+		return this.hedgingPolicy;
+	}
+
+	/**
+	 * Set an adaptive limit on the number of requests in flight. See {@link ConcurrencyLimiter} for details.
+	 * @param limiter the limiter, or null (the default) for no limit other than that imposed by the transport.
+	 */
+	public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+		this.concurrencyLimiter = limiter;
+	}
+
+	/**
+	 * Get the adaptive limit on the number of requests in flight.
+	 * @return the limiter, or null if requests are not limited.
+	 */
+	public ConcurrencyLimiter getConcurrencyLimiter() {
+		return this.concurrencyLimiter;
+	}
+
+	/**
+	 * Set client side rate limits. See {@link RateLimiter} for details.
+	 * @param limiter the rate limiter, or null (the default) to not limit the request rate.
+	 */
+	public void setRateLimiter(RateLimiter limiter) {
+		this.rateLimiter = limiter;
+	}
+
+	/**
+	 * Get the client side rate limits.
+	 * @return the rate limiter, or null if the request rate is not limited.
+	 */
+	public RateLimiter getRateLimiter() {
+		return this.rateLimiter;
+	}
+
+	/**
+	 * Set the cache used for the latest tree head of each log and map. See {@link TreeHeadCache} for details.
+	 * @param cache the cache, or null (the default) to fetch the latest tree head on every call.
+	 */
+	public void setTreeHeadCache(TreeHeadCache cache) {
+		this.treeHeadCache = cache;
+	}
+
+	/**
+	 * Get the cache used for the latest tree head of each log and map.
+	 * @return the cache, or null if tree heads are not cached.
+	 */
+	public TreeHeadCache getTreeHeadCache() {
+		return this.treeHeadCache;
+	}
+
+	/**
+	 * Set the cache used for responses that never change, such as log entries and proofs for a specific tree size.
+	 * See {@link ResponseCache} for details. A single cache may be shared by many clients.
+	 * @param cache the cache, or null (the default) to fetch every response from the server.
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		this.responseCache = cache;
+	}
+
+	/**
+	 * Get the cache used for responses that never change.
+	 * @return the cache, or null if responses are not cached.
+	 */
+	public ResponseCache getResponseCache() {
+		return this.responseCache;
+	}
+
+	/**
+	 * Set how many batches of log entries {@link LogEntryIterator} fetches ahead of the batch being consumed. Each batch
+	 * ahead is requested and parsed on a pool of background threads (not the client executor, so that iterators may be
+	 * consumed by asynchronous tasks) while earlier entries are processed, so that network time and processing overlap.
+	 * At most this many batches, plus the one being consumed, are held in memory per iterator. Defaults to 2. Set to 0
+	 * to stream each batch only once it is needed, so that only one entry at a time is held in memory.
+	 * @param batches the number of batches to fetch ahead, or 0 to stream each batch only once it is needed.
+	 */
+	public void setEntriesReadAhead(int batches) {
+		if (batches < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.entriesReadAhead = batches;
+	}
+
+	/**
+	 * Get how many batches of log entries are fetched ahead of the batch being consumed.
+	 * @return the number of batches, 0 if entries are streamed.
+	 */
+	public int getEntriesReadAhead() {
+		return this.entriesReadAhead;
+	}
+
+	/**
+	 * Set how {@link LogEntryIterator} chooses the number of entries to request at once. By default each client has its
+	 * own {@link EntryPageSizer} with the default settings, which adapts the page size to the size of the entries in each log.
+	 * @param sizer the sizer to use, or null to go back to a new sizer with the default settings.
+	 */
+	public void setEntryPageSizer(EntryPageSizer sizer) {
+		this.entryPageSizer = (sizer == null) ? new EntryPageSizer() : sizer;
+	}
+
+	/**
+	 * Get how {@link LogEntryIterator} chooses the number of entries to request at once.
+	 * @return the sizer.
+	 */
+	public EntryPageSizer getEntryPageSizer() {
+		return this.entryPageSizer;
+	}
+
+	/**
+	 * Package private method to get the number of log entries to request in the next page.
+	 * @param key the log path and entry format.
+	 * @return the page size.
+	 */
+	protected int getEntriesPageSize(String key) {
+		return this.entryPageSizer.getPageSize(key);
+	}
+
+	/**
+	 * Package private method to record a page of log entries that has been read, for the page sizer and metrics.
+	 * @param key the log path and entry format.
+	 * @param requested the number of entries asked for.
+	 * @param returned the number of entries the server returned.
+	 * @param bytes the size of the response body after decompression.
+	 * @param nanos the time from requesting the page until it was read, or -1 if not known.
+	 */
+	protected void entriesPageCompleted(String key, int requested, int returned, long bytes, long nanos) {
+		this.entryPageSizer.pageCompleted(key, requested, returned, bytes, nanos);
+		this.metrics.entriesPageCompleted(requested, returned, bytes, nanos);
+	}
+
+	/**
+	 * Package private method to look up a response in the response cache (if any).
+	 * @param path the path underneath this account.
+	 * @return a buffered response, or null if there is no cache, the path may not be cached, or it is not cached.
+	 */
+	protected ResponseData getCachedResponse(String path) {
+		ResponseCache cache = this.responseCache;
+		if (cache == null || !ResponseCache.isImmutable("GET", path)) {
+			return null;
+		}
+		return cache.get(this.cacheKey(path));
+	}
+
+	/**
+	 * Package private method to store a successful, fully buffered response in the response cache (if any).
+	 * @param path the path underneath this account.
+	 * @param rd the response.
+	 */
+	protected void cacheResponse(String path, ResponseData rd) {
+		ResponseCache cache = this.responseCache;
+		if (cache != null && ResponseCache.isImmutable("GET", path)) {
+			cache.put(this.cacheKey(path), rd);
+		}
+	}
+
+	/**
+	 * Caches may be shared by clients for different servers and accounts, so both are part of the key. The API key is
+	 * also part of the key as entries may be redacted differently for each, but is hashed so that it is not written
+	 * to disk.
+	 */
+	private String cacheKey(String path) {
+		String k = (this.apiKey == null) ? "" : DigestUtils.sha256Hex(this.apiKey).substring(0, 16);
+		return this.baseURL + " " + this.account + ":" + k + path;
+	}
+
+	/**
+	 * Set the metrics implementation called for each request and proof verification, such as {@link InMemoryClientMetrics}.
+	 * @param metrics the metrics implementation, or null (the default) to not record metrics.
+	 */
+	public void setMetrics(ClientMetrics metrics) {
+		this.metrics = (metrics == null) ? NO_METRICS : metrics;
+	}
+
+	/**
+	 * Get the metrics implementation called for each request and proof verification.
+	 * @return the metrics implementation, or null if metrics are not recorded.
+	 */
+	public ClientMetrics getMetrics() {
+		ClientMetrics rv = this.metrics;
+		return (rv == NO_METRICS) ? null : rv;
+	}
+
+	/**
+	 * Add a listener to be called at each stage of every request made by this client.
+	 * @param listener the listener.
+	 */
+	public void addRequestListener(RequestListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener previously added with {@link #addRequestListener(RequestListener)}.
+	 * @param listener the listener.
+	 */
+	public void removeRequestListener(RequestListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Package private method to run a proof verification, reporting the time taken and outcome to the metrics
+	 * implementation and request listeners.
+	 * @param op the operation the proof was fetched by.
+	 * @param treeSize the tree size the proof is verified against.
+	 * @param check the verification to run.
+	 * @throws ContinusecException if verification fails.
+	 */
+	protected void verifyProof(Operation op, int treeSize, ProofCheck check) throws ContinusecException {
+		ClientMetrics m = this.metrics;
+		if (m == NO_METRICS && this.listeners.isEmpty()) {
+			check.verify();
+			return;
+		}
+		long start = System.nanoTime();
+		boolean verified = false;
+		try {
+			check.verify();
+			verified = true;
+		} finally {
+			long nanos = System.nanoTime() - start;
+			m.verificationCompleted(op, nanos, verified);
+			boolean result = verified;
+			this.fire(l -> l.verificationCompleted(op, treeSize, nanos, result));
+		}
+	}
+
+	/**
+	 * Call each request listener, ignoring any that fail so that a faulty listener cannot break requests.
+	 */
+	private void fire(Consumer<RequestListener> event) {
+		for (RequestListener l : this.listeners) {
+			try {
+				event.accept(l);
+			} catch (RuntimeException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Get the number of response body bytes read from the network by this client, before decompression.
+	 * Compare with {@link #getResponseBytesDecoded()} to see the savings from compression.
+	 * @return the number of bytes received.
+	 */
+	public long getResponseBytesOnWire() {
+		return this.bytesOnWire.get();
+	}
+
+	/**
+	 * Get the number of response body bytes read by this client, after decompression.
+	 * @return the number of bytes decoded.
+	 */
+	public long getResponseBytesDecoded() {
+		return this.bytesDecoded.get();
+	}
+
+	/**
+	 * Package private utility to run a blocking call on this client's executor, which holds one of its
+	 * threads until the call returns. The returned future completes exceptionally with whatever the
+	 * call throws.
+	 * @param c the call to run.
+	 * @param <T> the result type.
+	 * @return a future for the result of the call.
+	 */
+	protected <T> CompletableFuture<T> runAsync(final Callable<T> c) {
+		final CompletableFuture<T> rv = new CompletableFuture<T>();
+		try {
+			this.getExecutor().execute(() -> {
+				try {
+					rv.complete(c.call());
+				} catch (Throwable e) {
+					rv.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rv.completeExceptionally(e);
+		}
+		return rv;
+	}
+
+	/**
+	 * Package private utility to run a blocking call in the background, on a pool of daemon threads separate from this
+	 * client's executor, so that callers already running on the client executor may wait for the result. The returned
+	 * future completes exceptionally with whatever the call throws.
+	 * @param c the call to run.
+	 * @param <T> the result type.
+	 * @return a future for the result of the call.
+	 */
+	protected <T> CompletableFuture<T> runInBackground(final Callable<T> c) {
+		final CompletableFuture<T> rv = new CompletableFuture<T>();
+		getBackgroundExecutor().execute(() -> {
+			try {
+				rv.complete(c.call());
+			} catch (Throwable e) {
+				rv.completeExceptionally(e);
+			}
+		});
+		return rv;
+	}
+
+	/**
+	 * Package private method to create a canceller that aborts requests from the background pool, see
+	 * {@link #runCancellable(RequestCanceller, Callable)}.
+	 * @return a new canceller.
+	 */
+	protected static RequestCanceller newRequestCanceller() {
+		return new RequestCanceller(getBackgroundExecutor());
+	}
+
+	/**
+	 * Package private method to run a call on the current thread, such that each request it sends is aborted if the
+	 * canceller is cancelled before the call returns.
+	 * @param canceller the canceller.
+	 * @param call the call to run.
+	 * @param <T> the result type.
+	 * @return the result of the call.
+	 * @throws Exception whatever the call throws, typically a {@link ContinusecNetworkException} once aborted.
+	 */
+	protected static <T> T runCancellable(RequestCanceller canceller, Callable<T> call) throws Exception {
+		CancellableCall outer = cancellableCall.get();
+		CancellableCall mine = new CancellableCall(canceller);
+		cancellableCall.set(mine);
+		try {
+			return call.call();
+		} finally {
+			if (outer == null) {
+				cancellableCall.remove();
+			} else {
+				cancellableCall.set(outer);
+			}
+			// once returned, the connection may be reused for other requests, so must not be aborted
+			for (TransportRequest r : mine.sent) {
+				canceller.untrack(r);
+			}
+		}
+	}
+
+	/**
+	 * The requests sent by a call run with {@link #runCancellable(RequestCanceller, Callable)}.
+	 */
+	private static class CancellableCall {
+		private RequestCanceller canceller;
+		private ArrayList<TransportRequest> sent = new ArrayList<TransportRequest>();
+
+		private CancellableCall(RequestCanceller canceller) {
+			this.canceller = canceller;
+		}
 	}
 
 	/**
@@ -116,17 +674,11 @@ public class ContinusecClient {
 	 * @throws ContinusecException upon error
 	 */
 	public List<LogInfo> listLogs() throws ContinusecException {
-		ResponseData rd = this.makeRequest("GET", "/logs", null, null);
-		try {
-			JsonObject o = new JsonParser().parse(new String(rd.data, "UTF-8")).getAsJsonObject();
-			ArrayList<LogInfo> rv = new ArrayList<LogInfo>();
-			for (JsonElement e : o.getAsJsonArray("results")) {
-				rv.add(new LogInfo(e.getAsJsonObject().getAsJsonPrimitive("name").getAsString()));
-			}
-			return rv;
-		} catch (UnsupportedEncodingException e) {
-			throw new ContinusecException(e);
+		ArrayList<LogInfo> rv = new ArrayList<LogInfo>();
+		for (String name : this.makeJsonRequest(Operation.LIST_LOGS, "GET", "/logs", null, null, ContinusecClient::readNames)) {
+			rv.add(new LogInfo(name));
 		}
+		return rv;
 	}
 
 	/**
@@ -135,21 +687,42 @@ public class ContinusecClient {
 	 * @throws ContinusecException upon error
 	 */
 	public List<MapInfo> listMaps() throws ContinusecException {
-		ResponseData rd = this.makeRequest("GET", "/maps", null, null);
-		try {
-			JsonObject o = new JsonParser().parse(new String(rd.data, "UTF-8")).getAsJsonObject();
-			ArrayList<MapInfo> rv = new ArrayList<MapInfo>();
-			for (JsonElement e : o.getAsJsonArray("results")) {
-				rv.add(new MapInfo(e.getAsJsonObject().getAsJsonPrimitive("name").getAsString()));
+		ArrayList<MapInfo> rv = new ArrayList<MapInfo>();
+		for (String name : this.makeJsonRequest(Operation.LIST_MAPS, "GET", "/maps", null, null, ContinusecClient::readNames)) {
+			rv.add(new MapInfo(name));
+		}
+		return rv;
+	}
+
+	private static List<String> readNames(JsonReader r) throws IOException {
+		ArrayList<String> rv = new ArrayList<String>();
+		r.beginObject();
+		while (r.hasNext()) {
+			if (r.nextName().equals("results")) {
+				r.beginArray();
+				while (r.hasNext()) {
+					r.beginObject();
+					while (r.hasNext()) {
+						if (r.nextName().equals("name")) {
+							rv.add(r.nextString());
+						} else {
+							r.skipValue();
+						}
+					}
+					r.endObject();
+				}
+				r.endArray();
+			} else {
+				r.skipValue();
 			}
-			return rv;
-		} catch (UnsupportedEncodingException e) {
-			throw new ContinusecException(e);
 		}
+		r.endObject();
+		return rv;
 	}
 
 	/**
 	 * Package private common method for making underlying HTTP requests to API server.
+	 * The response body is fully read into memory before returning.
 	 * @param method the HTTP method to use.
 	 * @param path the path underneath this account to use.
 	 * @param data for PUT and POST methods, the data (if any to) to send in body.
@@ -158,49 +731,553 @@ public class ContinusecClient {
 	 * @throws ContinusecException for any network errors, or non 200 responses.
 	 */
 	protected ResponseData makeRequest(String method, String path, byte[] data, String[][] extraHeaders) throws ContinusecException {
+		return this.makeRequest(Operation.OTHER, method, path, data, extraHeaders);
+	}
+
+	/**
+	 * Package private common method for making underlying HTTP requests to API server.
+	 * The response body is fully read into memory before returning.
+	 * @param op the logical operation this request is for.
+	 * @param method the HTTP method to use.
+	 * @param path the path underneath this account to use.
+	 * @param data for PUT and POST methods, the data (if any to) to send in body.
+	 * @param extraHeaders additional headers to include in the request
+	 * @return the body and headers.
+	 * @throws ContinusecException for any network errors, or non 200 responses.
+	 */
+	protected ResponseData makeRequest(final Operation op, final String method, final String path, final byte[] data, final String[][] extraHeaders) throws ContinusecException {
+		boolean cacheable = this.responseCache != null && extraHeaders == null && ResponseCache.isImmutable(method, path);
+		if (cacheable) {
+			ResponseData cached = this.getCachedResponse(path);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		ResponseData rv = this.withRetries(op, method, true, () -> {
+			ResponseData rd = this.sendRequest(new RequestInfo(op, method, path), data, extraHeaders);
+			try {
+				rd.buffer();
+			} catch (IOException e) {
+				throw new ContinusecNetworkException(e);
+			} finally {
+				rd.close();
+			}
+			return rd;
+		});
+		if (cacheable) {
+			this.cacheResponse(path, rv);
+		}
+		return rv;
+	}
+
+	/**
+	 * Package private method for making a request where the response is a known JSON shape. The body is
+	 * parsed token by token as it is read from the network, rather than being buffered first, unless it
+	 * may be cached (see {@link #setResponseCache(ResponseCache)}).
+	 * Concurrent identical GET requests are coalesced, see {@link #setCoalescingEnabled(boolean)}.
+	 * @param op the logical operation this request is for.
+	 * @param method the HTTP method to use.
+	 * @param path the path underneath this account to use.
+	 * @param data for PUT and POST methods, the data (if any to) to send in body.
+	 * @param extraHeaders additional headers to include in the request
+	 * @param reader reads the expected object from the body.
+	 * @param <T> the type of object returned.
+	 * @return the object read.
+	 * @throws ContinusecException for any network errors, non 200 responses, or unexpected response bodies.
+	 */
+	protected <T> T makeJsonRequest(final Operation op, final String method, final String path, final byte[] data, final String[][] extraHeaders, final JsonResponseReader<T> reader) throws ContinusecException {
+		RequestAttempt<T> request = () -> this.withRetries(op, method, true, () -> {
+			RequestInfo info = new RequestInfo(op, method, path);
+			T rv = readJson(this.sendRequest(info, data, extraHeaders), reader);
+			if (rv instanceof LogTreeHead || rv instanceof MapTreeHead) {
+				info.setTreeSize(treeSizeOf(rv));
+			}
+			this.fire(l -> l.parseCompleted(info));
+			return rv;
+		});
+		if (this.responseCache != null && extraHeaders == null && ResponseCache.isImmutable(method, path)) {
+			// read the whole body first, so that it can be cached
+			request = () -> readJson(this.makeRequest(op, method, path, data, extraHeaders), reader);
+		}
+		if (this.coalescingEnabled && method.equals("GET") && extraHeaders == null) {
+			return this.singleFlight(op.getTag() + " " + path, request);
+		}
+		return request.run();
+	}
+
+	/**
+	 * Package private method to fetch the latest tree head of a log or map, using the tree head cache (if any).
+	 * See {@link TreeHeadCache} for details.
+	 * @param op the logical operation this request is for.
+	 * @param path the path of the latest tree head underneath this account.
+	 * @param allowCached false to revalidate the cached head even if it is within its TTL.
+	 * @param reader reads the tree head from the body.
+	 * @param <T> the type of tree head returned, either {@link LogTreeHead} or {@link MapTreeHead}.
+	 * @return the tree head.
+	 * @throws ContinusecException for any network errors, non 200 or 304 responses, or unexpected response bodies.
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T> T makeTreeHeadRequest(final Operation op, final String path, boolean allowCached, final JsonResponseReader<T> reader) throws ContinusecException {
+		final TreeHeadCache cache = this.treeHeadCache;
+		if (cache == null) {
+			return this.makeJsonRequest(op, "GET", path, null, null, reader);
+		}
+
+		final String key = op.getTag() + " " + this.cacheKey(path);
+		TreeHeadCache.Entry fresh = allowCached ? cache.getFresh(key) : null;
+		if (fresh != null) {
+			return (T) fresh.getHead();
+		}
+
+		RequestAttempt<T> request = () -> this.withRetries(op, "GET", true, () -> {
+			TreeHeadCache.Entry cached = cache.get(key);
+			String[][] headers = null;
+			if (cached != null && cached.getETag() != null) {
+				headers = new String[][] {{"If-None-Match", cached.getETag()}};
+			}
+			RequestInfo info = new RequestInfo(op, "GET", path);
+			ResponseData rd = this.sendRequest(info, null, headers);
+			T rv;
+			if (rd.statusCode == 304) {
+				rd.close();
+				cache.onNotModified(cached);
+				// another request may have stored a newer head while this one was in flight
+				TreeHeadCache.Entry latest = cache.get(key);
+				rv = (T) ((latest != null) ? latest : cached).getHead();
+			} else {
+				String etag = rd.getHeader("ETag");
+				rv = readJson(rd, reader);
+				cache.put(key, rv, etag);
+			}
+			info.setTreeSize(treeSizeOf(rv));
+			this.fire(l -> l.parseCompleted(info));
+			return rv;
+		});
+		if (this.coalescingEnabled) {
+			return this.singleFlight(key, request);
+		}
+		return request.run();
+	}
+
+	private static int treeSizeOf(Object head) {
+		if (head instanceof LogTreeHead) {
+			return ((LogTreeHead) head).getTreeSize();
+		}
+		return ((MapTreeHead) head).getTreeSize();
+	}
+
+	/**
+	 * Run a request, unless an identical one is already in flight, in which case wait for its result.
+	 * The key includes the operation, so that the result is always of the type expected by the caller.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T singleFlight(String key, RequestAttempt<T> request) throws ContinusecException {
+		CompletableFuture<Object> mine = new CompletableFuture<Object>();
+		CompletableFuture<Object> existing = this.inFlightReads.putIfAbsent(key, mine);
+		if (existing != null) {
+			this.coalescedCount.incrementAndGet();
+			try {
+				return (T) existing.get();
+			} catch (ExecutionException e) {
+				throw unwrap(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ContinusecException(e);
+			}
+		}
+
+		// remove before completing, so that callers arriving afterwards send a fresh request
+		try {
+			T rv = request.run();
+			this.inFlightReads.remove(key, mine);
+			mine.complete(rv);
+			return rv;
+		} catch (ContinusecException | RuntimeException | Error e) {
+			this.inFlightReads.remove(key, mine);
+			mine.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	private static <T> T readJson(ResponseData rd, JsonResponseReader<T> reader) throws ContinusecException {
+		try {
+			return reader.read(createJsonReader(rd));
+		} catch (MalformedJsonException e) {
+			throw new InternalErrorException(e);
+		} catch (IllegalStateException e) {
+			throw new InternalErrorException(e);
+		} catch (NumberFormatException e) {
+			throw new InternalErrorException(e);
+		} catch (IOException e) {
+			throw new ContinusecNetworkException(e);
+		} finally {
+			rd.close();
+		}
+	}
+
+	/**
+	 * Package private utility to create a token reader over a response body.
+	 * @param rd the response.
+	 * @return a reader over the body of the response.
+	 */
+	protected static JsonReader createJsonReader(ResponseData rd) {
+		return new JsonReader(new InputStreamReader(rd.getBody(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Package private method for making underlying HTTP requests to API server, where the body is returned
+	 * unread. Callers must close the returned response.
+	 * @param op the logical operation this request is for.
+	 * @param method the HTTP method to use.
+	 * @param path the path underneath this account to use.
+	 * @param data for PUT and POST methods, the data (if any to) to send in body.
+	 * @param extraHeaders additional headers to include in the request
+	 * @return the body stream and headers.
+	 * @throws ContinusecException for any network errors, or non 200 responses.
+	 */
+	protected ResponseData makeStreamingRequest(final Operation op, final String method, final String path, final byte[] data, final String[][] extraHeaders) throws ContinusecException {
+		return this.withRetries(op, method, false, () -> this.sendRequest(new RequestInfo(op, method, path), data, extraHeaders));
+	}
+
+	/**
+	 * A single attempt at a request, see {@link #withRetries(Operation, String, boolean, RequestAttempt)}.
+	 */
+	private interface RequestAttempt<T> {
+		T run() throws ContinusecException;
+	}
+
+	/**
+	 * Run a request, retrying as allowed by the current retry policy (if any). Each attempt may be hedged.
+	 */
+	private <T> T withRetries(Operation op, String method, boolean hedgeable, RequestAttempt<T> attempt) throws ContinusecException {
+		ClientMetrics m = this.metrics;
+		if (m != NO_METRICS) {
+			final RequestAttempt<T> unmeasured = attempt;
+			attempt = () -> {
+				long start = System.nanoTime();
+				try {
+					return unmeasured.run();
+				} catch (ContinusecException e) {
+					m.requestFailed(op, method, e, System.nanoTime() - start);
+					throw e;
+				}
+			};
+		}
+
+		ConcurrencyLimiter limiter = this.concurrencyLimiter;
+		if (limiter != null) {
+			final RequestAttempt<T> unlimited = attempt;
+			attempt = () -> runLimited(limiter, unlimited);
+		}
+
+		// take a token before waiting for a slot, so that a slot is never held while waiting for a token
+		RateLimiter rates = this.rateLimiter;
+		if (rates != null) {
+			final RequestAttempt<T> unthrottled = attempt;
+			attempt = () -> {
+				rates.acquire(op);
+				return unthrottled.run();
+			};
+		}
+
+		HedgingPolicy hedging = this.hedgingPolicy;
+		if (hedging != null && hedgeable && hedging.isHedgeable(method)) {
+			final RequestAttempt<T> single = attempt;
+			attempt = () -> this.runHedged(op, hedging, single);
+		}
+
+		RetryPolicy policy = this.retryPolicy;
+		if (policy == null) {
+			return attempt.run();
+		}
+
+		policy.onRequest();
+		for (int i = 1; ; i++) {
+			try {
+				return attempt.run();
+			} catch (ContinusecException e) {
+				if (!policy.shouldRetry(method, e, i)) {
+					throw e;
+				}
+				policy.backoff(i);
+			}
+		}
+	}
+
+	/**
+	 * Rethrow the cause of a failed future, or return it wrapped if it is a checked exception of another type.
+	 */
+	private static ContinusecException unwrap(ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof ContinusecException) {
+			return (ContinusecException) cause;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return new ContinusecException(e);
+	}
+
+	/**
+	 * Run an attempt once a slot is available from the limiter, and report the outcome back to it.
+	 */
+	private static <T> T runLimited(ConcurrencyLimiter limiter, RequestAttempt<T> attempt) throws ContinusecException {
+		limiter.acquire();
+		long start = System.nanoTime();
+		try {
+			T rv = attempt.run();
+			limiter.onSuccess(System.nanoTime() - start);
+			return rv;
+		} catch (InternalErrorException | ContinusecNetworkException e) {
+			if (Thread.currentThread().isInterrupted()) {
+				limiter.onIgnored(); // cancelled hedge, not a sign of overload
+			} else {
+				limiter.onDropped(System.nanoTime() - start);
+			}
+			throw e;
+		} catch (ContinusecException | RuntimeException | Error e) {
+			limiter.onIgnored();
+			throw e;
+		}
+	}
+
+	/**
+	 * Run an attempt on the background pool, and if it has not completed within the hedging delay, run a second
+	 * identical attempt. The first to succeed is returned, and the other cancelled.
+	 */
+	private <T> T runHedged(Operation op, HedgingPolicy policy, RequestAttempt<T> attempt) throws ContinusecException {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		AtomicInteger outstanding = new AtomicInteger(1);
+		HedgedAttempt<T> primary = new HedgedAttempt<T>(op, policy, attempt, result, outstanding, false);
+		HedgedAttempt<T> hedge = null;
+		try {
+			getBackgroundExecutor().execute(primary);
+		} catch (RejectedExecutionException e) {
+			return attempt.run();
+		}
+
 		try {
-			URL url = new URL(this.baseURL + "/v1/account/" + this.account + path);
-			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+			try {
+				return result.get(policy.getDelayMillis(op), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				outstanding.incrementAndGet();
+				hedge = new HedgedAttempt<T>(op, policy, attempt, result, outstanding, true);
+				try {
+					getBackgroundExecutor().execute(hedge);
+					policy.onHedgeIssued();
+				} catch (RejectedExecutionException e2) {
+					hedge.run(); // cannot run in parallel, so the caller waits for both in turn
+				}
+				return result.get();
+			}
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ContinusecException(e);
+		} finally {
+			primary.cancel();
+			if (hedge != null) {
+				hedge.cancel();
+			}
+		}
+	}
 
-			conn.setRequestMethod(method);
-			if (this.apiKey != null) {
-				conn.setRequestProperty("Authorization", "Key " + this.apiKey);
+	/**
+	 * One of the attempts started by {@link #runHedged(Operation, HedgingPolicy, RequestAttempt)}. Cancelling
+	 * interrupts the attempt and aborts the request it is sending, so that its connection is closed rather than held
+	 * until the response completes. Both only happen while the attempt is still running, so that a pooled thread is
+	 * never interrupted once it has moved on to other work, and a connection is never closed once returned for reuse.
+	 */
+	private static class HedgedAttempt<T> implements Runnable {
+		private Operation op;
+		private HedgingPolicy policy;
+		private RequestAttempt<T> attempt;
+		private CompletableFuture<T> result;
+		private AtomicInteger outstanding;
+		private boolean isHedge;
+
+		private Thread runner = null;
+		private boolean cancelled = false;
+		private RequestCanceller canceller = newRequestCanceller();
+
+		private HedgedAttempt(Operation op, HedgingPolicy policy, RequestAttempt<T> attempt, CompletableFuture<T> result, AtomicInteger outstanding, boolean isHedge) {
+			this.op = op;
+			this.policy = policy;
+			this.attempt = attempt;
+			this.result = result;
+			this.outstanding = outstanding;
+			this.isHedge = isHedge;
+		}
+
+		public void run() {
+			synchronized (this) {
+				if (this.cancelled || this.result.isDone()) {
+					return;
+				}
+				this.runner = Thread.currentThread();
 			}
-			if (extraHeaders != null) {
-				for (int i = 0; i < extraHeaders.length; i++) {
-					conn.setRequestProperty(extraHeaders[i][0], extraHeaders[i][1]);
+			long start = System.nanoTime();
+			T rv = null;
+			Throwable err = null;
+			try {
+				// requests are no longer tracked once this returns, so the winner is never aborted
+				rv = runCancellable(this.canceller, this.attempt::run);
+			} catch (Throwable e) {
+				err = e;
+			} finally {
+				synchronized (this) {
+					this.runner = null;
+					Thread.interrupted(); // clear any interrupt from a late cancel
 				}
 			}
-			if (method.equals("POST") || method.equals("PUT")) {
-				conn.setDoOutput(true);
-				OutputStream out = conn.getOutputStream();
-				if (data != null && data.length > 0) {
-					out.write(data);
+			if (err == null) {
+				this.policy.recordLatency(this.op, System.nanoTime() - start);
+				// count the win before completing, so that it is seen by the caller once woken
+				synchronized (this.result) {
+					if (!this.result.isDone()) {
+						if (this.isHedge) {
+							this.policy.onHedgeWon();
+						}
+						this.result.complete(rv);
+					}
 				}
-				out.flush();
-				out.close();
-			}
-
-			conn.connect();
-			int code = conn.getResponseCode();
-			switch (code) {
-			case 200:
-				return new ResponseData(IOUtils.toByteArray(conn.getInputStream()), conn.getHeaderFields());
-			case 400:
-				throw new InvalidRangeException();
-			case 403:
-				throw new UnauthorizedAccessException();
-			case 404:
-				throw new ObjectNotFoundException();
-			case 409:
-				throw new ObjectConflictException();
-			default:
-				throw new InternalErrorException();
-			}
-		} catch (MalformedURLException e) {
-			throw new ContinusecNetworkException(e);
+			} else if (this.outstanding.decrementAndGet() == 0) {
+				this.result.completeExceptionally(err);
+			}
+		}
+
+		private void cancel() {
+			synchronized (this) {
+				this.cancelled = true;
+				if (this.runner != null) {
+					this.runner.interrupt();
+				}
+			}
+			this.canceller.cancel();
+		}
+	}
+
+	/**
+	 * Send a single request and map the status code to an exception (if not successful).
+	 */
+	private ResponseData sendRequest(RequestInfo info, byte[] data, String[][] extraHeaders) throws ContinusecException {
+		ArrayList<String[]> headers = new ArrayList<String[]>();
+		if (this.apiKey != null) {
+			headers.add(new String[] {"Authorization", "Key " + this.apiKey});
+		}
+		if (this.compressionEnabled) {
+			headers.add(new String[] {"Accept-Encoding", "gzip, deflate"});
+		}
+		if (extraHeaders != null) {
+			for (int i = 0; i < extraHeaders.length; i++) {
+				headers.add(extraHeaders[i]);
+			}
+		}
+
+		this.fire(l -> l.requestStarted(info));
+		TransportRequest request = new TransportRequest(info.getMethod(), this.baseURL + "/v1/account/" + this.account + info.getPath(), data, headers.toArray(new String[headers.size()][]));
+		CancellableCall call = cancellableCall.get();
+		if (call != null) {
+			call.sent.add(request);
+			call.canceller.track(request);
+		}
+		ResponseData rd;
+		try {
+			rd = this.transport.send(request);
 		} catch (IOException e) {
 			throw new ContinusecNetworkException(e);
 		}
+		info.setResponseReceived(rd.statusCode);
+		this.fire(l -> l.firstByteReceived(info));
+
+		// the request is complete once the body has been read or discarded, which for streamed responses is after we return
+		if (rd.body == null && rd.data != null) {
+			info.getBytesOnWireCounter().set(rd.data.length);
+			info.getBytesDecodedCounter().set(rd.data.length);
+		}
+		ClientMetrics m = this.metrics;
+		if (m != NO_METRICS || !this.listeners.isEmpty()) {
+			rd.setCloseListener(() -> {
+				m.requestCompleted(info.getOperation(), info.getMethod(), info.getStatusCode(), info.getElapsedNanos(), info.getBytesOnWire(), info.getBytesDecoded());
+				this.fire(l -> l.bodyCompleted(info));
+			});
+		}
+
+		// a 304 is only expected in reply to a conditional request, see makeTreeHeadRequest()
+		if (rd.statusCode == 200 || (rd.statusCode == 304 && hasHeader(extraHeaders, "If-None-Match"))) {
+			try {
+				this.decodeBody(rd, info.getBytesOnWireCounter(), info.getBytesDecodedCounter());
+			} catch (IOException e) {
+				rd.close();
+				throw new ContinusecNetworkException(e);
+			}
+			return rd;
+		}
+
+		rd.close();
+		switch (rd.statusCode) {
+		case 400:
+			throw new InvalidRangeException();
+		case 403:
+			throw new UnauthorizedAccessException();
+		case 404:
+			throw new ObjectNotFoundException();
+		case 409:
+			throw new ObjectConflictException();
+		default:
+			throw new InternalErrorException();
+		}
+	}
+
+	private static boolean hasHeader(String[][] headers, String name) {
+		if (headers != null) {
+			for (String[] h : headers) {
+				if (h[0].equalsIgnoreCase(name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wrap the body of a streamed response so that it is decompressed (if needed) and counted as it is read.
+	 */
+	private void decodeBody(ResponseData rd, AtomicLong wireCount, AtomicLong decodedCount) throws IOException {
+		if (rd.body == null) {
+			return;
+		}
+
+		InputStream wire = new ByteCountingInputStream(rd.body, this.bytesOnWire, wireCount);
+		String encoding = rd.getHeader("Content-Encoding");
+		InputStream decoded;
+		if (encoding == null || encoding.trim().equalsIgnoreCase("identity")) {
+			decoded = wire;
+		} else if (encoding.trim().equalsIgnoreCase("gzip") || encoding.trim().equalsIgnoreCase("x-gzip")) {
+			// an empty body (such as for a 204 or HEAD response) has no gzip header to read
+			PushbackInputStream in = new PushbackInputStream(wire, 1);
+			int b = in.read();
+			if (b == -1) {
+				decoded = in;
+			} else {
+				in.unread(b);
+				decoded = new GZIPInputStream(in);
+			}
+		} else if (encoding.trim().equalsIgnoreCase("deflate")) {
+			// RFC 7230 specifies zlib wrapped data, however some servers send raw deflate data instead
+			PushbackInputStream in = new PushbackInputStream(wire, 2);
+			byte[] header = new byte[2];
+			int n = in.readNBytes(header, 0, 2);
+			if (n > 0) {
+				in.unread(header, 0, n);
+			}
+			boolean zlib = (n == 2) && ((header[0] & 0x0f) == 8) && ((((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0);
+			decoded = (n == 0) ? in : new DeflateInputStream(in, zlib);
+		} else {
+			throw new IOException("Unsupported Content-Encoding: " + encoding);
+		}
+		rd.body = new ByteCountingInputStream(decoded, this.bytesDecoded, decodedCount);
 	}
 }
@@ -0,0 +1,317 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.net.URL;
+import java.net.HttpURLConnection;
+import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default {@link Transport} implementation based on {@link HttpURLConnection} with keep-alive connection reuse.
+ * <p>
+ * The JDK keeps idle persistent connections in a cache and hands them back out for subsequent requests
+ * to the same host, provided that the previous response body was read to the end and closed. This class
+ * returns response bodies as streams that hold their connection until read to the end or closed (including
+ * for error responses), and bounds the number of connections open to any one host (and in total) so that the pool
+ * never grows beyond what can be cached for reuse. Callers that exceed the limit wait for a connection to be returned.
+ * <p>
+ * Note that the JDK caches at most {@code http.maxConnections} (default 5) idle connections per host, so
+ * per-host limits larger than that value will still work, but the excess connections will be closed after use.
+ */
+public class DefaultTransport implements Transport {
+	/**
+	 * Default maximum number of connections to a single host, matches the JDK default keep-alive cache size.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+
+	/**
+	 * Default maximum number of connections across all hosts.
+	 */
+	public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 64;
+
+	private static final DefaultTransport shared = new DefaultTransport();
+
+	private int maxConnectionsPerHost;
+	private Semaphore totalPermits;
+	private ConcurrentHashMap<String,Semaphore> hostPermits = new ConcurrentHashMap<String,Semaphore>();
+
+	private int connectTimeout = 0;
+	private int readTimeout = 0;
+
+	private AtomicLong requestCount = new AtomicLong();
+	private AtomicLong failureCount = new AtomicLong();
+	private AtomicLong waitCount = new AtomicLong();
+	private AtomicLong waitNanos = new AtomicLong();
+	private AtomicInteger inUse = new AtomicInteger();
+	private AtomicInteger peakInUse = new AtomicInteger();
+
+	/**
+	 * Create a transport with the default connection limits.
+	 */
+	public DefaultTransport() {
+		this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	/**
+	 * Create a transport with a custom per-host connection limit.
+	 * @param maxConnectionsPerHost the maximum number of connections open to any one host.
+	 */
+	public DefaultTransport(int maxConnectionsPerHost) {
+		this(maxConnectionsPerHost, DEFAULT_MAX_TOTAL_CONNECTIONS);
+	}
+
+	/**
+	 * Create a transport with custom connection limits.
+	 * @param maxConnectionsPerHost the maximum number of connections open to any one host.
+	 * @param maxTotalConnections the maximum number of connections open across all hosts.
+	 */
+	public DefaultTransport(int maxConnectionsPerHost, int maxTotalConnections) {
+		if (maxConnectionsPerHost < 1 || maxTotalConnections < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.totalPermits = new Semaphore(maxTotalConnections, true);
+	}
+
+	/**
+	 * Get the transport shared by all clients that are not configured with one explicitly.
+	 * @return the shared instance.
+	 */
+	public static DefaultTransport getSharedInstance() {
+		return shared;
+	}
+
+	/**
+	 * Set connect and read timeouts applied to each request. Zero (the default) means no timeout.
+	 * @param connectTimeout the connect timeout in milliseconds.
+	 * @param readTimeout the read timeout in milliseconds.
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Send a request, waiting for a connection slot to the host to become available if needed.
+	 * The body of the response is streamed, and the connection slot is held until it has been read
+	 * to the end or closed.
+	 * @param request the request to send.
+	 * @return the status code, body and headers.
+	 * @throws IOException upon any network error.
+	 */
+	public ResponseData send(TransportRequest request) throws IOException {
+		URL url = new URL(request.getURL());
+		final Semaphore host = this.getHostPermits(url);
+
+		// wait for the host first, so that callers queued for a busy host do not hold slots that other hosts could use
+		this.acquire(host);
+		try {
+			this.acquire(this.totalPermits);
+		} catch (IOException e) {
+			host.release();
+			throw e;
+		}
+
+		int n = this.inUse.incrementAndGet();
+		int peak = this.peakInUse.get();
+		while (n > peak && !this.peakInUse.compareAndSet(peak, n)) {
+			peak = this.peakInUse.get();
+		}
+
+		Runnable release = new Releaser(this.inUse, host, this.totalPermits);
+		try {
+			this.requestCount.incrementAndGet();
+			return this.execute(url, request, release);
+		} catch (IOException e) {
+			this.failureCount.incrementAndGet();
+			release.run();
+			throw e;
+		} catch (RuntimeException e) {
+			release.run();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a connection slot. Kept static so that it does not refer to the stream it is registered against.
+	 */
+	private static class Releaser implements Runnable {
+		private AtomicInteger inUse;
+		private Semaphore host;
+		private Semaphore total;
+
+		private Releaser(AtomicInteger inUse, Semaphore host, Semaphore total) {
+			this.inUse = inUse;
+			this.host = host;
+			this.total = total;
+		}
+
+		public void run() {
+			this.inUse.decrementAndGet();
+			this.total.release();
+			this.host.release();
+		}
+	}
+
+	private ResponseData execute(URL url, TransportRequest request, Runnable release) throws IOException {
+		if (request.isAborted()) {
+			throw new InterruptedIOException("Request aborted");
+		}
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		// closing the socket is the only way to stop a read that is blocked waiting for the server
+		request.setAbortHandler(conn::disconnect);
+		conn.setUseCaches(false);
+		conn.setConnectTimeout(this.connectTimeout);
+		conn.setReadTimeout(this.readTimeout);
+		conn.setRequestMethod(request.getMethod());
+
+		String[][] headers = request.getHeaders();
+		if (headers != null) {
+			for (int i = 0; i < headers.length; i++) {
+				conn.setRequestProperty(headers[i][0], headers[i][1]);
+			}
+		}
+
+		if (request.hasBody()) {
+			byte[] data = request.getData();
+			int length = (data == null) ? 0 : data.length;
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(length);
+			OutputStream out = conn.getOutputStream();
+			try {
+				if (length > 0) {
+					out.write(data);
+				}
+				out.flush();
+			} finally {
+				out.close();
+			}
+		}
+
+		int code = conn.getResponseCode();
+
+		// The body must be read to the end and closed, else the connection cannot be reused.
+		InputStream in = (code >= 400) ? conn.getErrorStream() : conn.getInputStream();
+		if (in == null) {
+			release.run();
+			return new ResponseData(code, new byte[0], conn.getHeaderFields());
+		}
+		// the JDK reports a body cut short as a normal end of stream, so check the length ourselves
+		long length = (code == 204 || code == 304 || request.getMethod().equals("HEAD")) ? -1 : conn.getContentLengthLong();
+		final ReleasingInputStream body = new ReleasingInputStream(in, length, release);
+		// once the body is being read, disconnecting may hand the connection to the JDK to discard the rest of the
+		// body in the background, so give up the slot straight away
+		request.setAbortHandler(() -> {
+			body.release();
+			conn.disconnect();
+		});
+		return new ResponseData(code, body, conn.getHeaderFields());
+	}
+
+	private Semaphore getHostPermits(URL url) {
+		String key = url.getProtocol() + "://" + url.getAuthority();
+		Semaphore rv = this.hostPermits.get(key);
+		if (rv == null) {
+			Semaphore s = new Semaphore(this.maxConnectionsPerHost, true);
+			rv = this.hostPermits.putIfAbsent(key, s);
+			if (rv == null) {
+				rv = s;
+			}
+		}
+		return rv;
+	}
+
+	private void acquire(Semaphore s) throws IOException {
+		if (s.tryAcquire()) {
+			return;
+		}
+		long start = System.nanoTime();
+		this.waitCount.incrementAndGet();
+		try {
+			s.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			this.waitNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Get the total number of requests sent by this transport.
+	 * @return the number of requests.
+	 */
+	public long getRequestCount() {
+		return this.requestCount.get();
+	}
+
+	/**
+	 * Get the number of requests that failed with a network error.
+	 * @return the number of failed requests.
+	 */
+	public long getFailureCount() {
+		return this.failureCount.get();
+	}
+
+	/**
+	 * Get the number of requests that had to wait for a connection to become available.
+	 * @return the number of requests that waited.
+	 */
+	public long getWaitCount() {
+		return this.waitCount.get();
+	}
+
+	/**
+	 * Get the total time spent by requests waiting for a connection.
+	 * @return the total wait time in milliseconds.
+	 */
+	public long getTotalWaitMillis() {
+		return this.waitNanos.get() / 1000000L;
+	}
+
+	/**
+	 * Get the number of connections currently in use.
+	 * @return the number of requests currently in flight.
+	 */
+	public int getConnectionsInUse() {
+		return this.inUse.get();
+	}
+
+	/**
+	 * Get the highest number of connections that have been in use at the same time.
+	 * @return the peak number of requests in flight.
+	 */
+	public int getPeakConnectionsInUse() {
+		return this.peakInUse.get();
+	}
+
+	/**
+	 * Get the maximum number of connections allowed to any one host.
+	 * @return the per-host connection limit.
+	 */
+	public int getMaxConnectionsPerHost() {
+		return this.maxConnectionsPerHost;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Package private stream that inflates deflate data, releasing the native memory held by its inflater once closed
+ * rather than leaving it for finalization.
+ */
+class DeflateInputStream extends InflaterInputStream {
+	private boolean ended = false;
+
+	/**
+	 * Package private constructor.
+	 * @param in the stream of compressed data.
+	 * @param zlib true if the data is zlib wrapped, false if raw deflate data.
+	 */
+	protected DeflateInputStream(InputStream in, boolean zlib) {
+		super(in, new Inflater(!zlib));
+	}
+
+	/**
+	 * Close the underlying stream, and end the inflater.
+	 * @throws IOException if the underlying stream cannot be closed.
+	 */
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			if (!this.ended) {
+				this.ended = true;
+				this.inf.end();
+			}
+		}
+	}
+}
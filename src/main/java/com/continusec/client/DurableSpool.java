@@ -0,0 +1,568 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Spool of log entries and map values that is written to disk before they are sent, so that they survive an outage
+ * of the API or a restart of the process:
+ * <pre>{@code
+ * DurableSpool spool = new DurableSpool(client, new File("/var/spool/audit"), 16 * 1024 * 1024);
+ * spool.add(log, new RawDataEntry("foo".getBytes())).thenAccept(aer -> ...);
+ * spool.set(map, "foo".getBytes(), new RawDataEntry("bar".getBytes()));
+ * ...
+ * spool.close();
+ * }</pre>
+ * <p>
+ * Each entry is appended, with its format and data, to a memory-mapped segment file before the call returns, so that
+ * it survives the process exiting (though not the host failing, unless {@link #sync()} is called). A single background
+ * thread sends entries in the order they were added. If sending fails with a {@link ContinusecNetworkException},
+ * {@link InternalErrorException} or {@link RateLimitExceededException} the API is taken to be unavailable, and the same
+ * entry is retried after an exponential backoff, so that later entries wait until connectivity returns. Any other
+ * failure, such as {@link ObjectNotFoundException}, fails the future for that entry, and the next is sent.
+ * <p>
+ * Once an entry is sent, the leaf hash from the {@link AddEntryResponse} is written back into its record, marking it
+ * done. A new segment is started when the current one is full, and each time the spool is opened, and a segment is
+ * deleted once every record in it is done. On open, existing segments in the directory are scanned, stopping at the first
+ * record in each that was only partly written, and records not yet done are sent before any new ones.
+ * <p>
+ * Entries are sent at least once: if the process exits after an entry is sent but before its leaf hash is recorded, it is
+ * sent again when the spool is next opened. The server ignores a log entry identical to one already in the log, however
+ * a repeated map value is added to the mutation log again. All logs and maps must belong to the client the spool was
+ * created with, as that client is used to send entries recovered from disk. Only one spool at a time should use a directory.
+ */
+public class DurableSpool implements Closeable {
+	private static final Pattern NAME = Pattern.compile("spool-(\\d+)\\.dat");
+
+	// payload length, CRC of the payload, state, leaf hash, then the payload itself
+	private static final int HEADER_BYTES = 4 + 4 + 1 + 32;
+	private static final int STATE_OFFSET = 8;
+	private static final int LEAF_HASH_OFFSET = 9;
+
+	private static final byte STATE_PENDING = 0;
+	private static final byte STATE_SENT = 1;
+	private static final byte STATE_REJECTED = 2;
+
+	private static final byte TYPE_LOG_ADD = 1;
+	private static final byte TYPE_MAP_SET = 2;
+
+	private ContinusecClient client;
+	private File directory;
+	private int segmentBytes;
+
+	private volatile long initialBackoffMillis = 100;
+	private volatile long maxBackoffMillis = 30000;
+
+	private ArrayList<Segment> segments = new ArrayList<Segment>();
+	private Segment current = null;
+	private int nextId = 0;
+	private ArrayDeque<Record> pending = new ArrayDeque<Record>();
+	private boolean closed = false;
+	private Thread sender;
+
+	private AtomicLong sentCount = new AtomicLong();
+	private AtomicLong rejectedCount = new AtomicLong();
+	private AtomicLong outageRetryCount = new AtomicLong();
+
+	/**
+	 * Open a spool, recovering any entries not yet sent from an earlier spool using the same directory, and start sending.
+	 * @param client the client used to send entries.
+	 * @param directory the directory for segment files, created if it does not exist.
+	 * @param segmentBytes the size of each segment file. An entry larger than this is written to a segment of its own.
+	 * @throws IOException if the directory cannot be created or read.
+	 */
+	public DurableSpool(ContinusecClient client, File directory, int segmentBytes) throws IOException {
+		if (segmentBytes <= HEADER_BYTES) {
+			throw new IllegalArgumentException();
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+		this.client = client;
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		String[] names = directory.list();
+		for (String n : (names == null) ? new String[0] : names) {
+			Matcher m = NAME.matcher(n);
+			if (m.matches()) {
+				ids.add(Integer.parseInt(m.group(1)));
+			}
+		}
+		Collections.sort(ids);
+		for (int id : ids) {
+			Segment s = new Segment(new File(directory, name(id)), 0);
+			this.scan(s);
+			if (s.unsent == 0) {
+				s.delete();
+			} else {
+				this.segments.add(s);
+			}
+			this.nextId = id + 1;
+		}
+
+		this.sender = new Thread(this::send, "continusec-spool-sender");
+		this.sender.setDaemon(true);
+		this.sender.start();
+	}
+
+	/**
+	 * Set bounds on the delay before an entry is retried while the API is unavailable. The delay doubles after each
+	 * failure, with a random time between zero and the current delay waited ("full jitter").
+	 * @param initialBackoffMillis the delay after the first failure.
+	 * @param maxBackoffMillis the largest delay.
+	 */
+	public void setBackoff(long initialBackoffMillis, long maxBackoffMillis) {
+		if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+			throw new IllegalArgumentException();
+		}
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Spool an entry to be added to a log, see {@link VerifiableLog#add(UploadableEntry)}.
+	 * @param log the log, which must belong to the client of this spool.
+	 * @param e the entry to add.
+	 * @return a future for the add entry response, completed once the entry has been sent.
+	 * @throws ContinusecException if the entry cannot be written to the spool.
+	 */
+	public CompletableFuture<AddEntryResponse> add(VerifiableLog log, UploadableEntry e) throws ContinusecException {
+		return this.append(TYPE_LOG_ADD, log.getPath(), new byte[0], e);
+	}
+
+	/**
+	 * Spool a value to be set in a map, see {@link VerifiableMap#set(byte[], UploadableEntry)}.
+	 * @param map the map, which must belong to the client of this spool.
+	 * @param key the key to set.
+	 * @param e the value.
+	 * @return a future for the add entry response, completed once the value has been sent.
+	 * @throws ContinusecException if the value cannot be written to the spool.
+	 */
+	public CompletableFuture<AddEntryResponse> set(VerifiableMap map, byte[] key, UploadableEntry e) throws ContinusecException {
+		return this.append(TYPE_MAP_SET, map.getPath(), key, e);
+	}
+
+	/**
+	 * Wait until all entries spooled so far, including those recovered from disk, have been sent. While the API is
+	 * unavailable this waits until it returns.
+	 * @throws ContinusecException if interrupted while waiting.
+	 */
+	public synchronized void flush() throws ContinusecException {
+		try {
+			while (!this.pending.isEmpty() && !this.closed) {
+				this.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ContinusecException(e);
+		}
+	}
+
+	/**
+	 * Force all segments to the storage device, so that spooled entries survive the host failing.
+	 */
+	public synchronized void sync() {
+		for (Segment s : this.segments) {
+			s.buf.force();
+		}
+	}
+
+	/**
+	 * Stop sending, and close the segment files. Entries not yet sent stay on disk to be sent when the spool is next
+	 * opened, and their futures fail.
+	 * @throws IOException if a segment cannot be closed.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.notifyAll();
+		}
+		try {
+			// wait for any entry being sent, so that its state is recorded
+			this.sender.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (Record r : this.pending) {
+				r.result.completeExceptionally(new ContinusecException(new IllegalStateException("Spool closed before entry was sent")));
+			}
+			this.pending.clear();
+			for (Segment s : this.segments) {
+				s.buf.force();
+				s.close();
+			}
+			this.segments.clear();
+			this.current = null;
+		}
+	}
+
+	/**
+	 * Get the number of entries waiting to be sent.
+	 * @return the number of pending entries.
+	 */
+	public synchronized int getPendingCount() {
+		return this.pending.size();
+	}
+
+	/**
+	 * Get the number of segment files in use.
+	 * @return the number of segments.
+	 */
+	public synchronized int getSegmentCount() {
+		return this.segments.size();
+	}
+
+	/**
+	 * Get the number of entries sent successfully since the spool was opened.
+	 * @return the number of sent entries.
+	 */
+	public long getSentCount() {
+		return this.sentCount.get();
+	}
+
+	/**
+	 * Get the number of entries that failed with an error other than the API being unavailable, and so were not sent.
+	 * @return the number of rejected entries.
+	 */
+	public long getRejectedCount() {
+		return this.rejectedCount.get();
+	}
+
+	/**
+	 * Get the number of times an entry was retried as the API was unavailable.
+	 * @return the number of retries.
+	 */
+	public long getOutageRetryCount() {
+		return this.outageRetryCount.get();
+	}
+
+	private synchronized CompletableFuture<AddEntryResponse> append(byte type, String path, byte[] key, UploadableEntry e) throws ContinusecException {
+		if (this.closed) {
+			throw new IllegalStateException("Spool is closed");
+		}
+		try {
+			byte[] payload = encode(type, path, key, e.getFormat(), e.getDataForUpload());
+			int len = HEADER_BYTES + payload.length;
+			Segment s = this.current;
+			if (s == null || s.writePos + len > s.buf.capacity()) {
+				s = new Segment(new File(this.directory, name(this.nextId)), Math.max(this.segmentBytes, len));
+				this.nextId++;
+				this.segments.add(s);
+				Segment prev = this.current;
+				this.current = s;
+				if (prev != null && prev.unsent == 0) {
+					this.remove(prev);
+				}
+			}
+
+			// write the length last, so that a record cut short by a crash is ignored when scanned
+			int pos = s.writePos;
+			write(s.buf, pos + HEADER_BYTES, payload);
+			s.buf.putInt(pos + 4, crc(payload));
+			s.buf.putInt(pos, payload.length);
+			s.writePos += len;
+			s.unsent++;
+
+			Record r = new Record(s, pos, payload.length);
+			this.pending.add(r);
+			this.notifyAll();
+			return r.result;
+		} catch (IOException ioe) {
+			throw new ContinusecException(ioe);
+		}
+	}
+
+	/**
+	 * Add the records in a segment that are not yet done to the pending queue, stopping at the first that is incomplete.
+	 */
+	private void scan(Segment s) {
+		int pos = 0;
+		while (pos + HEADER_BYTES <= s.buf.capacity()) {
+			int len = s.buf.getInt(pos);
+			if (len <= 0 || (long) pos + HEADER_BYTES + len > s.buf.capacity()) {
+				break;
+			}
+			byte[] payload = new byte[len];
+			read(s.buf, pos + HEADER_BYTES, payload);
+			if (s.buf.getInt(pos + 4) != crc(payload)) {
+				break;
+			}
+			if (s.buf.get(pos + STATE_OFFSET) == STATE_PENDING) {
+				this.pending.add(new Record(s, pos, len));
+				s.unsent++;
+			}
+			pos += HEADER_BYTES + len;
+		}
+		s.writePos = pos;
+	}
+
+	/**
+	 * Body of the sender thread.
+	 */
+	private void send() {
+		int failures = 0;
+		while (true) {
+			Record r;
+			byte[] payload;
+			synchronized (this) {
+				try {
+					while (this.pending.isEmpty() && !this.closed) {
+						this.wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (this.closed) {
+					return;
+				}
+				r = this.pending.peekFirst();
+				payload = new byte[r.length];
+				read(r.segment.buf, r.offset + HEADER_BYTES, payload);
+			}
+
+			AddEntryResponse aer = null;
+			Exception failure = null;
+			try {
+				aer = this.sendPayload(payload);
+			} catch (ContinusecNetworkException | InternalErrorException | RateLimitExceededException e) {
+				// the API is unavailable, so wait and try the same entry again, keeping order
+				failures++;
+				this.outageRetryCount.incrementAndGet();
+				if (!this.backoff(failures)) {
+					return;
+				}
+				continue;
+			} catch (ContinusecException | IOException | RuntimeException e) {
+				failure = e;
+			}
+			failures = 0;
+			// complete the future first, so that it is done by the time flush() returns
+			if (aer != null) {
+				r.result.complete(aer);
+			} else {
+				r.result.completeExceptionally((failure instanceof ContinusecException) ? failure : new ContinusecException(failure));
+			}
+			this.done(r, aer);
+		}
+	}
+
+	private AddEntryResponse sendPayload(byte[] payload) throws ContinusecException, IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte type = in.readByte();
+		String path = in.readUTF();
+		byte[] key = new byte[in.readInt()];
+		in.readFully(key);
+		String format = in.readUTF();
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		SpooledEntry e = new SpooledEntry(format, data);
+		switch (type) {
+		case TYPE_LOG_ADD:
+			return new VerifiableLog(this.client, path).add(e);
+		case TYPE_MAP_SET:
+			return new VerifiableMap(this.client, path).set(key, e);
+		default:
+			throw new IOException("Unknown spool record type " + type);
+		}
+	}
+
+	/**
+	 * Wait before the next attempt while the API is unavailable.
+	 * @return false if the spool was closed while waiting.
+	 */
+	private synchronized boolean backoff(int failures) {
+		long bound = this.initialBackoffMillis;
+		for (int i = 1; i < failures && bound < this.maxBackoffMillis; i++) {
+			bound <<= 1;
+		}
+		bound = Math.min(bound, this.maxBackoffMillis);
+		long deadline = System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(bound + 1);
+		try {
+			for (long now = System.currentTimeMillis(); now < deadline && !this.closed; now = System.currentTimeMillis()) {
+				this.wait(deadline - now);
+			}
+		} catch (InterruptedException e) {
+			return false;
+		}
+		return !this.closed;
+	}
+
+	/**
+	 * Record the outcome of sending the first pending record, and delete its segment if every record in it is done.
+	 */
+	private synchronized void done(Record r, AddEntryResponse aer) {
+		Segment s = r.segment;
+		if (aer != null) {
+			write(s.buf, r.offset + LEAF_HASH_OFFSET, aer.mtlHash, Math.min(aer.mtlHash.length, 32));
+			s.buf.put(r.offset + STATE_OFFSET, STATE_SENT);
+			this.sentCount.incrementAndGet();
+		} else {
+			s.buf.put(r.offset + STATE_OFFSET, STATE_REJECTED);
+			this.rejectedCount.incrementAndGet();
+		}
+		this.pending.removeFirst();
+		s.unsent--;
+		if (s.unsent == 0 && s != this.current) {
+			this.remove(s);
+		}
+		this.notifyAll();
+	}
+
+	private void remove(Segment s) {
+		this.segments.remove(s);
+		try {
+			s.delete();
+		} catch (IOException e) {
+			// every record is done, so if left behind the segment is deleted when next scanned
+		}
+	}
+
+	private static byte[] encode(byte type, String path, byte[] key, String format, byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(type);
+		out.writeUTF(path);
+		out.writeInt(key.length);
+		out.write(key);
+		out.writeUTF(format);
+		out.writeInt(data.length);
+		out.write(data);
+		out.flush();
+		return baos.toByteArray();
+	}
+
+	private static String name(int id) {
+		return String.format("spool-%08d.dat", id);
+	}
+
+	private static void read(MappedByteBuffer buf, int pos, byte[] dst) {
+		ByteBuffer b = buf.duplicate();
+		b.position(pos);
+		b.get(dst);
+	}
+
+	private static void write(MappedByteBuffer buf, int pos, byte[] src) {
+		write(buf, pos, src, src.length);
+	}
+
+	private static void write(MappedByteBuffer buf, int pos, byte[] src, int length) {
+		ByteBuffer b = buf.duplicate();
+		b.position(pos);
+		b.put(src, 0, length);
+	}
+
+	private static int crc(byte[] payload) {
+		CRC32 c = new CRC32();
+		c.update(payload);
+		return (int) c.getValue();
+	}
+
+	/**
+	 * A memory-mapped segment file.
+	 */
+	private static class Segment {
+		private File file;
+		private RandomAccessFile raf;
+		private MappedByteBuffer buf;
+		private int writePos = 0;
+		private int unsent = 0;
+
+		/**
+		 * Open a segment, creating it with the given size if it does not exist.
+		 */
+		private Segment(File file, int size) throws IOException {
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			long len = Math.max(this.raf.length(), size);
+			this.buf = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, len);
+		}
+
+		private void close() throws IOException {
+			this.raf.close();
+		}
+
+		private void delete() throws IOException {
+			this.raf.close();
+			if (!this.file.delete()) {
+				throw new IOException("Unable to delete " + this.file);
+			}
+		}
+	}
+
+	/**
+	 * An entry read back from a record, in the format it was spooled with.
+	 */
+	private static class SpooledEntry implements UploadableEntry {
+		private String format;
+		private byte[] data;
+
+		private SpooledEntry(String format, byte[] data) {
+			this.format = format;
+			this.data = data;
+		}
+
+		public byte[] getDataForUpload() {
+			return this.data;
+		}
+
+		public String getFormat() {
+			return this.format;
+		}
+	}
+
+	/**
+	 * A record in a segment, and the future for its response.
+	 */
+	private static class Record {
+		private Segment segment;
+		private int offset;
+		private int length;
+		private CompletableFuture<AddEntryResponse> result = new CompletableFuture<AddEntryResponse>();
+
+		private Record(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses how many entries {@link LogEntryIterator} requests from the server at once, set on a client with
+ * {@link ContinusecClient#setEntryPageSizer(EntryPageSizer)}:
+ * <pre>{@code
+ * EntryPageSizer sizer = new EntryPageSizer();
+ * sizer.setBounds(10, 2000);
+ * sizer.setTarget(4 * 1024 * 1024, 2000);
+ * client.setEntryPageSizer(sizer);
+ * }</pre>
+ * <p>
+ * For each log (and entry format) the sizer keeps a moving average of the bytes and the time taken per entry returned,
+ * and picks the largest page expected to stay within both the target payload size and the target page duration, so
+ * that logs of small entries are read in large pages and logs of large entries in small ones. Pages grow to at most twice
+ * the size of the last page read, shrink to no less than half, and always lie within the bounds. Pages start at 500 entries.
+ * <p>
+ * If the server returns fewer entries than asked for, later pages for that log are no larger than the number it
+ * returned, so that the remainder does not need another request. This limit is dropped after a number of full pages,
+ * in case the server was only briefly limiting responses.
+ * <p>
+ * Pages of a different size start and end at different entries, so while the size adapts a {@link ResponseCache} is
+ * less likely to hold pages requested earlier. Set equal bounds to always request the same size.
+ * A single sizer may be shared by many clients, in which case logs with the same path share what is learnt.
+ */
+public class EntryPageSizer {
+	private volatile int minEntries = 50;
+	private volatile int maxEntries = 10000;
+	private volatile long targetBytes = 2 * 1024 * 1024;
+	private volatile long targetNanos = 1000000000L;
+
+	private ConcurrentHashMap<String,LogState> logs = new ConcurrentHashMap<String,LogState>();
+
+	private final static int INITIAL_ENTRIES = 500;
+	private final static double WEIGHT = 0.3;
+	private final static int PAGES_BEFORE_PROBE = 32;
+
+	/**
+	 * Create a sizer with the default settings, which request between 50 and 10000 entries at once, aiming at 2 MiB
+	 * and 1 second per page.
+	 */
+	public EntryPageSizer() {
+	}
+
+	/**
+	 * Set the smallest and largest number of entries to request at once.
+	 * @param minEntries the smallest page size, at least 1.
+	 * @param maxEntries the largest page size, at least minEntries.
+	 */
+	public void setBounds(int minEntries, int maxEntries) {
+		if (minEntries < 1 || maxEntries < minEntries) {
+			throw new IllegalArgumentException();
+		}
+		this.minEntries = minEntries;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Set the payload size and duration that each page should aim at.
+	 * @param bytes the target size of each response body, after decompression.
+	 * @param millis the target time from requesting a page until it has been read, in milliseconds.
+	 */
+	public void setTarget(long bytes, long millis) {
+		if (bytes < 1 || millis < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.targetBytes = bytes;
+		this.targetNanos = millis * 1000000L;
+	}
+
+	/**
+	 * Get the smallest number of entries requested at once.
+	 * @return the smallest page size.
+	 */
+	public int getMinEntries() {
+		return this.minEntries;
+	}
+
+	/**
+	 * Get the largest number of entries requested at once.
+	 * @return the largest page size.
+	 */
+	public int getMaxEntries() {
+		return this.maxEntries;
+	}
+
+	/**
+	 * Get the number of entries that would next be requested at once from a log.
+	 * @param log the log.
+	 * @param factory the factory for the format entries are read in.
+	 * @return the page size.
+	 */
+	public int getPageSize(VerifiableLog log, VerifiableEntryFactory factory) {
+		return this.getPageSize(log.getPath() + factory.getFormat());
+	}
+
+	/**
+	 * Package private method to get the number of entries to request next.
+	 * @param key the log path and entry format.
+	 * @return the page size, within the current bounds.
+	 */
+	protected int getPageSize(String key) {
+		LogState s = this.logs.get(key);
+		int rv = (s == null) ? INITIAL_ENTRIES : s.get();
+		return Math.max(this.minEntries, Math.min(this.maxEntries, rv));
+	}
+
+	/**
+	 * Package private method to record a page that has been read, and adapt the size of those that follow.
+	 * @param key the log path and entry format.
+	 * @param requested the number of entries asked for.
+	 * @param returned the number of entries the server returned.
+	 * @param bytes the size of the response body after decompression.
+	 * @param nanos the time from requesting the page until it was read, or -1 if not known (e.g. when the page was
+	 *              parsed as the entries were consumed).
+	 */
+	protected void pageCompleted(String key, int requested, int returned, long bytes, long nanos) {
+		if (returned <= 0) {
+			return;
+		}
+		LogState s = this.logs.get(key);
+		if (s == null) {
+			LogState n = new LogState();
+			s = this.logs.putIfAbsent(key, n);
+			if (s == null) {
+				s = n;
+			}
+		}
+		s.update(this, requested, returned, bytes, nanos);
+	}
+
+	/**
+	 * What has been learnt about a single log.
+	 */
+	private static class LogState {
+		private int size = INITIAL_ENTRIES;
+		private double bytesPerEntry = -1.0;
+		private double nanosPerEntry = -1.0;
+		private int serverLimit = 0;
+		private int pagesSinceLimit = 0;
+
+		private synchronized int get() {
+			return this.size;
+		}
+
+		private synchronized void update(EntryPageSizer sizer, int requested, int returned, long bytes, long nanos) {
+			this.bytesPerEntry = average(this.bytesPerEntry, (double) bytes / returned);
+			if (nanos >= 0) {
+				this.nanosPerEntry = average(this.nanosPerEntry, (double) nanos / returned);
+			}
+
+			if (returned < requested) {
+				this.serverLimit = (this.serverLimit == 0) ? returned : Math.min(this.serverLimit, returned);
+				this.pagesSinceLimit = 0;
+			} else if (this.serverLimit != 0 && ++this.pagesSinceLimit >= PAGES_BEFORE_PROBE) {
+				this.serverLimit = 0;
+			}
+
+			double want = sizer.targetBytes / Math.max(1.0, this.bytesPerEntry);
+			if (this.nanosPerEntry > 0.0) {
+				want = Math.min(want, sizer.targetNanos / this.nanosPerEntry);
+			}
+			// a full page only says that a page twice its size is reasonable, which stops pages fetched together compounding
+			long next = Math.round(Math.max(this.size / 2.0, Math.min(Math.max(this.size, requested * 2.0), want)));
+			if (this.serverLimit != 0) {
+				next = Math.min(next, this.serverLimit);
+			}
+			this.size = (int) Math.max(sizer.minEntries, Math.min(sizer.maxEntries, next));
+		}
+
+		private static double average(double avg, double sample) {
+			return (avg < 0.0) ? sample : (WEIGHT * sample) + ((1.0 - WEIGHT) * avg);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Policy for hedging read requests, set on a client with {@link ContinusecClient#setHedgingPolicy(HedgingPolicy)}:
+ * <pre>{@code
+ * HedgingPolicy hedging = new HedgingPolicy();
+ * hedging.setPercentile(95.0);
+ * client.setHedgingPolicy(hedging);
+ * }</pre>
+ * <p>
+ * If a GET request has not completed within a delay, a second identical request is sent. Whichever
+ * completes successfully first is used, and the other is cancelled by closing its connection. The delay is the configured
+ * percentile of recently observed latencies for the same {@link Operation}, bounded by a minimum and
+ * maximum, so that only the slowest requests (e.g. the slowest 5% for the 95th percentile) are hedged.
+ * Until enough latencies have been observed, the maximum delay is used.
+ * <p>
+ * Hedged requests are run on a dedicated pool of daemon threads, not the client executor (see
+ * {@link ContinusecClient#setExecutor(java.util.concurrent.Executor)}), since the caller waits for them and a bounded
+ * executor could otherwise have every thread waiting for attempts queued behind it. Streamed responses, such as batches read by {@link LogEntryIterator}, are not hedged.
+ */
+public class HedgingPolicy {
+	private static final int WINDOW_SIZE = 1000;
+	private static final int MIN_SAMPLES = 20;
+
+	private volatile double percentile = 95.0;
+	private volatile long minDelayMillis = 10;
+	private volatile long maxDelayMillis = 1000;
+
+	private EnumMap<Operation,LatencyWindow> windows = new EnumMap<Operation,LatencyWindow>(Operation.class);
+
+	private AtomicLong hedgesIssued = new AtomicLong();
+	private AtomicLong hedgesWon = new AtomicLong();
+
+	/**
+	 * Create a hedging policy with the default settings: hedge at the 95th percentile, with a delay
+	 * of between 10 milliseconds and 1 second.
+	 */
+	public HedgingPolicy() {
+		for (Operation op : Operation.values()) {
+			this.windows.put(op, new LatencyWindow());
+		}
+	}
+
+	/**
+	 * Set the percentile of observed latency after which a hedge request is sent.
+	 * @param percentile the percentile, greater than 0 and less than 100.
+	 */
+	public void setPercentile(double percentile) {
+		if (percentile <= 0.0 || percentile >= 100.0) {
+			throw new IllegalArgumentException();
+		}
+		this.percentile = percentile;
+	}
+
+	/**
+	 * Set bounds on the delay before a hedge request is sent.
+	 * @param minDelayMillis the minimum delay.
+	 * @param maxDelayMillis the maximum delay, also used until enough latencies have been observed.
+	 */
+	public void setDelayBounds(long minDelayMillis, long maxDelayMillis) {
+		if (minDelayMillis < 0 || maxDelayMillis < minDelayMillis) {
+			throw new IllegalArgumentException();
+		}
+		this.minDelayMillis = minDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Get the number of hedge requests sent.
+	 * @return the number of hedges issued.
+	 */
+	public long getHedgesIssued() {
+		return this.hedgesIssued.get();
+	}
+
+	/**
+	 * Get the number of times the hedge request completed before the original request.
+	 * @return the number of hedges won.
+	 */
+	public long getHedgesWon() {
+		return this.hedgesWon.get();
+	}
+
+	/**
+	 * Get the current delay after which a request for an operation is hedged.
+	 * @param op the operation.
+	 * @return the delay in milliseconds.
+	 */
+	public long getDelayMillis(Operation op) {
+		long rv = this.windows.get(op).percentileMillis(this.percentile);
+		if (rv < 0) {
+			return this.maxDelayMillis;
+		}
+		return Math.max(this.minDelayMillis, Math.min(this.maxDelayMillis, rv));
+	}
+
+	/**
+	 * Package private method to determine whether a request may be hedged.
+	 * @param method the HTTP method.
+	 * @return true for GET requests.
+	 */
+	protected boolean isHedgeable(String method) {
+		return method.equals("GET");
+	}
+
+	/**
+	 * Package private method to record the latency of a successful request.
+	 * @param op the operation.
+	 * @param nanos the latency in nanoseconds.
+	 */
+	protected void recordLatency(Operation op, long nanos) {
+		this.windows.get(op).add(nanos / 1000000L);
+	}
+
+	/**
+	 * Package private method called when a hedge request is sent.
+	 */
+	protected void onHedgeIssued() {
+		this.hedgesIssued.incrementAndGet();
+	}
+
+	/**
+	 * Package private method called when a hedge request completes first.
+	 */
+	protected void onHedgeWon() {
+		this.hedgesWon.incrementAndGet();
+	}
+
+	/**
+	 * Ring buffer of the most recent latencies for an operation.
+	 */
+	private static class LatencyWindow {
+		private long[] samples = new long[WINDOW_SIZE];
+		private int count = 0;
+		private int next = 0;
+
+		// sorting the window for every request is wasteful, so only recalculate after some new samples
+		private int addedSinceCalc = 0;
+		private double calcPercentile = -1.0;
+		private long calcResult = -1;
+
+		private synchronized void add(long millis) {
+			this.samples[this.next] = millis;
+			this.next = (this.next + 1) % this.samples.length;
+			if (this.count < this.samples.length) {
+				this.count++;
+			}
+			this.addedSinceCalc++;
+		}
+
+		private synchronized long percentileMillis(double p) {
+			if (this.count < MIN_SAMPLES) {
+				return -1;
+			}
+			if (p != this.calcPercentile || this.addedSinceCalc >= MIN_SAMPLES) {
+				long[] sorted = Arrays.copyOf(this.samples, this.count);
+				Arrays.sort(sorted);
+				int idx = (int) Math.ceil((p / 100.0) * sorted.length) - 1;
+				this.calcResult = sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+				this.calcPercentile = p;
+				this.addedSinceCalc = 0;
+			}
+			return this.calcResult;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.MalformedURLException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import java.time.Duration;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Transport} implementation based on {@link HttpClient} that multiplexes concurrent requests as
+ * HTTP/2 streams over a small number of connections:
+ * <pre>{@code
+ * ContinusecClient client = new ContinusecClient("your account number", "your secret key", "https://api.continusec.com", new Http2Transport(200));
+ * }</pre>
+ * <p>
+ * HTTP/2 is negotiated via ALPN for https URLs, and via an {@code h2c} upgrade for plain http URLs. If the
+ * server only speaks HTTP/1.1, requests are sent as HTTP/1.1 instead, with connections pooled by the underlying
+ * client. The number of requests in flight at once is bounded by the maximum concurrent streams setting, with
+ * further callers waiting for a stream to become available. Response bodies are streamed, and hold their
+ * stream until read to the end or closed.
+ */
+public class Http2Transport implements Transport {
+	/**
+	 * Default maximum number of concurrent streams, the minimum value recommended by RFC 7540.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+	private HttpClient httpClient;
+	private Semaphore streams;
+	private int maxConcurrentStreams;
+	private Duration requestTimeout = null;
+
+	private AtomicLong http2Count = new AtomicLong();
+	private AtomicLong http11Count = new AtomicLong();
+	private AtomicLong failureCount = new AtomicLong();
+
+	/**
+	 * Create a transport with the default maximum concurrent streams.
+	 */
+	public Http2Transport() {
+		this(DEFAULT_MAX_CONCURRENT_STREAMS);
+	}
+
+	/**
+	 * Create a transport with a custom maximum number of concurrent streams.
+	 * @param maxConcurrentStreams the maximum number of requests in flight at once.
+	 */
+	public Http2Transport(int maxConcurrentStreams) {
+		this(maxConcurrentStreams, HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).followRedirects(HttpClient.Redirect.NEVER).build());
+	}
+
+	/**
+	 * Create a transport using an existing, pre-configured, HttpClient.
+	 * @param maxConcurrentStreams the maximum number of requests in flight at once.
+	 * @param httpClient the client to send requests with.
+	 */
+	public Http2Transport(int maxConcurrentStreams, HttpClient httpClient) {
+		if (maxConcurrentStreams < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.maxConcurrentStreams = maxConcurrentStreams;
+		this.streams = new Semaphore(maxConcurrentStreams, true);
+		this.httpClient = httpClient;
+	}
+
+	/**
+	 * Set a timeout applied to each request, from sending until the response headers are received.
+	 * @param millis the timeout in milliseconds, or zero (the default) for no timeout.
+	 */
+	public void setRequestTimeout(long millis) {
+		this.requestTimeout = (millis > 0) ? Duration.ofMillis(millis) : null;
+	}
+
+	/**
+	 * Send a request, waiting for a stream to become available if the maximum is already in flight.
+	 * @param request the request to send.
+	 * @return the status code, body and headers.
+	 * @throws IOException upon any network error.
+	 */
+	public ResponseData send(TransportRequest request) throws IOException {
+		HttpRequest.Builder b;
+		try {
+			b = HttpRequest.newBuilder(new URI(request.getURL()));
+		} catch (URISyntaxException e) {
+			throw new MalformedURLException(e.getMessage());
+		}
+
+		if (request.hasBody() && request.getData() != null) {
+			b.method(request.getMethod(), HttpRequest.BodyPublishers.ofByteArray(request.getData()));
+		} else {
+			b.method(request.getMethod(), HttpRequest.BodyPublishers.noBody());
+		}
+
+		String[][] headers = request.getHeaders();
+		if (headers != null) {
+			for (int i = 0; i < headers.length; i++) {
+				b.header(headers[i][0], headers[i][1]);
+			}
+		}
+		if (this.requestTimeout != null) {
+			b.timeout(this.requestTimeout);
+		}
+
+		if (request.isAborted()) {
+			throw new InterruptedIOException("Request aborted");
+		}
+		try {
+			this.streams.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		final Semaphore permits = this.streams;
+		try {
+			HttpResponse<InputStream> resp = this.httpClient.send(b.build(), HttpResponse.BodyHandlers.ofInputStream());
+			if (resp.version() == HttpClient.Version.HTTP_2) {
+				this.http2Count.incrementAndGet();
+			} else {
+				this.http11Count.incrementAndGet();
+			}
+			// before the response, aborting interrupts the sending thread, which cancels the exchange
+			final InputStream body = resp.body();
+			request.setAbortHandler(() -> {
+				try {
+					body.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			});
+			return new ResponseData(resp.statusCode(), new ReleasingInputStream(body, () -> permits.release()), resp.headers().map());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.failureCount.incrementAndGet();
+			permits.release();
+			throw new InterruptedIOException();
+		} catch (IOException e) {
+			this.failureCount.incrementAndGet();
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the maximum number of concurrent streams.
+	 * @return the maximum number of requests in flight at once.
+	 */
+	public int getMaxConcurrentStreams() {
+		return this.maxConcurrentStreams;
+	}
+
+	/**
+	 * Get the number of streams currently in use.
+	 * @return the number of requests in flight.
+	 */
+	public int getActiveStreams() {
+		return this.maxConcurrentStreams - this.streams.availablePermits();
+	}
+
+	/**
+	 * Get the number of responses received over HTTP/2.
+	 * @return the number of HTTP/2 responses.
+	 */
+	public long getHttp2ResponseCount() {
+		return this.http2Count.get();
+	}
+
+	/**
+	 * Get the number of responses received over HTTP/1.1, for example because the server does not support HTTP/2.
+	 * @return the number of HTTP/1.1 responses.
+	 */
+	public long getHttp11ResponseCount() {
+		return this.http11Count.get();
+	}
+
+	/**
+	 * Get the number of requests that failed with a network error.
+	 * @return the number of failed requests.
+	 */
+	public long getFailureCount() {
+		return this.failureCount.get();
+	}
+}
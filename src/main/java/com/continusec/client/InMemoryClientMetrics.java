@@ -0,0 +1,295 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simple {@link ClientMetrics} implementation that keeps counters and latency histograms in memory for each {@link Operation}:
+ * <pre>{@code
+ * InMemoryClientMetrics metrics = new InMemoryClientMetrics();
+ * client.setMetrics(metrics);
+ * ...
+ * long p99 = metrics.getRequestLatency(Operation.LOG_ADD).getPercentileMicros(99.0);
+ * for (Map.Entry<String,Long> e : metrics.getCounters().entrySet()) {
+ *     System.out.println(e.getKey() + " " + e.getValue());
+ * }
+ * }</pre>
+ */
+public class InMemoryClientMetrics implements ClientMetrics {
+	private EnumMap<Operation,OperationMetrics> ops = new EnumMap<Operation,OperationMetrics>(Operation.class);
+
+	private AtomicLong pageCount = new AtomicLong();
+	private AtomicLong shortPageCount = new AtomicLong();
+	private AtomicLong lastPageSize = new AtomicLong();
+	private AtomicLong minPageSize = new AtomicLong(Long.MAX_VALUE);
+	private AtomicLong maxPageSize = new AtomicLong();
+
+	/**
+	 * Create an empty set of metrics.
+	 */
+	public InMemoryClientMetrics() {
+		for (Operation op : Operation.values()) {
+			this.ops.put(op, new OperationMetrics());
+		}
+	}
+
+	/**
+	 * Record a completed request.
+	 * @param op the operation the request was made for.
+	 * @param method the HTTP method.
+	 * @param statusCode the HTTP status code.
+	 * @param nanos the time taken, in nanoseconds.
+	 * @param bytesOnWire the number of body bytes read from the network.
+	 * @param bytesDecoded the number of body bytes after decompression.
+	 */
+	public void requestCompleted(Operation op, String method, int statusCode, long nanos, long bytesOnWire, long bytesDecoded) {
+		OperationMetrics m = this.ops.get(op);
+		m.requestLatency.recordNanos(nanos);
+		m.bytesOnWire.addAndGet(bytesOnWire);
+		m.bytesDecoded.addAndGet(bytesDecoded);
+		increment(m.statusCounts, Integer.toString(statusCode));
+	}
+
+	/**
+	 * Record a failed attempt.
+	 * @param op the operation the request was made for.
+	 * @param method the HTTP method.
+	 * @param e the exception that the attempt failed with.
+	 * @param nanos the time taken, in nanoseconds.
+	 */
+	public void requestFailed(Operation op, String method, ContinusecException e, long nanos) {
+		increment(this.ops.get(op).errorCounts, e.getClass().getSimpleName());
+	}
+
+	/**
+	 * Record a proof verification.
+	 * @param op the operation that fetched the proof.
+	 * @param nanos the time taken, in nanoseconds.
+	 * @param verified true if the proof verified successfully.
+	 */
+	public void verificationCompleted(Operation op, long nanos, boolean verified) {
+		OperationMetrics m = this.ops.get(op);
+		m.verificationLatency.recordNanos(nanos);
+		if (!verified) {
+			m.verificationFailures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record a page of log entries read.
+	 * @param requested the number of entries asked for.
+	 * @param returned the number of entries the server returned.
+	 * @param bytes the size of the response body after decompression.
+	 * @param nanos the time taken, in nanoseconds, or -1 if not known.
+	 */
+	public void entriesPageCompleted(int requested, int returned, long bytes, long nanos) {
+		this.pageCount.incrementAndGet();
+		if (returned < requested) {
+			this.shortPageCount.incrementAndGet();
+		}
+		this.lastPageSize.set(requested);
+		this.minPageSize.accumulateAndGet(requested, Math::min);
+		this.maxPageSize.accumulateAndGet(requested, Math::max);
+	}
+
+	/**
+	 * Get the latency histogram for completed requests for an operation.
+	 * @param op the operation.
+	 * @return the histogram.
+	 */
+	public LatencyHistogram getRequestLatency(Operation op) {
+		return this.ops.get(op).requestLatency;
+	}
+
+	/**
+	 * Get the latency histogram for proof verification for an operation.
+	 * @param op the operation.
+	 * @return the histogram.
+	 */
+	public LatencyHistogram getVerificationLatency(Operation op) {
+		return this.ops.get(op).verificationLatency;
+	}
+
+	/**
+	 * Get the number of responses received with a given status code for an operation.
+	 * @param op the operation.
+	 * @param statusCode the HTTP status code.
+	 * @return the number of responses.
+	 */
+	public long getStatusCount(Operation op, int statusCode) {
+		AtomicLong rv = this.ops.get(op).statusCounts.get(Integer.toString(statusCode));
+		return (rv == null) ? 0 : rv.get();
+	}
+
+	/**
+	 * Get the number of attempts that failed with a given exception type for an operation.
+	 * @param op the operation.
+	 * @param type the exception class, e.g. {@code InternalErrorException.class}.
+	 * @return the number of failed attempts.
+	 */
+	public long getErrorCount(Operation op, Class<? extends ContinusecException> type) {
+		AtomicLong rv = this.ops.get(op).errorCounts.get(type.getSimpleName());
+		return (rv == null) ? 0 : rv.get();
+	}
+
+	/**
+	 * Get the number of body bytes read from the network for an operation.
+	 * @param op the operation.
+	 * @return the number of bytes.
+	 */
+	public long getBytesOnWire(Operation op) {
+		return this.ops.get(op).bytesOnWire.get();
+	}
+
+	/**
+	 * Get the number of body bytes after decompression for an operation.
+	 * @param op the operation.
+	 * @return the number of bytes.
+	 */
+	public long getBytesDecoded(Operation op) {
+		return this.ops.get(op).bytesDecoded.get();
+	}
+
+	/**
+	 * Get the number of proofs fetched by an operation that failed to verify.
+	 * @param op the operation.
+	 * @return the number of failed verifications.
+	 */
+	public long getVerificationFailures(Operation op) {
+		return this.ops.get(op).verificationFailures.get();
+	}
+
+	/**
+	 * Get the number of pages of log entries read from the server.
+	 * @return the number of pages.
+	 */
+	public long getEntriesPageCount() {
+		return this.pageCount.get();
+	}
+
+	/**
+	 * Get the number of pages of log entries for which the server returned fewer entries than asked for.
+	 * @return the number of short pages.
+	 */
+	public long getEntriesShortPageCount() {
+		return this.shortPageCount.get();
+	}
+
+	/**
+	 * Get the number of entries asked for in the most recent page of log entries.
+	 * @return the page size, or 0 if no pages have been read.
+	 */
+	public long getEntriesLastPageSize() {
+		return this.lastPageSize.get();
+	}
+
+	/**
+	 * Get the smallest number of entries asked for in a page of log entries.
+	 * @return the page size, or 0 if no pages have been read.
+	 */
+	public long getEntriesMinPageSize() {
+		return (this.pageCount.get() == 0) ? 0 : this.minPageSize.get();
+	}
+
+	/**
+	 * Get the largest number of entries asked for in a page of log entries.
+	 * @return the page size, or 0 if no pages have been read.
+	 */
+	public long getEntriesMaxPageSize() {
+		return this.maxPageSize.get();
+	}
+
+	/**
+	 * Get a snapshot of all non-zero counters, named by operation tag, e.g. "log.add.requests", "log.add.status.200",
+	 * "log.add.error.InternalErrorException", "log.add.bytes.wire", "log.add.latency.p99_us", "log.inclusion.verify.failed",
+	 * and for pages of log entries "log.entries.page.count", "log.entries.page.short" and "log.entries.page.size.last" (also ".min" and ".max").
+	 * @return a map of counter names to values, sorted by name.
+	 */
+	public Map<String,Long> getCounters() {
+		TreeMap<String,Long> rv = new TreeMap<String,Long>();
+		if (this.pageCount.get() > 0) {
+			String tag = Operation.LOG_ENTRIES.getTag() + ".page";
+			rv.put(tag + ".count", this.pageCount.get());
+			rv.put(tag + ".short", this.shortPageCount.get());
+			rv.put(tag + ".size.last", this.getEntriesLastPageSize());
+			rv.put(tag + ".size.min", this.getEntriesMinPageSize());
+			rv.put(tag + ".size.max", this.getEntriesMaxPageSize());
+		}
+		for (Map.Entry<Operation,OperationMetrics> e : this.ops.entrySet()) {
+			String tag = e.getKey().getTag();
+			OperationMetrics m = e.getValue();
+			addHistogram(rv, tag + ".latency", m.requestLatency);
+			addHistogram(rv, tag + ".verify.latency", m.verificationLatency);
+			for (Map.Entry<String,AtomicLong> s : m.statusCounts.entrySet()) {
+				rv.put(tag + ".status." + s.getKey(), s.getValue().get());
+			}
+			for (Map.Entry<String,AtomicLong> s : m.errorCounts.entrySet()) {
+				rv.put(tag + ".error." + s.getKey(), s.getValue().get());
+			}
+			if (m.requestLatency.getCount() > 0) {
+				rv.put(tag + ".requests", m.requestLatency.getCount());
+				rv.put(tag + ".bytes.wire", m.bytesOnWire.get());
+				rv.put(tag + ".bytes.decoded", m.bytesDecoded.get());
+			}
+			if (m.verificationFailures.get() > 0) {
+				rv.put(tag + ".verify.failed", m.verificationFailures.get());
+			}
+		}
+		return rv;
+	}
+
+	private static void addHistogram(Map<String,Long> rv, String prefix, LatencyHistogram h) {
+		if (h.getCount() == 0) {
+			return;
+		}
+		rv.put(prefix + ".count", h.getCount());
+		rv.put(prefix + ".p50_us", h.getPercentileMicros(50.0));
+		rv.put(prefix + ".p90_us", h.getPercentileMicros(90.0));
+		rv.put(prefix + ".p99_us", h.getPercentileMicros(99.0));
+		rv.put(prefix + ".max_us", h.getMaxMicros());
+	}
+
+	private static void increment(ConcurrentHashMap<String,AtomicLong> counts, String key) {
+		AtomicLong c = counts.get(key);
+		if (c == null) {
+			AtomicLong n = new AtomicLong();
+			c = counts.putIfAbsent(key, n);
+			if (c == null) {
+				c = n;
+			}
+		}
+		c.incrementAndGet();
+	}
+
+	/**
+	 * Metrics for a single operation.
+	 */
+	private static class OperationMetrics {
+		private LatencyHistogram requestLatency = new LatencyHistogram();
+		private LatencyHistogram verificationLatency = new LatencyHistogram();
+		private ConcurrentHashMap<String,AtomicLong> statusCounts = new ConcurrentHashMap<String,AtomicLong>();
+		private ConcurrentHashMap<String,AtomicLong> errorCounts = new ConcurrentHashMap<String,AtomicLong>();
+		private AtomicLong bytesOnWire = new AtomicLong();
+		private AtomicLong bytesDecoded = new AtomicLong();
+		private AtomicLong verificationFailures = new AtomicLong();
+	}
+}
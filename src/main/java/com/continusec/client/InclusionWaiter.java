@@ -0,0 +1,332 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks many leaves until each is included in a log, returned by {@link VerifiableLog#openInclusionWaiter(int)}:
+ * <pre>{@code
+ * try (InclusionWaiter waiter = log.openInclusionWaiter(16)) {
+ *     for (AddEntryResponse aer : responses) {
+ *         waiter.waitFor(aer).thenAccept(head -> ...);
+ *     }
+ *     ...
+ * }
+ * }</pre>
+ * <p>
+ * Rather than each leaf polling on its own as {@link VerifiableLog#blockUntilPresent(MerkleTreeLeaf)} does, a single
+ * background thread polls the tree head for all of them. Each time the tree size grows, every pending leaf is checked
+ * against the new tree head, with up to a maximum number of inclusion proof requests in flight at once, and the future
+ * for each leaf found is completed with the tree head it was proven against. Leaves added since the last check are also
+ * checked against the latest tree head. As with {@link VerifiableLog#blockUntilPresent(MerkleTreeLeaf)}, the tree heads
+ * returned are not verified for consistency.
+ * <p>
+ * While the tree size does not change, the interval between polls doubles, up to a maximum; it returns to the minimum
+ * each time the tree size grows. The poll stops while there are no pending leaves, and sleeps are cut short when the
+ * waiter is closed. A {@link PendingAddEntry} may be passed straight away, and is checked as soon as its leaf hash is
+ * known. Cancelling the future for a leaf stops it being checked.
+ * <p>
+ * A failure to fetch the tree head such as {@link ContinusecNetworkException} or {@link InternalErrorException} is retried
+ * at the next poll; any other failure, such as {@link ObjectNotFoundException} for a log that does not exist, fails every
+ * pending leaf.
+ */
+public class InclusionWaiter implements AutoCloseable {
+	private VerifiableLog log;
+	private int maxInFlight;
+
+	private volatile long minPollMillis = 100;
+	private volatile long maxPollMillis = 5000;
+
+	private LinkedHashSet<Pending> pending = new LinkedHashSet<Pending>();
+	private LogTreeHead latest = null;
+	private boolean closed = false;
+	private Thread poller;
+
+	private AtomicLong pollCount = new AtomicLong();
+	private AtomicLong proofCount = new AtomicLong();
+
+	/**
+	 * A leaf being waited for.
+	 */
+	private static class Pending {
+		private CompletableFuture<byte[]> leafHash;
+		private CompletableFuture<LogTreeHead> result = new CompletableFuture<LogTreeHead>();
+		// the largest tree size the leaf is known not to be included in
+		private volatile int checkedSize = -1;
+
+		private Pending(CompletableFuture<byte[]> leafHash) {
+			this.leafHash = leafHash;
+		}
+	}
+
+	/**
+	 * Package private constructor. Use {@link VerifiableLog#openInclusionWaiter(int)} to instantiate.
+	 * @param log the log the leaves are added to.
+	 * @param maxInFlight the maximum number of inclusion proof requests in flight at once.
+	 */
+	protected InclusionWaiter(VerifiableLog log, int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.log = log;
+		this.maxInFlight = maxInFlight;
+		this.poller = new Thread(this::poll, "continusec-inclusion-waiter");
+		this.poller.setDaemon(true);
+		this.poller.start();
+	}
+
+	/**
+	 * Set bounds on the interval between polls of the tree head.
+	 * @param minPollMillis the interval after the tree size grows.
+	 * @param maxPollMillis the longest interval, reached while the tree size does not change.
+	 */
+	public void setPollInterval(long minPollMillis, long maxPollMillis) {
+		if (minPollMillis < 1 || maxPollMillis < minPollMillis) {
+			throw new IllegalArgumentException();
+		}
+		this.minPollMillis = minPollMillis;
+		this.maxPollMillis = maxPollMillis;
+	}
+
+	/**
+	 * Wait for a leaf to be included in the log.
+	 * @param leaf the leaf, typically an {@link AddEntryResponse} or {@link PendingAddEntry}.
+	 * @return a future for the first tree head found to include the leaf.
+	 */
+	public CompletableFuture<LogTreeHead> waitFor(MerkleTreeLeaf leaf) {
+		CompletableFuture<byte[]> leafHash;
+		if (leaf instanceof PendingAddEntry) {
+			leafHash = ((PendingAddEntry) leaf).getLeafHashAsync();
+		} else {
+			try {
+				leafHash = CompletableFuture.completedFuture(leaf.getLeafHash());
+			} catch (ContinusecException e) {
+				leafHash = new CompletableFuture<byte[]>();
+				leafHash.completeExceptionally(e);
+			}
+		}
+
+		Pending p = new Pending(leafHash);
+		synchronized (this) {
+			if (this.closed) {
+				throw new IllegalStateException("Waiter is closed");
+			}
+			this.pending.add(p);
+			this.notifyAll();
+		}
+		leafHash.whenComplete((h, err) -> {
+			if (err != null) {
+				p.result.completeExceptionally(err);
+			}
+		});
+		return p.result;
+	}
+
+	/**
+	 * Stop polling. The futures for any leaves still pending are cancelled.
+	 */
+	public void close() {
+		ArrayList<Pending> rv;
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			rv = new ArrayList<Pending>(this.pending);
+			this.pending.clear();
+			this.notifyAll();
+		}
+		for (Pending p : rv) {
+			p.result.cancel(false);
+		}
+	}
+
+	/**
+	 * Get the number of leaves not yet found to be included.
+	 * @return the number of pending leaves.
+	 */
+	public synchronized int getPendingCount() {
+		this.removeDone();
+		return this.pending.size();
+	}
+
+	/**
+	 * Get the latest tree head seen by the poll.
+	 * @return the latest tree head, or null if not yet polled.
+	 */
+	public synchronized LogTreeHead getLatestTreeHead() {
+		return this.latest;
+	}
+
+	/**
+	 * Get the number of times the tree head has been fetched.
+	 * @return the number of polls.
+	 */
+	public long getPollCount() {
+		return this.pollCount.get();
+	}
+
+	/**
+	 * Get the number of inclusion proofs requested.
+	 * @return the number of inclusion proof requests.
+	 */
+	public long getProofCount() {
+		return this.proofCount.get();
+	}
+
+	/**
+	 * Body of the poll thread.
+	 */
+	private void poll() {
+		long sleepMillis = this.minPollMillis;
+		int lastSize = -1;
+		while (true) {
+			synchronized (this) {
+				try {
+					while (!this.closed && this.removeDone()) {
+						this.wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (this.closed) {
+					return;
+				}
+			}
+
+			try {
+				LogTreeHead head = this.log.getUncachedTreeHead();
+				this.pollCount.incrementAndGet();
+				synchronized (this) {
+					this.latest = head;
+				}
+				if (head.getTreeSize() > lastSize) {
+					lastSize = head.getTreeSize();
+					sleepMillis = this.minPollMillis;
+				} else {
+					sleepMillis = Math.min(this.maxPollMillis, sleepMillis * 2);
+				}
+				this.check(head);
+			} catch (ContinusecNetworkException | InternalErrorException | RateLimitExceededException e) {
+				// try again at the next poll
+				sleepMillis = Math.min(this.maxPollMillis, sleepMillis * 2);
+			} catch (ContinusecException e) {
+				this.failAll(e);
+			} catch (RuntimeException e) {
+				// unexpected, so fail the current waiters rather than end the poll and leave them hanging
+				Throwable cause = (e instanceof CompletionException && e.getCause() instanceof Exception) ? e.getCause() : e;
+				this.failAll((cause instanceof ContinusecException) ? (ContinusecException) cause : new ContinusecException((Exception) cause));
+			}
+
+			if (!this.sleep(sleepMillis)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Check each pending leaf with a known leaf hash that has not already been checked against this tree size.
+	 */
+	private void check(LogTreeHead head) {
+		if (head.getTreeSize() == 0) {
+			return;
+		}
+		ArrayList<Pending> todo = new ArrayList<Pending>();
+		synchronized (this) {
+			this.removeDone();
+			for (Pending p : this.pending) {
+				if (p.checkedSize < head.getTreeSize() && p.leafHash.isDone() && !p.leafHash.isCompletedExceptionally()) {
+					todo.add(p);
+				}
+			}
+		}
+
+		for (int i = 0; i < todo.size(); i += this.maxInFlight) {
+			ArrayList<CompletableFuture<Void>> batch = new ArrayList<CompletableFuture<Void>>();
+			for (Pending p : todo.subList(i, Math.min(todo.size(), i + this.maxInFlight))) {
+				this.proofCount.incrementAndGet();
+				final byte[] lh = p.leafHash.join();
+				batch.add(this.log.verifyInclusionAsync(head, () -> lh).handle((v, err) -> {
+					Throwable cause = (err instanceof CompletionException) ? err.getCause() : err;
+					if (cause == null) {
+						p.result.complete(head);
+					} else if (cause instanceof InvalidRangeException) {
+						// not included yet
+						p.checkedSize = head.getTreeSize();
+					} else if (cause instanceof VerificationFailedException) {
+						p.result.completeExceptionally(cause);
+					}
+					// else a failure such as a network error, so check again at the next poll
+					return null;
+				}));
+			}
+			CompletableFuture.allOf(batch.toArray(new CompletableFuture<?>[batch.size()])).join();
+			synchronized (this) {
+				if (this.closed) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void failAll(ContinusecException e) {
+		ArrayList<Pending> rv;
+		synchronized (this) {
+			rv = new ArrayList<Pending>(this.pending);
+			this.pending.clear();
+		}
+		for (Pending p : rv) {
+			p.result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Sleep until the next poll, returning early if closed.
+	 * @return false if closed.
+	 */
+	private synchronized boolean sleep(long millis) {
+		long deadline = System.currentTimeMillis() + millis;
+		try {
+			for (long now = System.currentTimeMillis(); now < deadline && !this.closed; now = System.currentTimeMillis()) {
+				this.wait(deadline - now);
+			}
+		} catch (InterruptedException e) {
+			return false;
+		}
+		return !this.closed;
+	}
+
+	/**
+	 * Remove leaves that are found, failed or cancelled.
+	 * @return true if no leaves are pending.
+	 */
+	private boolean removeDone() {
+		Iterator<Pending> it = this.pending.iterator();
+		while (it.hasNext()) {
+			if (it.next().result.isDone()) {
+				it.remove();
+			}
+		}
+		return this.pending.isEmpty();
+	}
+}
@@ -0,0 +1,37 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.io.IOException;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Package private interface for reading a known response shape token by token, without
+ * building an intermediate tree. See {@link ContinusecClient#makeJsonRequest(Operation,String,String,byte[],String[][],JsonResponseReader)}.
+ * @param <T> the type of object produced.
+ */
+interface JsonResponseReader<T> {
+	/**
+	 * Read a value from the reader, which is positioned at the start of the response.
+	 * @param r the reader.
+	 * @return the value read.
+	 * @throws IOException upon error reading or parsing the response.
+	 * @throws ContinusecException if the response is invalid.
+	 */
+	public T read(JsonReader r) throws IOException, ContinusecException;
+}
@@ -0,0 +1,133 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, with buckets that grow exponentially in size (in the style of HdrHistogram),
+ * so that any value up to about 100 days is recorded with a relative error of under 2% in a fixed amount of memory.
+ * Recording is lock free and safe to call from many threads at once.
+ */
+public class LatencyHistogram {
+	// values below 2^(SUB_BITS + 1) get a bucket each, then each power of two is split into 2^SUB_BITS buckets
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int MAX_SHIFT = 36;
+	private static final long MAX_VALUE = (2L * SUB_COUNT << MAX_SHIFT) - 1;
+
+	private AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * SUB_COUNT);
+	private AtomicLong count = new AtomicLong();
+	private AtomicLong total = new AtomicLong();
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Create an empty histogram.
+	 */
+	public LatencyHistogram() {
+	}
+
+	/**
+	 * Record a latency.
+	 * @param nanos the latency in nanoseconds.
+	 */
+	public void recordNanos(long nanos) {
+		this.record(nanos / 1000L);
+	}
+
+	/**
+	 * Record a latency.
+	 * @param micros the latency in microseconds.
+	 */
+	public void record(long micros) {
+		long v = Math.max(0, Math.min(MAX_VALUE, micros));
+		this.counts.incrementAndGet(bucketFor(v));
+		this.count.incrementAndGet();
+		this.total.addAndGet(v);
+		long m = this.max.get();
+		while (v > m && !this.max.compareAndSet(m, v)) {
+			m = this.max.get();
+		}
+	}
+
+	/**
+	 * Get the number of values recorded.
+	 * @return the count.
+	 */
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * Get the mean of the values recorded.
+	 * @return the mean in microseconds, or 0 if none have been recorded.
+	 */
+	public double getMeanMicros() {
+		long n = this.count.get();
+		return (n == 0) ? 0.0 : ((double) this.total.get()) / n;
+	}
+
+	/**
+	 * Get the largest value recorded.
+	 * @return the maximum in microseconds.
+	 */
+	public long getMaxMicros() {
+		return this.max.get();
+	}
+
+	/**
+	 * Get the value at or below which the given percentage of recorded values fall.
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the highest value that falls in the same bucket as the percentile, in microseconds, or 0 if none have been recorded.
+	 */
+	public long getPercentileMicros(double percentile) {
+		if (percentile < 0.0 || percentile > 100.0) {
+			throw new IllegalArgumentException();
+		}
+		long n = this.count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil((percentile / 100.0) * n));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			seen += this.counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestInBucket(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	private static int bucketFor(long v) {
+		if (v < 2 * SUB_COUNT) {
+			return (int) v;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(v)) - SUB_BITS;
+		return (shift * SUB_COUNT) + (int) (v >> shift);
+	}
+
+	private static long highestInBucket(int i) {
+		if (i < 2 * SUB_COUNT) {
+			return i;
+		}
+		int shift = (i / SUB_COUNT) - 1;
+		long sub = (i % SUB_COUNT) + SUB_COUNT;
+		return (sub << shift) + (1L << shift) - 1;
+	}
+}
@@ -16,33 +16,74 @@
 
 package com.continusec.client;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.DecoderException;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.io.InputStreamReader;
 
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * An iterator for log entries.
+ * An iterator for log entries. Entries are read from the server in large batches, sized by the client's
+ * {@link EntryPageSizer} to suit the entries in the log. By default, while one batch is consumed the following
+ * batches are requested and parsed in the background, up to the number set by
+ * {@link ContinusecClient#setEntriesReadAhead(int)}, so that at most that many batches plus one are held in memory.
+ * With read-ahead disabled, each batch is only requested once needed and parsed as it streams in, so only one entry at
+ * a time is held in memory (unless the client has a {@link ResponseCache}, in which case each batch is read into memory
+ * so that it can be cached). If iteration is abandoned part way through, {@link #close()} should be called to release
+ * the underlying connection and abort any batches being read ahead.
  */
-public class LogEntryIterator implements Iterator<VerifiableEntry> {
+public class LogEntryIterator implements Iterator<VerifiableEntry>, AutoCloseable {
 	private ContinusecClient client;
 	private String path;
 	private int beginIdx;
 	private int endIdx;
 	private int cursor;
 
-	private JsonArray curArray;
-	private int idxInArray;
+	private ResponseData curResponse;
+	private JsonReader curReader;
+	private int countInPage;
+	private String pageToCache;
+	private int pageSize;
+	private boolean pageEnded;
+	private AtomicLong pageBytes;
+	private long pageNanos;
 
 	private VerifiableEntryFactory factory;
+	private String sizeKey;
+
+	private int readAhead;
+	private ArrayDeque<CompletableFuture<Page>> ahead = new ArrayDeque<CompletableFuture<Page>>();
+	private int nextFetch;
+	private RequestCanceller canceller = ContinusecClient.newRequestCanceller();
+	private Page curPage;
+	private int posInPage;
+
+	/**
+	 * A batch of entries fetched ahead, which may hold fewer entries than requested.
+	 */
+	private static class Page {
+		private int beginIdx;
+		private int endIdx;
+		private ArrayList<VerifiableEntry> entries = new ArrayList<VerifiableEntry>();
 
-	private final static int BATCH = 500;
+		private Page(int beginIdx, int endIdx) {
+			this.beginIdx = beginIdx;
+			this.endIdx = endIdx;
+		}
+	}
 
 	/**
 	 * Package private constructor.
@@ -58,7 +99,10 @@ public class LogEntryIterator implements Iterator<VerifiableEntry> {
 		this.beginIdx = beginIdx;
 		this.endIdx = endIdx;
 		this.cursor = beginIdx;
+		this.nextFetch = beginIdx;
 		this.factory = factory;
+		this.sizeKey = path + factory.getFormat();
+		this.readAhead = client.getEntriesReadAhead();
 	}
 
 	/**
@@ -70,37 +114,314 @@ public class LogEntryIterator implements Iterator<VerifiableEntry> {
 	}
 
 	/**
-	 * Get the next entry - will read from the server in large batches.
+	 * Get the next entry - will read from the server in large batches. If the connection fails part way
+	 * through a batch, and the client has a {@link RetryPolicy} that allows it, a new batch is requested
+	 * starting from this entry.
 	 * @return the next entry.
 	 */
 	public VerifiableEntry next() {
-		try {
-			if ((curArray == null) || (this.idxInArray >= this.curArray.size())) {
-				int tentLast = this.cursor + BATCH;
-				if (tentLast > this.endIdx) {
-					tentLast = this.endIdx;
+		if (!this.hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if (this.readAhead > 0) {
+			try {
+				return this.readNextAhead();
+			} catch (ContinusecException e) {
+				this.close();
+				throw new RuntimeException(e);
+			}
+		}
+		for (int attempt = 1; ; attempt++) {
+			ContinusecException ce;
+			try {
+				return this.readNext();
+			} catch (IllegalStateException e) {
+				this.close();
+				throw new RuntimeException(new InternalErrorException(e));
+			} catch (ContinusecException e) {
+				// requesting the batch itself is already retried by the client
+				this.close();
+				throw new RuntimeException(e);
+			} catch (MalformedJsonException e) {
+				// most often seen when the body is cut short
+				ce = new InternalErrorException(e);
+			} catch (IOException e) {
+				ce = new ContinusecNetworkException(e);
+			}
+
+			this.close();
+			RetryPolicy policy = this.client.getRetryPolicy();
+			if (policy == null || !policy.shouldRetry("GET", ce, attempt)) {
+				throw new RuntimeException(ce);
+			}
+			try {
+				policy.backoff(attempt);
+			} catch (ContinusecException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Read the next entry, requesting a new batch if needed.
+	 * @throws IOException if reading the current batch fails.
+	 * @throws ContinusecException if requesting a batch fails.
+	 */
+	private VerifiableEntry readNext() throws IOException, ContinusecException {
+		while (true) {
+			if (this.curReader == null) {
+				this.openPage();
+			}
+			if (this.curReader.hasNext()) {
+				break;
+			}
+			// end of this page, if it was empty then the server is not returning what we asked for
+			boolean empty = this.countInPage == 0;
+			this.pageEnded = true;
+			this.close();
+			if (empty) {
+				throw new NotAllEntriesReturnedException();
+			}
+		}
+
+		byte[] rv = readLeafData(this.curReader);
+		this.countInPage += 1;
+		this.cursor += 1;
+		if (!this.hasNext()) {
+			this.close();
+		}
+
+		return factory.createFromBytes(rv);
+	}
+
+	/**
+	 * Request the next batch, and position the reader at the start of the entries array.
+	 */
+	private void openPage() throws IOException, ContinusecException {
+		int tentLast = this.cursor + this.client.getEntriesPageSize(this.sizeKey);
+		if (tentLast > this.endIdx) {
+			tentLast = this.endIdx;
+		}
+		String url = this.path + "/entries/" + this.cursor + "-" + tentLast + factory.getFormat();
+		this.countInPage = 0;
+		this.pageSize = tentLast - this.cursor;
+		this.pageEnded = false;
+		this.curResponse = this.client.getCachedResponse(url);
+		if (this.curResponse == null) {
+			long start = System.nanoTime();
+			this.curResponse = this.client.makeStreamingRequest(Operation.LOG_ENTRIES, "GET", url, null, null);
+			this.pageBytes = new AtomicLong();
+			if (this.client.getResponseCache() != null) {
+				// only complete pages are cached, which is not known until the page has been read
+				this.curResponse.buffer();
+				this.pageToCache = url;
+				this.pageBytes.set(this.curResponse.getData().length);
+				this.pageNanos = System.nanoTime() - start;
+				this.curReader = ContinusecClient.createJsonReader(this.curResponse);
+			} else {
+				// read as the entries are consumed, so how long the page takes is not known
+				this.pageNanos = -1;
+				this.curReader = new JsonReader(new InputStreamReader(new ByteCountingInputStream(this.curResponse.getBody(), this.pageBytes), StandardCharsets.UTF_8));
+			}
+		} else {
+			this.curReader = ContinusecClient.createJsonReader(this.curResponse);
+		}
+		openEntries(this.curReader);
+	}
+
+	/**
+	 * Read the next entry from the batches fetched ahead, first topping them up.
+	 * @throws ContinusecException if fetching a batch failed.
+	 */
+	private VerifiableEntry readNextAhead() throws ContinusecException {
+		while (this.curPage == null || this.posInPage == this.curPage.entries.size()) {
+			if (this.curPage != null) {
+				// if the server returned a short batch, the rest of it is needed before those already fetched
+				int end = this.curPage.beginIdx + this.curPage.entries.size();
+				if (end < this.curPage.endIdx) {
+					int size = this.client.getEntriesPageSize(this.sizeKey);
+					ArrayDeque<CompletableFuture<Page>> rest = new ArrayDeque<CompletableFuture<Page>>();
+					for (int b = end; b < this.curPage.endIdx; b += size) {
+						rest.addFirst(this.fetchPage(b, Math.min(b + size, this.curPage.endIdx)));
+					}
+					for (CompletableFuture<Page> f : rest) {
+						this.ahead.addFirst(f);
+					}
+				}
+				this.curPage = null;
+			}
+			while (this.ahead.size() <= this.readAhead && this.nextFetch < this.endIdx) {
+				int end = Math.min(this.nextFetch + this.client.getEntriesPageSize(this.sizeKey), this.endIdx);
+				this.ahead.add(this.fetchPage(this.nextFetch, end));
+				this.nextFetch = end;
+			}
+			try {
+				this.curPage = this.ahead.removeFirst().join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof ContinusecException) {
+					throw (ContinusecException) e.getCause();
 				}
-				String url = this.path + "/entries/" + this.cursor + "-" + tentLast + factory.getFormat();
-				String s = new String(this.client.makeRequest("GET", url, null, null).data, "UTF-8");
-				this.curArray =  new JsonParser().parse(s).getAsJsonObject().getAsJsonArray("entries");
-				this.idxInArray = 0;
+				throw e;
+			}
+			this.posInPage = 0;
+			if (this.curPage.entries.isEmpty()) {
+				throw new NotAllEntriesReturnedException();
 			}
+		}
+
+		// drop each entry once returned, so that memory is held only for those not yet consumed
+		VerifiableEntry rv = this.curPage.entries.set(this.posInPage, null);
+		this.posInPage += 1;
+		this.cursor += 1;
+		if (!this.hasNext()) {
+			this.close();
+		}
+		return rv;
+	}
 
-			if (this.idxInArray < this.curArray.size()) {
-				byte[] rv = Base64.decodeBase64(this.curArray.get(this.idxInArray).getAsJsonObject().get("leaf_data").getAsString());
+	/**
+	 * Start fetching a batch in the background.
+	 */
+	private CompletableFuture<Page> fetchPage(final int begin, final int end) {
+		final RequestCanceller canceller = this.canceller;
+		return this.client.runInBackground(() -> ContinusecClient.runCancellable(canceller, () -> this.readPage(begin, end, canceller)));
+	}
 
-				this.idxInArray += 1;
-				this.cursor += 1;
+	/**
+	 * Fetch and parse a batch, retrying if the connection fails part way through as {@link #next()} does, from the
+	 * first entry not yet parsed.
+	 * @param canceller cancelled once the iterator is closed, after which the batch is no longer wanted.
+	 */
+	private Page readPage(int begin, int end, RequestCanceller canceller) throws ContinusecException {
+		Page p = new Page(begin, end);
+		for (int attempt = 1; ; attempt++) {
+			if (canceller.isCancelled()) {
+				throw new CancellationException();
+			}
+			int from = begin + p.entries.size();
+			String url = this.path + "/entries/" + from + "-" + end + this.factory.getFormat();
+			ContinusecException ce;
+			ResponseData rd = this.client.getCachedResponse(url);
+			boolean cached = (rd != null);
+			AtomicLong bytes = new AtomicLong();
+			boolean toCache = false;
+			int count = 0;
+			try {
+				long start = System.nanoTime();
+				JsonReader r;
+				if (cached) {
+					r = ContinusecClient.createJsonReader(rd);
+				} else {
+					rd = this.client.makeStreamingRequest(Operation.LOG_ENTRIES, "GET", url, null, null);
+					if (this.client.getResponseCache() != null) {
+						// only complete batches are cached, which is not known until the batch has been read
+						rd.buffer();
+						bytes.set(rd.getData().length);
+						toCache = true;
+						r = ContinusecClient.createJsonReader(rd);
+					} else {
+						// parsed as it streams in, so that a batch cut short keeps the entries read before the cut
+						r = new JsonReader(new InputStreamReader(new ByteCountingInputStream(rd.getBody(), bytes), StandardCharsets.UTF_8));
+					}
+				}
+				openEntries(r);
+				while (r.hasNext()) {
+					p.entries.add(this.factory.createFromBytes(readLeafData(r)));
+					count++;
+				}
+				if (!cached) {
+					this.client.entriesPageCompleted(this.sizeKey, end - from, count, bytes.get(), System.nanoTime() - start);
+					if (toCache && count == end - from) {
+						this.client.cacheResponse(url, rd);
+					}
+				}
+				return p;
+			} catch (IllegalStateException e) {
+				throw new InternalErrorException(e);
+			} catch (MalformedJsonException e) {
+				ce = new InternalErrorException(e);
+			} catch (IOException e) {
+				ce = new ContinusecNetworkException(e);
+			} finally {
+				if (rd != null) {
+					rd.close();
+				}
+			}
 
-				return factory.createFromBytes(rv);
+			// every entry asked for was read before the body was cut
+			if (begin + p.entries.size() == end) {
+				return p;
+			}
+			RetryPolicy policy = this.client.getRetryPolicy();
+			if (policy == null || !policy.shouldRetry("GET", ce, attempt)) {
+				throw ce;
+			}
+			policy.backoff(attempt);
+		}
+	}
+
+	/**
+	 * Position a reader at the start of the entries array of a batch.
+	 */
+	private static void openEntries(JsonReader r) throws IOException, ContinusecException {
+		r.beginObject();
+		while (r.hasNext()) {
+			if (r.nextName().equals("entries")) {
+				r.beginArray();
+				return;
+			}
+			r.skipValue();
+		}
+		throw new NotAllEntriesReturnedException();
+	}
+
+	private static byte[] readLeafData(JsonReader r) throws IOException, ContinusecException {
+		String leafData = null;
+		r.beginObject();
+		while (r.hasNext()) {
+			if (r.nextName().equals("leaf_data")) {
+				leafData = r.nextString();
 			} else {
-				throw new RuntimeException(new NotAllEntriesReturnedException());
+				r.skipValue();
+			}
+		}
+		r.endObject();
+		if (leafData == null) {
+			throw new InternalErrorException();
+		}
+		return Base64.decodeBase64(leafData);
+	}
+
+	/**
+	 * Release any connection held open for the current batch, and stop fetching ahead. Further calls to
+	 * {@link #next()} will resume from the next entry with a new request.
+	 */
+	public void close() {
+		if (!this.ahead.isEmpty() || this.curPage != null) {
+			// abort batches still downloading, and discard any already fetched
+			this.canceller.cancel();
+			this.canceller = ContinusecClient.newRequestCanceller();
+			for (CompletableFuture<Page> f : this.ahead) {
+				f.cancel(false);
+			}
+			this.ahead.clear();
+			this.curPage = null;
+			this.nextFetch = this.cursor;
+		}
+		if (this.curResponse != null) {
+			this.curResponse.close();
+			if (this.pageToCache != null && this.countInPage == this.pageSize) {
+				this.client.cacheResponse(this.pageToCache, this.curResponse);
+			}
+			// a page abandoned part way through says nothing about how many entries the server returns
+			if (this.pageBytes != null && (this.pageEnded || this.countInPage == this.pageSize)) {
+				this.client.entriesPageCompleted(this.sizeKey, this.pageSize, this.countInPage, this.pageBytes.get(), this.pageNanos);
 			}
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException(new InternalErrorException(e));
-		} catch (ContinusecException e) {
-			throw new RuntimeException(e);
+			this.curResponse = null;
 		}
+		this.pageBytes = null;
+		this.pageToCache = null;
+		this.curReader = null;
 	}
 
 	/**
@@ -109,4 +430,4 @@ public class LogEntryIterator implements Iterator<VerifiableEntry> {
 	public void remove() {
 		throw new UnsupportedOperationException();
 	}
-}
\ No newline at end of file
+}
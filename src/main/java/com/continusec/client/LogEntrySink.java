@@ -0,0 +1,201 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sink for adding a stream of entries to a log with many requests in flight at once, returned by
+ * {@link VerifiableLog#openSink(int)}:
+ * <pre>{@code
+ * try (LogEntrySink sink = log.openSink(32)) {
+ *     for (byte[] record : records) {
+ *         sink.add(new RawDataEntry(record)).whenComplete((aer, err) -> ...);
+ *     }
+ * }
+ * }</pre>
+ * <p>
+ * Each entry is sent on the client executor (see {@link ContinusecClient#setExecutor(java.util.concurrent.Executor)}).
+ * Once the maximum number of entries are in flight, {@link #add(UploadableEntry)} blocks until one completes, so
+ * memory use stays bounded however fast entries are produced. Note that the transport may also limit the number of
+ * connections to the server, see {@link DefaultTransport#DefaultTransport(int)}.
+ * <p>
+ * Where the client can calculate the leaf hash of an entry itself, it is calculated in parallel on the
+ * {@link ForkJoinPool#commonPool()} while the request is in flight, and checked against the leaf hash returned,
+ * see {@link PendingAddEntry}.
+ * <p>
+ * Each entry succeeds or fails on its own; a failure does not stop later entries being sent. Closing the sink waits
+ * for all entries in flight to complete.
+ */
+public class LogEntrySink implements AutoCloseable {
+	private VerifiableLog log;
+	private int maxInFlight;
+
+	private int inFlight = 0;
+	private boolean closed = false;
+
+	private AtomicLong succeeded = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong mismatched = new AtomicLong();
+
+	/**
+	 * Package private constructor. Use {@link VerifiableLog#openSink(int)} to instantiate.
+	 * @param log the log to add entries to.
+	 * @param maxInFlight the maximum number of entries sent but not yet acknowledged.
+	 */
+	protected LogEntrySink(VerifiableLog log, int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.log = log;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Send an entry, first waiting if the maximum number of entries are already in flight. See {@link #submit(UploadableEntry)}.
+	 * @param e the entry to add, often {@link RawDataEntry}, {@link JsonEntry} or {@link RedactableJsonEntry}.
+	 * @return a future for the add entry response, which fails if this entry could not be added.
+	 * @throws ContinusecException if the sink is closed, or interrupted while waiting.
+	 */
+	public CompletableFuture<AddEntryResponse> add(UploadableEntry e) throws ContinusecException {
+		return this.submit(e).getResponse();
+	}
+
+	/**
+	 * Send an entry, first waiting if the maximum number of entries are already in flight. If the client can calculate
+	 * the leaf hash of the entry itself, it does so while the request is in flight and checks it against the response,
+	 * see {@link PendingAddEntry}.
+	 * @param e the entry to add, often {@link RawDataEntry}, {@link JsonEntry} or {@link RedactableJsonEntry}.
+	 * @return the pending entry, from which the leaf hash is available before the server responds.
+	 * @throws ContinusecException if the sink is closed, or interrupted while waiting.
+	 */
+	public PendingAddEntry submit(UploadableEntry e) throws ContinusecException {
+		synchronized (this) {
+			try {
+				while (!this.closed && this.inFlight >= this.maxInFlight) {
+					this.wait();
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new ContinusecException(ie);
+			}
+			if (this.closed) {
+				throw new IllegalStateException("Sink is closed");
+			}
+			this.inFlight++;
+		}
+
+		CompletableFuture<byte[]> localLeafHash = null;
+		if (e instanceof MerkleTreeLeaf) {
+			final MerkleTreeLeaf leaf = (MerkleTreeLeaf) e;
+			localLeafHash = CompletableFuture.supplyAsync(() -> {
+				try {
+					return leaf.getLeafHash();
+				} catch (ContinusecException ce) {
+					throw new CompletionException(ce);
+				}
+			}, ForkJoinPool.commonPool());
+		}
+
+		CompletableFuture<AddEntryResponse> rv = this.log.addAsync(e);
+		if (localLeafHash != null) {
+			rv = rv.thenCombine(localLeafHash, (aer, lh) -> {
+				if (!Arrays.equals(aer.mtlHash, lh)) {
+					this.mismatched.incrementAndGet();
+					throw new CompletionException(new VerificationFailedException());
+				}
+				return aer;
+			});
+		}
+		rv = rv.whenComplete((aer, err) -> {
+			if (err == null) {
+				this.succeeded.incrementAndGet();
+			} else {
+				this.failed.incrementAndGet();
+			}
+			synchronized (this) {
+				this.inFlight--;
+				this.notifyAll();
+			}
+		});
+		return new PendingAddEntry(localLeafHash, rv);
+	}
+
+	/**
+	 * Wait until all entries sent so far have completed.
+	 * @throws ContinusecException if interrupted while waiting.
+	 */
+	public synchronized void flush() throws ContinusecException {
+		try {
+			while (this.inFlight > 0) {
+				this.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ContinusecException(e);
+		}
+	}
+
+	/**
+	 * Stop accepting entries, and wait until all entries sent have completed.
+	 * @throws ContinusecException if interrupted while waiting.
+	 */
+	public void close() throws ContinusecException {
+		synchronized (this) {
+			this.closed = true;
+			this.notifyAll();
+		}
+		this.flush();
+	}
+
+	/**
+	 * Get the number of entries currently in flight.
+	 * @return the number of entries sent but not yet completed.
+	 */
+	public synchronized int getInFlight() {
+		return this.inFlight;
+	}
+
+	/**
+	 * Get the number of entries added successfully.
+	 * @return the number of entries acknowledged by the server.
+	 */
+	public long getSucceededCount() {
+		return this.succeeded.get();
+	}
+
+	/**
+	 * Get the number of entries that failed.
+	 * @return the number of entries that could not be added.
+	 */
+	public long getFailedCount() {
+		return this.failed.get();
+	}
+
+	/**
+	 * Get the number of entries for which the server returned a different leaf hash to that calculated locally.
+	 * These are also counted as failed.
+	 * @return the number of mismatched leaf hashes.
+	 */
+	public long getMismatchedCount() {
+		return this.mismatched.get();
+	}
+}
@@ -0,0 +1,139 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator for log entries, backing the stream returned by
+ * {@link VerifiableLog#streamEntries(int, int, VerifiableEntryFactory)}. The range is split into chunks whose
+ * boundaries are multiples of the page size chosen by the client's {@link EntryPageSizer}, so that each chunk is read
+ * with its own requests by a {@link LogEntryIterator}, and parallel streams fetch and decode disjoint ranges at once.
+ * Entries are reported in index order.
+ * <p>
+ * A chunk is only split before it starts reading entries. Each chunk releases its connection once read to the end;
+ * closing the stream releases those of any chunks abandoned part way through, e.g. by {@link java.util.stream.Stream#findFirst()}.
+ */
+public class LogEntrySpliterator implements Spliterator<VerifiableEntry> {
+	private ContinusecClient client;
+	private String path;
+	private int beginIdx;
+	private int endIdx;
+	private VerifiableEntryFactory factory;
+
+	private Queue<LogEntryIterator> opened;
+	private LogEntryIterator iterator = null;
+	private int position;
+
+	/**
+	 * Package private constructor.
+	 * @param client the client the log belongs to.
+	 * @param path the path of the log within the account.
+	 * @param beginIdx the first item to retrieve.
+	 * @param endIdx the last item to retrieve.
+	 * @param factory the factory to produce the VerifiableEntries.
+	 */
+	protected LogEntrySpliterator(ContinusecClient client, String path, int beginIdx, int endIdx, VerifiableEntryFactory factory) {
+		this(client, path, beginIdx, endIdx, factory, new ConcurrentLinkedQueue<LogEntryIterator>());
+	}
+
+	private LogEntrySpliterator(ContinusecClient client, String path, int beginIdx, int endIdx, VerifiableEntryFactory factory, Queue<LogEntryIterator> opened) {
+		this.client = client;
+		this.path = path;
+		this.beginIdx = beginIdx;
+		this.endIdx = endIdx;
+		this.factory = factory;
+		this.opened = opened;
+		this.position = beginIdx;
+	}
+
+	/**
+	 * Read the next entry, if any.
+	 * @param action called with the entry.
+	 * @return false if all entries in this chunk have been read.
+	 */
+	public boolean tryAdvance(Consumer<? super VerifiableEntry> action) {
+		if (this.iterator == null) {
+			if (this.beginIdx >= this.endIdx) {
+				return false;
+			}
+			this.iterator = new LogEntryIterator(this.client, this.path, this.beginIdx, this.endIdx, this.factory);
+			this.opened.add(this.iterator);
+		}
+		if (!this.iterator.hasNext()) {
+			// already closed once read to the end
+			this.opened.remove(this.iterator);
+			return false;
+		}
+		VerifiableEntry rv = this.iterator.next();
+		this.position += 1;
+		action.accept(rv);
+		return true;
+	}
+
+	/**
+	 * Split off the first half of the pages in this chunk, unless reading has started or it is no more than a page.
+	 * @return the spliterator for the entries before those left in this chunk, or null if it cannot be split.
+	 */
+	public Spliterator<VerifiableEntry> trySplit() {
+		if (this.iterator != null) {
+			return null;
+		}
+		int pageSize = this.client.getEntriesPageSize(this.path + this.factory.getFormat());
+		long mid = ((this.beginIdx + ((long) this.endIdx - this.beginIdx) / 2) / pageSize) * pageSize;
+		if (mid <= this.beginIdx) {
+			mid += pageSize;
+		}
+		if (mid >= this.endIdx) {
+			return null;
+		}
+		LogEntrySpliterator rv = new LogEntrySpliterator(this.client, this.path, this.beginIdx, (int) mid, this.factory, this.opened);
+		this.beginIdx = (int) mid;
+		this.position = this.beginIdx;
+		return rv;
+	}
+
+	/**
+	 * Get the number of entries not yet read.
+	 * @return the number of entries.
+	 */
+	public long estimateSize() {
+		return Math.max(0, this.endIdx - this.position);
+	}
+
+	/**
+	 * Get the characteristics of this spliterator.
+	 * @return {@link Spliterator#ORDERED}, {@link Spliterator#SIZED}, {@link Spliterator#SUBSIZED},
+	 *         and {@link Spliterator#NONNULL}. Entries are fetched lazily from the log, so it is not {@link Spliterator#IMMUTABLE}.
+	 */
+	public int characteristics() {
+		return ORDERED | SIZED | SUBSIZED | NONNULL;
+	}
+
+	/**
+	 * Package private method to release the connections of all chunks split from the same range, for when the stream is closed.
+	 */
+	protected void closeAll() {
+		LogEntryIterator it;
+		while ((it = this.opened.poll()) != null) {
+			it.close();
+		}
+	}
+}
@@ -18,10 +18,13 @@ package com.continusec.client;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import org.apache.commons.codec.binary.Base64;
 
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
 /**
@@ -77,4 +80,28 @@ public class LogTreeHead {
 			);
 		}
 	}
+
+	/**
+	 * Read object from a Gson JsonReader positioned at the start of the object.
+	 * @param r the reader.
+	 * @return the log tree hash.
+	 * @throws IOException upon error reading the object.
+	 */
+	protected static LogTreeHead fromJsonReader(JsonReader r) throws IOException {
+		int treeSize = 0;
+		byte[] rootHash = null;
+		r.beginObject();
+		while (r.hasNext()) {
+			String name = r.nextName();
+			if (name.equals("tree_size")) {
+				treeSize = r.nextInt();
+			} else if (name.equals("tree_hash") && r.peek() != JsonToken.NULL) {
+				rootHash = Base64.decodeBase64(r.nextString());
+			} else {
+				r.skipValue();
+			}
+		}
+		r.endObject();
+		return new LogTreeHead(treeSize, rootHash);
+	}
 }
@@ -16,7 +16,10 @@
 
 package com.continusec.client;
 
+import java.io.IOException;
+
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
 import org.apache.commons.codec.binary.Base64;
 
 /**
@@ -84,4 +87,31 @@ public class MapTreeHead implements MerkleTreeLeaf {
 		return this.oh;
 	}
 
+	/**
+	 * Package private method to read a map tree head as returned by the server.
+	 * @param r the reader, positioned at the start of the object.
+	 * @return the map tree head.
+	 * @throws IOException upon error reading the object.
+	 * @throws ContinusecException if the object is incomplete.
+	 */
+	protected static MapTreeHead fromJsonReader(JsonReader r) throws IOException, ContinusecException {
+		byte[] rootHash = null;
+		LogTreeHead mutationLogHead = null;
+		r.beginObject();
+		while (r.hasNext()) {
+			String name = r.nextName();
+			if (name.equals("map_hash")) {
+				rootHash = Base64.decodeBase64(r.nextString());
+			} else if (name.equals("mutation_log")) {
+				mutationLogHead = LogTreeHead.fromJsonReader(r);
+			} else {
+				r.skipValue();
+			}
+		}
+		r.endObject();
+		if (mutationLogHead == null) {
+			throw new InternalErrorException();
+		}
+		return new MapTreeHead(rootHash, mutationLogHead);
+	}
 }
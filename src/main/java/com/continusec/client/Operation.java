@@ -0,0 +1,132 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+/**
+ * The logical API operations performed by {@link ContinusecClient}, used to tag requests
+ * for policies and statistics that differ between operations.
+ */
+public enum Operation {
+	/**
+	 * {@link VerifiableLog#create()}
+	 */
+	LOG_CREATE("log.create", OperationClass.WRITE),
+
+	/**
+	 * {@link VerifiableLog#destroy()}
+	 */
+	LOG_DESTROY("log.destroy", OperationClass.WRITE),
+
+	/**
+	 * {@link VerifiableLog#add(UploadableEntry)}
+	 */
+	LOG_ADD("log.add", OperationClass.WRITE),
+
+	/**
+	 * {@link VerifiableLog#getTreeHead(int)}
+	 */
+	LOG_TREE_HEAD("log.treehead", OperationClass.PROOF_READ),
+
+	/**
+	 * {@link VerifiableLog#get(int, VerifiableEntryFactory)}
+	 */
+	LOG_ENTRY("log.entry", OperationClass.ENTRY_READ),
+
+	/**
+	 * Batches of entries fetched by {@link LogEntryIterator}.
+	 */
+	LOG_ENTRIES("log.entries", OperationClass.ENTRY_READ),
+
+	/**
+	 * {@link VerifiableLog#getInclusionProof(int, MerkleTreeLeaf)} and {@link VerifiableLog#getInclusionProofByIndex(int, int)}
+	 */
+	LOG_INCLUSION("log.inclusion", OperationClass.PROOF_READ),
+
+	/**
+	 * {@link VerifiableLog#getConsistencyProof(int, int)}
+	 */
+	LOG_CONSISTENCY("log.consistency", OperationClass.PROOF_READ),
+
+	/**
+	 * {@link VerifiableMap#create()}
+	 */
+	MAP_CREATE("map.create", OperationClass.WRITE),
+
+	/**
+	 * {@link VerifiableMap#destroy()}
+	 */
+	MAP_DESTROY("map.destroy", OperationClass.WRITE),
+
+	/**
+	 * {@link VerifiableMap#get(byte[], int, VerifiableEntryFactory)}
+	 */
+	MAP_GET("map.get", OperationClass.PROOF_READ),
+
+	/**
+	 * {@link VerifiableMap#set(byte[], UploadableEntry)} and {@link VerifiableMap#update(byte[], UploadableEntry, MerkleTreeLeaf)}
+	 */
+	MAP_SET("map.set", OperationClass.WRITE),
+
+	/**
+	 * {@link VerifiableMap#delete(byte[])}
+	 */
+	MAP_DELETE("map.delete", OperationClass.WRITE),
+
+	/**
+	 * {@link VerifiableMap#getTreeHead(int)}
+	 */
+	MAP_TREE_HEAD("map.treehead", OperationClass.PROOF_READ),
+
+	/**
+	 * {@link ContinusecClient#listLogs()}
+	 */
+	LIST_LOGS("account.logs", OperationClass.OTHER),
+
+	/**
+	 * {@link ContinusecClient#listMaps()}
+	 */
+	LIST_MAPS("account.maps", OperationClass.OTHER),
+
+	/**
+	 * Any other request.
+	 */
+	OTHER("other", OperationClass.OTHER);
+
+	private String tag;
+	private OperationClass operationClass;
+
+	private Operation(String tag, OperationClass operationClass) {
+		this.tag = tag;
+		this.operationClass = operationClass;
+	}
+
+	/**
+	 * Get a short name for this operation, suitable for use in metric names, e.g. "log.add".
+	 * @return the tag.
+	 */
+	public String getTag() {
+		return this.tag;
+	}
+
+	/**
+	 * Get the broad class of this operation, used to select a {@link RateLimiter} bucket.
+	 * @return the operation class.
+	 */
+	public OperationClass getOperationClass() {
+		return this.operationClass;
+	}
+}
@@ -0,0 +1,42 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+/**
+ * Broad classes of {@link Operation}, each of which may be given its own rate limit by a {@link RateLimiter}.
+ */
+public enum OperationClass {
+	/**
+	 * Requests that modify a log or map, such as adding to a log, or setting or deleting a map value.
+	 */
+	WRITE,
+
+	/**
+	 * Requests for log entries, either one at a time or in batches.
+	 */
+	ENTRY_READ,
+
+	/**
+	 * Requests for tree heads, inclusion and consistency proofs, and map values (which include a proof).
+	 */
+	PROOF_READ,
+
+	/**
+	 * Any other request, such as listing the logs and maps in an account.
+	 */
+	OTHER
+}
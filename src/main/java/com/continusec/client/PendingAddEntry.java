@@ -0,0 +1,92 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * An entry submitted to a {@link LogEntrySink} that may not yet have been acknowledged, returned by
+ * {@link LogEntrySink#submit(UploadableEntry)}:
+ * <pre>{@code
+ * PendingAddEntry pending = sink.submit(new RawDataEntry("foo".getBytes()));
+ * trackInclusion(pending); // the leaf hash is available before the server responds
+ * pending.getResponse().whenComplete((aer, err) -> ...);
+ * }</pre>
+ * <p>
+ * For entries whose leaf hash can be calculated by the client, such as {@link RawDataEntry} and {@link JsonEntry}, the
+ * leaf hash is calculated on the {@link java.util.concurrent.ForkJoinPool#commonPool()} while the request is in flight,
+ * and the response fails with a {@link VerificationFailedException} if the server returns a different leaf hash. For other
+ * entries, such as {@link RedactableJsonEntry} whose nonces are added by the server, the leaf hash is that returned by the server.
+ */
+public class PendingAddEntry implements MerkleTreeLeaf {
+	private boolean local;
+	private CompletableFuture<byte[]> leafHash;
+	private CompletableFuture<AddEntryResponse> response;
+
+	/**
+	 * Package private constructor. Use {@link LogEntrySink#submit(UploadableEntry)} to instantiate.
+	 * @param localLeafHash the leaf hash being calculated by the client, or null if it can only be returned by the server.
+	 * @param response the response, already checked against the local leaf hash (if any).
+	 */
+	protected PendingAddEntry(CompletableFuture<byte[]> localLeafHash, CompletableFuture<AddEntryResponse> response) {
+		this.local = (localLeafHash != null);
+		this.leafHash = this.local ? localLeafHash : response.thenApply(aer -> aer.mtlHash);
+		this.response = response;
+	}
+
+	/**
+	 * Is the leaf hash calculated by the client, rather than returned by the server?
+	 * @return true if the leaf hash is available without waiting for the server.
+	 */
+	public boolean isLeafHashLocal() {
+		return this.local;
+	}
+
+	/**
+	 * Get the leaf hash, waiting for it to be calculated, or for the server to respond if it cannot be calculated locally.
+	 * @return the leaf hash for this entry.
+	 * @throws ContinusecException if the leaf hash cannot be calculated, or the entry could not be added.
+	 */
+	public byte[] getLeafHash() throws ContinusecException {
+		try {
+			return this.leafHash.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof ContinusecException) {
+				throw (ContinusecException) e.getCause();
+			}
+			throw new ContinusecException(e);
+		}
+	}
+
+	/**
+	 * Get the leaf hash without blocking.
+	 * @return a future for the leaf hash, completed as soon as it is known.
+	 */
+	public CompletableFuture<byte[]> getLeafHashAsync() {
+		return this.leafHash;
+	}
+
+	/**
+	 * Get the response from the server.
+	 * @return a future for the add entry response, which fails if this entry could not be added, or if the leaf hash
+	 * returned does not match that calculated locally.
+	 */
+	public CompletableFuture<AddEntryResponse> getResponse() {
+		return this.response;
+	}
+}
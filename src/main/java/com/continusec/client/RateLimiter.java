@@ -0,0 +1,170 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side rate limits, set on a client with {@link ContinusecClient#setRateLimiter(RateLimiter)}:
+ * <pre>{@code
+ * RateLimiter limits = new RateLimiter();
+ * limits.setRate(OperationClass.WRITE, 50.0, 100.0);
+ * limits.setRate(OperationClass.ENTRY_READ, 10.0, 10.0);
+ * client.setRateLimiter(limits);
+ * }</pre>
+ * <p>
+ * Each {@link OperationClass} has its own token bucket, which fills at a steady rate up to a maximum burst size.
+ * Each request (including each retry, each hedge, and each batch of entries fetched by {@link LogEntryIterator})
+ * takes one token from the bucket for its {@link Operation}. Classes without a configured rate are not limited.
+ * <p>
+ * By default a request that finds its bucket empty waits until a token is available. If fail fast is set, it
+ * instead throws a {@link RateLimitExceededException} straight away.
+ * <p>
+ * Since quotas are applied by the server per account, share a single limiter between all clients for an account,
+ * so that all {@link VerifiableLog} and {@link VerifiableMap} objects created from them draw from the same buckets.
+ */
+public class RateLimiter {
+	private EnumMap<OperationClass,Bucket> buckets = new EnumMap<OperationClass,Bucket>(OperationClass.class);
+	private volatile boolean failFast = false;
+
+	private AtomicLong throttledCount = new AtomicLong();
+	private AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Create a rate limiter with no limits configured.
+	 */
+	public RateLimiter() {
+	}
+
+	/**
+	 * Set the rate limit for a class of operations. The bucket starts full.
+	 * @param operationClass the class of operations to limit.
+	 * @param permitsPerSecond the sustained rate of requests allowed.
+	 * @param burst the maximum number of requests that may be made at once after a quiet period, at least 1.
+	 */
+	public synchronized void setRate(OperationClass operationClass, double permitsPerSecond, double burst) {
+		if (permitsPerSecond <= 0.0 || burst < 1.0) {
+			throw new IllegalArgumentException();
+		}
+		this.buckets.put(operationClass, new Bucket(permitsPerSecond, burst));
+	}
+
+	/**
+	 * Remove the rate limit for a class of operations.
+	 * @param operationClass the class of operations to no longer limit.
+	 */
+	public synchronized void removeRate(OperationClass operationClass) {
+		this.buckets.remove(operationClass);
+	}
+
+	/**
+	 * Set whether requests fail straight away if over the limit, rather than waiting.
+	 * @param failFast true to throw {@link RateLimitExceededException}, false (the default) to wait.
+	 */
+	public void setFailFast(boolean failFast) {
+		this.failFast = failFast;
+	}
+
+	/**
+	 * Get the number of requests that had to wait for a token.
+	 * @return the number of delayed requests.
+	 */
+	public long getThrottledCount() {
+		return this.throttledCount.get();
+	}
+
+	/**
+	 * Get the number of requests that failed fast as no token was available.
+	 * @return the number of rejected requests.
+	 */
+	public long getRejectedCount() {
+		return this.rejectedCount.get();
+	}
+
+	/**
+	 * Package private method to take a token for an operation, waiting if needed.
+	 * @param op the operation about to be requested.
+	 * @throws RateLimitExceededException if fail fast is set and no token is available.
+	 * @throws ContinusecException if interrupted while waiting.
+	 */
+	protected void acquire(Operation op) throws ContinusecException {
+		Bucket bucket;
+		synchronized (this) {
+			bucket = this.buckets.get(op.getOperationClass());
+		}
+		if (bucket == null) {
+			return;
+		}
+
+		long waitNanos = bucket.reserve(this.failFast);
+		if (waitNanos < 0) {
+			this.rejectedCount.incrementAndGet();
+			throw new RateLimitExceededException();
+		} else if (waitNanos == 0) {
+			return;
+		}
+
+		this.throttledCount.incrementAndGet();
+		try {
+			Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+		} catch (InterruptedException e) {
+			bucket.unreserve();
+			Thread.currentThread().interrupt();
+			throw new ContinusecException(e);
+		}
+	}
+
+	/**
+	 * A token bucket. Waiting callers reserve a token in advance, taking the balance negative, so that
+	 * they are served in the order they arrived without needing to wake each other.
+	 */
+	private static class Bucket {
+		private double nanosPerToken;
+		private double burst;
+		private double tokens;
+		private long last = System.nanoTime();
+
+		private Bucket(double permitsPerSecond, double burst) {
+			this.nanosPerToken = 1000000000.0 / permitsPerSecond;
+			this.burst = burst;
+			this.tokens = burst;
+		}
+
+		/**
+		 * Take a token, returning how long the caller must wait before using it, or -1 if fail fast is set and
+		 * it would have to wait.
+		 */
+		private synchronized long reserve(boolean failFast) {
+			long now = System.nanoTime();
+			this.tokens = Math.min(this.burst, this.tokens + ((now - this.last) / this.nanosPerToken));
+			this.last = now;
+			if (this.tokens >= 1.0) {
+				this.tokens -= 1.0;
+				return 0;
+			} else if (failFast) {
+				return -1;
+			}
+			this.tokens -= 1.0;
+			return (long) Math.ceil(-this.tokens * this.nanosPerToken);
+		}
+
+		private synchronized void unreserve() {
+			this.tokens += 1.0;
+		}
+	}
+}
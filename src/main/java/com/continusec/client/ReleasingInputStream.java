@@ -0,0 +1,129 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.lang.ref.Cleaner;
+
+/**
+ * Package private stream wrapper used by transports to return a connection slot once a streamed
+ * body has been read to the end or closed. As a safety net for callers that abandon a stream without
+ * closing it, the slot is also returned once the stream is garbage collected. If the length of the body is known,
+ * a stream that ends early (as when the connection is closed part way through) fails with an {@link EOFException}
+ * rather than appearing to end normally.
+ */
+class ReleasingInputStream extends FilterInputStream {
+	private static final Cleaner cleaner = Cleaner.create();
+
+	private Cleaner.Cleanable release;
+	private long remaining;
+
+	/**
+	 * Package private constructor.
+	 * @param in the stream to wrap.
+	 * @param onRelease called exactly once, on end of stream, close or garbage collection. Must not refer to this stream.
+	 */
+	protected ReleasingInputStream(InputStream in, Runnable onRelease) {
+		this(in, -1, onRelease);
+	}
+
+	/**
+	 * Package private constructor.
+	 * @param in the stream to wrap.
+	 * @param length the expected length of the body, or -1 if not known.
+	 * @param onRelease called exactly once, on end of stream, close or garbage collection. Must not refer to this stream.
+	 */
+	protected ReleasingInputStream(InputStream in, long length, Runnable onRelease) {
+		super(in);
+		this.remaining = length;
+		this.release = cleaner.register(this, onRelease);
+	}
+
+	/**
+	 * Read a byte, releasing the connection slot at end of stream.
+	 * @return the byte read, or -1 at end of stream.
+	 * @throws IOException upon error
+	 */
+	public int read() throws IOException {
+		int rv = super.read();
+		this.afterRead((rv == -1) ? -1 : 1);
+		return rv;
+	}
+
+	/**
+	 * Read bytes, releasing the connection slot at end of stream.
+	 * @param b the buffer to read into.
+	 * @param off the offset into the buffer.
+	 * @param len the maximum number of bytes to read.
+	 * @return the number of bytes read, or -1 at end of stream.
+	 * @throws IOException upon error
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		int rv = super.read(b, off, len);
+		this.afterRead(rv);
+		return rv;
+	}
+
+	/**
+	 * Skip bytes, counting them towards the expected length.
+	 * @param n the number of bytes to skip.
+	 * @return the number of bytes skipped.
+	 * @throws IOException upon error
+	 */
+	public long skip(long n) throws IOException {
+		long rv = super.skip(n);
+		if (rv > 0 && this.remaining > 0) {
+			this.remaining -= rv;
+		}
+		return rv;
+	}
+
+	private void afterRead(int n) throws IOException {
+		if (n > 0 && this.remaining > 0) {
+			this.remaining -= n;
+		} else if (n == -1) {
+			this.release.clean();
+			if (this.remaining > 0) {
+				throw new EOFException("Response body ended " + this.remaining + " bytes early");
+			}
+		}
+	}
+
+	/**
+	 * Close the stream and release the connection slot.
+	 * @throws IOException upon error
+	 */
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			this.release.clean();
+		}
+	}
+
+	/**
+	 * Package private method to release the connection slot without closing the stream, for when the request is
+	 * aborted from another thread that must not wait for a read in progress.
+	 */
+	protected void release() {
+		this.release.clean();
+	}
+}
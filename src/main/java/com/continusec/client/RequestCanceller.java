@@ -0,0 +1,86 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Package private class to abort the requests being sent by calls running on other threads, such as a hedged attempt
+ * that has lost, or a batch of entries fetched ahead for an iterator that has been closed. Calls are run with
+ * {@link ContinusecClient#runCancellable(RequestCanceller, java.util.concurrent.Callable)}, and each request they send
+ * is tracked until the call returns, so that a request is never aborted once its connection may have been reused.
+ */
+class RequestCanceller {
+	private HashSet<TransportRequest> requests = new HashSet<TransportRequest>();
+	private boolean cancelled = false;
+	private Executor executor;
+
+	/**
+	 * Package private constructor.
+	 * @param executor where requests are aborted, since aborting may wait for a read in progress.
+	 */
+	protected RequestCanceller(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Package private method to check whether calls have been cancelled.
+	 * @return true once {@link #cancel()} has been called.
+	 */
+	protected synchronized boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	/**
+	 * Package private method to track a request about to be sent, aborting it straight away if already cancelled.
+	 * @param r the request.
+	 */
+	protected void track(TransportRequest r) {
+		synchronized (this) {
+			if (!this.cancelled) {
+				this.requests.add(r);
+				return;
+			}
+		}
+		this.executor.execute(r::abort);
+	}
+
+	/**
+	 * Package private method to stop tracking a request once the call that sent it has returned.
+	 * @param r the request.
+	 */
+	protected synchronized void untrack(TransportRequest r) {
+		this.requests.remove(r);
+	}
+
+	/**
+	 * Package private method to abort all requests being sent, and any sent later.
+	 */
+	protected void cancel() {
+		ArrayList<TransportRequest> rv;
+		synchronized (this) {
+			this.cancelled = true;
+			rv = new ArrayList<TransportRequest>(this.requests);
+			this.requests.clear();
+		}
+		for (TransportRequest r : rv) {
+			this.executor.execute(r::abort);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Details of a single request (attempt) made by {@link ContinusecClient}, passed to each {@link RequestListener}
+ * callback for that request. The same object is passed to each callback for a request, with the status code,
+ * byte counts and tree size filled in as they become known.
+ */
+public class RequestInfo {
+	private Operation op;
+	private String method;
+	private String path;
+	private volatile int treeSize;
+	private volatile int statusCode = 0;
+	private long startNanos = System.nanoTime();
+	private volatile long firstByteNanos = -1;
+	private AtomicLong bytesOnWire = new AtomicLong();
+	private AtomicLong bytesDecoded = new AtomicLong();
+
+	/**
+	 * Package private constructor.
+	 * @param op the operation the request is for.
+	 * @param method the HTTP method.
+	 * @param path the path underneath the account.
+	 */
+	protected RequestInfo(Operation op, String method, String path) {
+		this.op = op;
+		this.method = method;
+		this.path = path;
+		this.treeSize = treeSizeFromPath(path);
+	}
+
+	/**
+	 * Get the operation the request is for.
+	 * @return the operation.
+	 */
+	public Operation getOperation() {
+		return this.op;
+	}
+
+	/**
+	 * Get the HTTP method.
+	 * @return the method, e.g. "GET".
+	 */
+	public String getMethod() {
+		return this.method;
+	}
+
+	/**
+	 * Get the path of the request, relative to the account, e.g. "/log/foo/tree/0".
+	 * @return the path.
+	 */
+	public String getPath() {
+		return this.path;
+	}
+
+	/**
+	 * Get the tree size the request relates to. This is taken from the path when the request starts (where 0 means the latest
+	 * tree head), and updated to the actual tree size once a tree head has been parsed.
+	 * @return the tree size, or -1 if the request does not relate to a tree size.
+	 */
+	public int getTreeSize() {
+		return this.treeSize;
+	}
+
+	/**
+	 * Get the HTTP status code of the response.
+	 * @return the status code, or 0 if no response has been received yet.
+	 */
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+	/**
+	 * Get the number of body bytes read from the network so far.
+	 * @return the number of bytes.
+	 */
+	public long getBytesOnWire() {
+		return this.bytesOnWire.get();
+	}
+
+	/**
+	 * Get the number of body bytes read after decompression so far.
+	 * @return the number of bytes.
+	 */
+	public long getBytesDecoded() {
+		return this.bytesDecoded.get();
+	}
+
+	/**
+	 * Get the time since the request was started.
+	 * @return the elapsed time in nanoseconds.
+	 */
+	public long getElapsedNanos() {
+		return System.nanoTime() - this.startNanos;
+	}
+
+	/**
+	 * Get the time from starting the request until the response status and headers were received.
+	 * @return the time in nanoseconds, or -1 if no response has been received yet.
+	 */
+	public long getTimeToFirstByteNanos() {
+		long t = this.firstByteNanos;
+		return (t < 0) ? -1 : (t - this.startNanos);
+	}
+
+	/**
+	 * Package private method to record that the response status and headers have been received.
+	 * @param statusCode the HTTP status code.
+	 */
+	protected void setResponseReceived(int statusCode) {
+		this.statusCode = statusCode;
+		this.firstByteNanos = System.nanoTime();
+	}
+
+	/**
+	 * Package private method to update the tree size, once known.
+	 * @param treeSize the tree size.
+	 */
+	protected void setTreeSize(int treeSize) {
+		this.treeSize = treeSize;
+	}
+
+	/**
+	 * Package private method to get the counter for body bytes read from the network.
+	 * @return the counter.
+	 */
+	protected AtomicLong getBytesOnWireCounter() {
+		return this.bytesOnWire;
+	}
+
+	/**
+	 * Package private method to get the counter for body bytes after decompression.
+	 * @return the counter.
+	 */
+	protected AtomicLong getBytesDecodedCounter() {
+		return this.bytesDecoded;
+	}
+
+	private static int treeSizeFromPath(String path) {
+		int i = path.indexOf("/tree/");
+		if (i < 0) {
+			return -1;
+		}
+		int start = i + 6;
+		int end = start;
+		while (end < path.length() && Character.isDigit(path.charAt(end))) {
+			end++;
+		}
+		if (end == start) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(path.substring(start, end));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
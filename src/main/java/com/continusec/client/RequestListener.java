@@ -0,0 +1,75 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+/**
+ * Callbacks for the stages of each request made by a {@link ContinusecClient}, added with
+ * {@link ContinusecClient#addRequestListener(RequestListener)}. Useful for tracing and logging slow requests:
+ * <pre>{@code
+ * client.addRequestListener(new RequestListener() {
+ *     public void bodyCompleted(RequestInfo r) {
+ *         if (r.getElapsedNanos() > 1000000000L) {
+ *             log.warn("slow " + r.getMethod() + " " + r.getPath() + ": " + r.getBytesOnWire() + " bytes");
+ *         }
+ *     }
+ * });
+ * }</pre>
+ * <p>
+ * All methods do nothing by default. They are called on the thread making the request (or reading the response),
+ * so should return quickly. Any {@link RuntimeException} thrown by a listener is ignored. Each attempt at a request
+ * (if retried or hedged) is reported separately.
+ */
+public interface RequestListener {
+	/**
+	 * Called just before a request is sent.
+	 * @param r the request.
+	 */
+	default void requestStarted(RequestInfo r) {
+	}
+
+	/**
+	 * Called when the response status and headers have been received.
+	 * @param r the request.
+	 */
+	default void firstByteReceived(RequestInfo r) {
+	}
+
+	/**
+	 * Called once the response body has been read to the end or closed, including for error responses.
+	 * For entries read by {@link LogEntryIterator} this is once the iterator has finished with each batch.
+	 * @param r the request.
+	 */
+	default void bodyCompleted(RequestInfo r) {
+	}
+
+	/**
+	 * Called once a JSON response (such as a tree head or proof) has been parsed.
+	 * @param r the request.
+	 */
+	default void parseCompleted(RequestInfo r) {
+	}
+
+	/**
+	 * Called when a proof has been verified (or failed to verify).
+	 * @param op the operation that fetched the proof.
+	 * @param treeSize the tree size the proof was verified against.
+	 * @param nanos the time taken to verify the proof, in nanoseconds.
+	 * @param verified true if the proof verified successfully.
+	 */
+	default void verificationCompleted(Operation op, int treeSize, long nanos, boolean verified) {
+	}
+}
@@ -0,0 +1,535 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Cache of responses that can never change, set on a client with {@link ContinusecClient#setResponseCache(ResponseCache)}:
+ * <pre>{@code
+ * ResponseCache cache = new ResponseCache(64 * 1024 * 1024, new File("/var/cache/audit"), 4L * 1024 * 1024 * 1024);
+ * client.setResponseCache(cache);
+ * ...
+ * cache.close();
+ * }</pre>
+ * <p>
+ * Log entries, and any tree head, proof or map value for a specific tree size, are the same each time they
+ * are fetched. Such responses are kept in a memory tier with least recently used eviction, and optionally a
+ * disk tier that survives restarts, so that repeated audits and proof checks are served locally. Responses
+ * for {@link ContinusecClient#HEAD} (tree size 0) are never cached, nor are errors, nor pages of entries
+ * that hold fewer entries than requested. While a cache is set, pages of entries are read into memory before
+ * being parsed, rather than streamed.
+ * <p>
+ * The disk tier is a series of fixed size segment files in a directory, each memory-mapped and written as an
+ * append-only sequence of checksummed records. When the disk tier grows beyond its limit, the oldest segment
+ * is deleted. The space used by a deleted segment is only returned to the file system once its mapping has been
+ * garbage collected, as Java provides no way to unmap a file explicitly, so the disk tier may briefly use more than
+ * its limit. On startup existing segments are scanned to rebuild the index, ignoring any record that was only
+ * partly written. Only one cache at a time should use a directory.
+ * <p>
+ * Entries are keyed on the server, account, API key and path, as entries may be redacted differently for different
+ * API keys, so one cache may be shared by several clients. Only the response body and the "X-" headers used by the
+ * client are cached.
+ */
+public class ResponseCache implements Closeable {
+	// paths underneath an account whose responses never change
+	private static final Pattern IMMUTABLE_PATH = Pattern.compile(".*/(entry/\\d+|entries/\\d+-\\d+|tree/(\\d+))(/.*)?");
+
+	private static final int MIN_SEGMENT_BYTES = 1024 * 1024;
+	private static final int MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+	// key length, value length, and CRC
+	private static final int RECORD_OVERHEAD = 12;
+
+	private long maxMemoryBytes;
+	private long memoryBytes = 0;
+	private LinkedHashMap<String,CachedResponse> memory = new LinkedHashMap<String,CachedResponse>(16, 0.75f, true);
+
+	private DiskTier disk = null;
+
+	private AtomicLong memoryHits = new AtomicLong();
+	private AtomicLong diskHits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * A cached response body and headers.
+	 */
+	private static class CachedResponse {
+		private byte[] data;
+		private Map<String,List<String>> headers;
+
+		private CachedResponse(byte[] data, Map<String,List<String>> headers) {
+			this.data = data;
+			this.headers = headers;
+		}
+
+		private long size() {
+			long rv = this.data.length + 64;
+			for (Map.Entry<String,List<String>> e : this.headers.entrySet()) {
+				rv += e.getKey().length();
+				for (String v : e.getValue()) {
+					rv += v.length();
+				}
+			}
+			return rv;
+		}
+	}
+
+	/**
+	 * Create a cache held in memory only.
+	 * @param maxMemoryBytes the approximate maximum size of the cached responses held in memory.
+	 */
+	public ResponseCache(long maxMemoryBytes) {
+		if (maxMemoryBytes < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxMemoryBytes = maxMemoryBytes;
+	}
+
+	/**
+	 * Create a cache with both a memory and a disk tier. Responses found in an existing directory are reused.
+	 * @param maxMemoryBytes the approximate maximum size of the cached responses held in memory.
+	 * @param directory the directory for the disk tier, which is created if it does not exist.
+	 * @param maxDiskBytes the maximum size of the files in the disk tier.
+	 * @throws IOException if the directory cannot be created or read.
+	 */
+	public ResponseCache(long maxMemoryBytes, File directory, long maxDiskBytes) throws IOException {
+		this(maxMemoryBytes);
+		if (maxDiskBytes < MIN_SEGMENT_BYTES) {
+			throw new IllegalArgumentException();
+		}
+		int segmentBytes = (int) Math.max(MIN_SEGMENT_BYTES, Math.min(MAX_SEGMENT_BYTES, maxDiskBytes / 8));
+		this.disk = new DiskTier(directory, segmentBytes, maxDiskBytes);
+	}
+
+	/**
+	 * Get the number of responses served from the memory tier.
+	 * @return the number of memory hits.
+	 */
+	public long getMemoryHitCount() {
+		return this.memoryHits.get();
+	}
+
+	/**
+	 * Get the number of responses served from the disk tier.
+	 * @return the number of disk hits.
+	 */
+	public long getDiskHitCount() {
+		return this.diskHits.get();
+	}
+
+	/**
+	 * Get the number of cacheable requests that were not found in either tier.
+	 * @return the number of misses.
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Get the approximate size of the responses held in memory.
+	 * @return the size in bytes.
+	 */
+	public synchronized long getMemoryBytes() {
+		return this.memoryBytes;
+	}
+
+	/**
+	 * Get the size of the records written to the disk tier.
+	 * @return the size in bytes, or 0 if there is no disk tier.
+	 */
+	public long getDiskBytes() {
+		return (this.disk == null) ? 0 : this.disk.getBytes();
+	}
+
+	/**
+	 * Remove all cached responses from both tiers.
+	 * @throws IOException if the disk tier cannot be cleared.
+	 */
+	public void clear() throws IOException {
+		synchronized (this) {
+			this.memory.clear();
+			this.memoryBytes = 0;
+		}
+		if (this.disk != null) {
+			this.disk.clear();
+		}
+	}
+
+	/**
+	 * Flush the disk tier (if any) and release its files. The cache should not be used afterwards.
+	 * @throws IOException if the disk tier cannot be flushed.
+	 */
+	public void close() throws IOException {
+		if (this.disk != null) {
+			this.disk.close();
+		}
+	}
+
+	/**
+	 * Package private method to determine whether the response for a path never changes.
+	 * @param method the HTTP method.
+	 * @param path the path underneath the account.
+	 * @return true if the response may be cached.
+	 */
+	protected static boolean isImmutable(String method, String path) {
+		if (!method.equals("GET")) {
+			return false;
+		}
+		Matcher m = IMMUTABLE_PATH.matcher(path);
+		if (!m.matches()) {
+			return false;
+		}
+		// tree size 0 means the latest, which changes
+		return m.group(2) == null || !m.group(2).equals("0");
+	}
+
+	/**
+	 * Package private method to look up a cached response.
+	 * @param key the cache key.
+	 * @return a new response, with its own copy of the body, or null if not cached.
+	 */
+	protected ResponseData get(String key) {
+		CachedResponse cr;
+		synchronized (this) {
+			cr = this.memory.get(key);
+		}
+		if (cr != null) {
+			this.memoryHits.incrementAndGet();
+		} else if (this.disk != null && (cr = this.disk.get(key)) != null) {
+			this.diskHits.incrementAndGet();
+			this.putInMemory(key, cr);
+		} else {
+			this.misses.incrementAndGet();
+			return null;
+		}
+		// the cached body is shared by every hit, so must not be handed out where it could be changed
+		return new ResponseData(cr.data.clone(), cr.headers);
+	}
+
+	/**
+	 * Package private method to store a successful, fully buffered response.
+	 * @param key the cache key.
+	 * @param rd the response.
+	 */
+	protected void put(String key, ResponseData rd) {
+		HashMap<String,List<String>> headers = new HashMap<String,List<String>>();
+		if (rd.headers != null) {
+			for (Map.Entry<String,List<String>> e : rd.headers.entrySet()) {
+				if (e.getKey() != null && e.getKey().regionMatches(true, 0, "X-", 0, 2)) {
+					headers.put(e.getKey(), Collections.unmodifiableList(new ArrayList<String>(e.getValue())));
+				}
+			}
+		}
+		CachedResponse cr = new CachedResponse(rd.data, Collections.unmodifiableMap(headers));
+		this.putInMemory(key, cr);
+		if (this.disk != null) {
+			try {
+				this.disk.put(key, cr);
+			} catch (IOException e) {
+				// the disk tier is an optimisation only, so carry on with the memory tier
+			}
+		}
+	}
+
+	private synchronized void putInMemory(String key, CachedResponse cr) {
+		long size = cr.size();
+		if (size > this.maxMemoryBytes) {
+			return;
+		}
+		CachedResponse old = this.memory.put(key, cr);
+		if (old != null) {
+			this.memoryBytes -= old.size();
+		}
+		this.memoryBytes += size;
+		while (this.memoryBytes > this.maxMemoryBytes) {
+			Map.Entry<String,CachedResponse> eldest = this.memory.entrySet().iterator().next();
+			this.memoryBytes -= eldest.getValue().size();
+			this.memory.remove(eldest.getKey());
+		}
+	}
+
+	private static byte[] encode(CachedResponse cr) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(cr.data.length + 256);
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeInt(cr.headers.size());
+		for (Map.Entry<String,List<String>> e : cr.headers.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeInt(e.getValue().size());
+			for (String v : e.getValue()) {
+				out.writeUTF(v);
+			}
+		}
+		out.writeInt(cr.data.length);
+		out.write(cr.data);
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	private static CachedResponse decode(byte[] b) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(b));
+		HashMap<String,List<String>> headers = new HashMap<String,List<String>>();
+		for (int i = in.readInt(); i > 0; i--) {
+			String k = in.readUTF();
+			ArrayList<String> vals = new ArrayList<String>();
+			for (int j = in.readInt(); j > 0; j--) {
+				vals.add(in.readUTF());
+			}
+			headers.put(k, Collections.unmodifiableList(vals));
+		}
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return new CachedResponse(data, Collections.unmodifiableMap(headers));
+	}
+
+	/**
+	 * Memory-mapped, append-only segment files, with an index held in memory.
+	 */
+	private static class DiskTier {
+		private File directory;
+		private int segmentBytes;
+		private long maxBytes;
+
+		private ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+		private HashMap<String,Location> index = new HashMap<String,Location>();
+		private long bytes = 0;
+
+		private DiskTier(File directory, int segmentBytes, long maxBytes) throws IOException {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create " + directory);
+			}
+			this.directory = directory;
+			this.segmentBytes = segmentBytes;
+			this.maxBytes = maxBytes;
+
+			ArrayList<Integer> ids = new ArrayList<Integer>();
+			String[] names = directory.list();
+			for (String n : (names == null) ? new String[0] : names) {
+				Matcher m = Segment.NAME.matcher(n);
+				if (m.matches()) {
+					ids.add(Integer.parseInt(m.group(1)));
+				}
+			}
+			Collections.sort(ids);
+			for (int id : ids) {
+				Segment s = new Segment(new File(directory, Segment.name(id)), id, 0);
+				this.segments.add(s);
+				this.scan(s);
+			}
+		}
+
+		/**
+		 * Rebuild the index from the records in a segment, stopping at the first that is incomplete.
+		 */
+		private void scan(Segment s) {
+			int pos = 0;
+			while (pos + RECORD_OVERHEAD <= s.buf.capacity()) {
+				int keyLen = s.buf.getInt(pos);
+				int valLen = s.buf.getInt(pos + 4);
+				if (keyLen <= 0 || valLen < 0 || (long) pos + RECORD_OVERHEAD + keyLen + valLen > s.buf.capacity()) {
+					break;
+				}
+				byte[] key = new byte[keyLen];
+				byte[] val = new byte[valLen];
+				read(s.buf, pos + 8, key);
+				read(s.buf, pos + 8 + keyLen, val);
+				if (s.buf.getInt(pos + 8 + keyLen + valLen) != crc(key, val)) {
+					break;
+				}
+				String k = new String(key, StandardCharsets.UTF_8);
+				this.index.put(k, new Location(s, pos + 8 + keyLen, valLen));
+				s.keys.add(k);
+				pos += RECORD_OVERHEAD + keyLen + valLen;
+			}
+			s.writePos = pos;
+			this.bytes += pos;
+		}
+
+		private synchronized long getBytes() {
+			return this.bytes;
+		}
+
+		private synchronized CachedResponse get(String key) {
+			Location l = this.index.get(key);
+			if (l == null) {
+				return null;
+			}
+			byte[] val = new byte[l.length];
+			read(l.segment.buf, l.offset, val);
+			try {
+				return decode(val);
+			} catch (IOException e) {
+				this.index.remove(key);
+				return null;
+			}
+		}
+
+		private synchronized void put(String key, CachedResponse cr) throws IOException {
+			if (this.index.containsKey(key)) {
+				return;
+			}
+			byte[] k = key.getBytes(StandardCharsets.UTF_8);
+			byte[] v = encode(cr);
+			int len = RECORD_OVERHEAD + k.length + v.length;
+			if (len > this.segmentBytes) {
+				return;
+			}
+
+			Segment s = this.segments.peekLast();
+			if (s == null || s.writePos + len > s.buf.capacity()) {
+				int id = (s == null) ? 0 : s.id + 1;
+				s = new Segment(new File(this.directory, Segment.name(id)), id, this.segmentBytes);
+				this.segments.add(s);
+				while (this.segments.size() > 1 && (long) this.segments.size() * this.segmentBytes > this.maxBytes) {
+					this.remove(this.segments.removeFirst());
+				}
+			}
+
+			// write the lengths last, so that a record cut short by a crash is ignored when scanned
+			int pos = s.writePos;
+			write(s.buf, pos + 8, k);
+			write(s.buf, pos + 8 + k.length, v);
+			s.buf.putInt(pos + 8 + k.length + v.length, crc(k, v));
+			s.buf.putInt(pos + 4, v.length);
+			s.buf.putInt(pos, k.length);
+			s.writePos += len;
+			s.keys.add(key);
+			this.index.put(key, new Location(s, pos + 8 + k.length, v.length));
+			this.bytes += len;
+		}
+
+		private void remove(Segment s) throws IOException {
+			for (String k : s.keys) {
+				Location l = this.index.get(k);
+				if (l != null && l.segment == s) {
+					this.index.remove(k);
+				}
+			}
+			this.bytes -= s.writePos;
+			s.close();
+			s.file.delete();
+		}
+
+		private synchronized void clear() throws IOException {
+			while (!this.segments.isEmpty()) {
+				this.remove(this.segments.removeFirst());
+			}
+			this.index.clear();
+		}
+
+		private synchronized void close() throws IOException {
+			for (Segment s : this.segments) {
+				s.buf.force();
+				s.close();
+			}
+			this.segments.clear();
+			this.index.clear();
+		}
+
+		private static void read(MappedByteBuffer buf, int pos, byte[] dst) {
+			ByteBuffer b = buf.duplicate();
+			b.position(pos);
+			b.get(dst);
+		}
+
+		private static void write(MappedByteBuffer buf, int pos, byte[] src) {
+			ByteBuffer b = buf.duplicate();
+			b.position(pos);
+			b.put(src);
+		}
+
+		private static int crc(byte[] key, byte[] val) {
+			CRC32 c = new CRC32();
+			c.update(key);
+			c.update(val);
+			return (int) c.getValue();
+		}
+	}
+
+	/**
+	 * A memory-mapped segment file.
+	 */
+	private static class Segment {
+		private static final Pattern NAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+		private int id;
+		private File file;
+		private RandomAccessFile raf;
+		private MappedByteBuffer buf;
+		private int writePos = 0;
+		private ArrayList<String> keys = new ArrayList<String>();
+
+		/**
+		 * Open a segment, creating it with the given size if it does not exist.
+		 */
+		private Segment(File file, int id, int size) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			long len = Math.max(this.raf.length(), size);
+			this.buf = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, len);
+		}
+
+		private static String name(int id) {
+			return String.format("segment-%08d.dat", id);
+		}
+
+		/**
+		 * Close the file. The mapping stays valid, and holds on to the file's space even once deleted, until the
+		 * buffer is garbage collected.
+		 */
+		private void close() throws IOException {
+			this.raf.close();
+		}
+	}
+
+	/**
+	 * Where a value is stored on disk.
+	 */
+	private static class Location {
+		private Segment segment;
+		private int offset;
+		private int length;
+
+		private Location(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -16,30 +16,175 @@
 
 package com.continusec.client;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.io.IOUtils;
+
 /**
- * Package private class to represent raw value returned by HTTP call to server.
+ * Class to represent raw value returned by HTTP call to server. Instances are produced by
+ * a {@link Transport} and interpreted by {@link ContinusecClient}.
+ * <p>
+ * The body may either be fully buffered, or an open stream that is read as it arrives from the
+ * network. Streamed responses hold on to their underlying connection until {@link #close()} is called,
+ * or the body is read to the end.
  */
-class ResponseData {
+public class ResponseData implements Closeable {
 	/**
-	 * The raw body data.
+	 * The HTTP status code.
+	 */
+	protected int statusCode;
+
+	/**
+	 * The raw body data, or null if the body is being streamed and has not been buffered.
 	 */
 	protected byte[] data;
 
+	/**
+	 * The unread body stream, or null if the body is buffered.
+	 */
+	protected InputStream body;
+
 	/**
 	 * A map of headers.
 	 */
 	protected Map<String,List<String>> headers;
 
+	private Runnable closeListener = null;
+
 	/**
 	 * Constructor.
+	 * @param statusCode the HTTP status code returned by the server.
 	 * @param data the raw body data.
 	 * @param headers the header map.
 	 */
-	protected ResponseData(byte[] data, Map<String,List<String>> headers) {
+	public ResponseData(int statusCode, byte[] data, Map<String,List<String>> headers) {
+		this.statusCode = statusCode;
 		this.data = data;
 		this.headers = headers;
 	}
+
+	/**
+	 * Constructor for a streamed response.
+	 * @param statusCode the HTTP status code returned by the server.
+	 * @param body the body stream, which will be closed when this response is closed.
+	 * @param headers the header map.
+	 */
+	public ResponseData(int statusCode, InputStream body, Map<String,List<String>> headers) {
+		this.statusCode = statusCode;
+		this.body = body;
+		this.headers = headers;
+	}
+
+	/**
+	 * Package private constructor for a successful response.
+	 * @param data the raw body data.
+	 * @param headers the header map.
+	 */
+	protected ResponseData(byte[] data, Map<String,List<String>> headers) {
+		this(200, data, headers);
+	}
+
+	/**
+	 * Get the HTTP status code.
+	 * @return the status code.
+	 */
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+	/**
+	 * Get the first value of a header, ignoring case.
+	 * @param name the header name.
+	 * @return the value, or null if not present.
+	 */
+	public String getHeader(String name) {
+		if (this.headers == null) {
+			return null;
+		}
+		for (Map.Entry<String,List<String>> e : this.headers.entrySet()) {
+			if (e.getKey() != null && e.getKey().equalsIgnoreCase(name) && !e.getValue().isEmpty()) {
+				return e.getValue().get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the raw body data, reading the remainder of the stream into memory if the body is being streamed.
+	 * @return the body.
+	 * @throws IOException upon error reading the body.
+	 */
+	public byte[] getData() throws IOException {
+		if (this.data == null) {
+			this.buffer();
+		}
+		return this.data;
+	}
+
+	/**
+	 * Get the body as a stream. Once the body has been buffered, each call returns a new stream over the buffered data.
+	 * @return the body stream.
+	 */
+	public InputStream getBody() {
+		if (this.body == null) {
+			return new ByteArrayInputStream(this.data == null ? new byte[0] : this.data);
+		}
+		return this.body;
+	}
+
+	/**
+	 * Package private method to read the full body into memory, and release the underlying stream.
+	 * @throws IOException upon error reading the body.
+	 */
+	protected void buffer() throws IOException {
+		if (this.body != null) {
+			try {
+				this.data = IOUtils.toByteArray(this.body);
+			} finally {
+				this.close();
+			}
+		} else if (this.data == null) {
+			this.data = new byte[0];
+		}
+	}
+
+	/**
+	 * Close the body stream (if any), which releases the underlying connection. Buffered data remains available.
+	 */
+	public void close() {
+		if (this.body != null) {
+			IOUtils.closeQuietly(this.body);
+			this.body = null;
+		}
+		Runnable listener;
+		synchronized (this) {
+			listener = this.closeListener;
+			this.closeListener = null;
+		}
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Package private method to set a callback to be run once, the first time this response is closed.
+	 * @param listener the callback.
+	 */
+	protected synchronized void setCloseListener(Runnable listener) {
+		this.closeListener = listener;
+	}
+
+	/**
+	 * Get the response headers.
+	 * @return the header map.
+	 */
+	public Map<String,List<String>> getHeaders() {
+		return this.headers;
+	}
 }
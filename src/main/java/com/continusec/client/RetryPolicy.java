@@ -0,0 +1,212 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Policy describing if and when failed requests should be retried. Set on a client with
+ * {@link ContinusecClient#setRetryPolicy(RetryPolicy)}:
+ * <pre>{@code
+ * RetryPolicy policy = new RetryPolicy();
+ * policy.setMaxAttempts(5);
+ * policy.setBackoff(200, 30000);
+ * client.setRetryPolicy(policy);
+ * }</pre>
+ * <p>
+ * By default up to 3 attempts are made for GET requests that fail with a {@link ContinusecNetworkException}
+ * or {@link InternalErrorException}. Since GET requests do not modify state they are always safe to retry;
+ * other methods need to be added explicitly with {@link #setRetryableMethods(String...)}.
+ * <p>
+ * Between attempts the caller sleeps for a random time between zero and an exponentially increasing
+ * upper bound ("full jitter"), so that many clients that fail at once do not retry in lock step.
+ * <p>
+ * To avoid retries multiplying load on a server that is already struggling, retries are limited by a
+ * budget: each request adds a fraction of a token to the budget (up to a maximum), and each retry takes
+ * a whole token. Once the budget is exhausted, failures are returned to the caller straight away.
+ * <p>
+ * {@link LogEntryIterator} uses the same policy to resume from the current entry if a batch fails part way through.
+ * A single policy may be shared by many clients, in which case they share the retry budget.
+ */
+public class RetryPolicy {
+	private volatile int maxAttempts = 3;
+	private volatile long initialBackoffMillis = 100;
+	private volatile long maxBackoffMillis = 10000;
+	private volatile Set<Class<? extends ContinusecException>> retryableExceptions;
+	private volatile Set<String> retryableMethods;
+
+	private double maxTokens = 10.0;
+	private double tokenRatio = 0.1;
+	private double tokens = 10.0;
+
+	private AtomicLong retryCount = new AtomicLong();
+	private AtomicLong budgetExhaustedCount = new AtomicLong();
+
+	/**
+	 * Create a retry policy with the default settings.
+	 */
+	public RetryPolicy() {
+		this.setRetryableExceptions(Arrays.asList(ContinusecNetworkException.class, InternalErrorException.class));
+		this.setRetryableMethods("GET");
+	}
+
+	/**
+	 * Set the maximum number of attempts, including the first.
+	 * @param maxAttempts the maximum number of attempts, 1 disables retries.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Get the maximum number of attempts, including the first.
+	 * @return the maximum number of attempts.
+	 */
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	/**
+	 * Set the backoff between attempts. The upper bound of the sleep doubles with each attempt.
+	 * @param initialBackoffMillis the upper bound of the sleep before the first retry.
+	 * @param maxBackoffMillis the maximum upper bound of any sleep.
+	 */
+	public void setBackoff(long initialBackoffMillis, long maxBackoffMillis) {
+		if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+			throw new IllegalArgumentException();
+		}
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Set the exceptions that should be retried. Subclasses of those specified are also retried.
+	 * @param exceptions the exception classes, e.g. {@code List.of(ContinusecNetworkException.class)}.
+	 */
+	public void setRetryableExceptions(Collection<Class<? extends ContinusecException>> exceptions) {
+		this.retryableExceptions = Collections.unmodifiableSet(new HashSet<Class<? extends ContinusecException>>(exceptions));
+	}
+
+	/**
+	 * Set the HTTP methods that should be retried. Only add non-GET methods if duplicate writes are acceptable,
+	 * as a request that fails may still have been processed by the server.
+	 * @param methods the methods, e.g. "GET", "PUT".
+	 */
+	public void setRetryableMethods(String... methods) {
+		this.retryableMethods = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(methods)));
+	}
+
+	/**
+	 * Set the retry budget.
+	 * @param maxTokens the maximum number of retries that can be banked.
+	 * @param tokenRatio the fraction of a retry earned by each request, e.g. 0.1 allows on average one retry per ten requests.
+	 */
+	public synchronized void setRetryBudget(double maxTokens, double tokenRatio) {
+		if (maxTokens < 1.0 || tokenRatio < 0.0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxTokens = maxTokens;
+		this.tokenRatio = tokenRatio;
+		this.tokens = maxTokens;
+	}
+
+	/**
+	 * Get the number of retries made under this policy.
+	 * @return the number of retries.
+	 */
+	public long getRetryCount() {
+		return this.retryCount.get();
+	}
+
+	/**
+	 * Get the number of failures that would have been retried, but were not as the retry budget was exhausted.
+	 * @return the number of failures not retried due to the budget.
+	 */
+	public long getBudgetExhaustedCount() {
+		return this.budgetExhaustedCount.get();
+	}
+
+	/**
+	 * Package private method called for each new request (not each attempt), to replenish the budget.
+	 */
+	protected synchronized void onRequest() {
+		this.tokens = Math.min(this.maxTokens, this.tokens + this.tokenRatio);
+	}
+
+	/**
+	 * Package private method to decide whether a failed attempt should be retried. If so, a token is taken from the budget.
+	 * @param method the HTTP method of the request.
+	 * @param e the failure.
+	 * @param attempt the number of the attempt that failed, starting at 1.
+	 * @return true if the request should be retried.
+	 */
+	protected boolean shouldRetry(String method, ContinusecException e, int attempt) {
+		if (attempt >= this.maxAttempts || !this.retryableMethods.contains(method)) {
+			return false;
+		}
+		boolean retryable = false;
+		for (Class<? extends ContinusecException> c : this.retryableExceptions) {
+			if (c.isInstance(e)) {
+				retryable = true;
+				break;
+			}
+		}
+		if (!retryable) {
+			return false;
+		}
+		synchronized (this) {
+			if (this.tokens < 1.0) {
+				this.budgetExhaustedCount.incrementAndGet();
+				return false;
+			}
+			this.tokens -= 1.0;
+		}
+		this.retryCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Package private method to sleep before the next attempt.
+	 * @param attempt the number of the attempt that failed, starting at 1.
+	 * @throws ContinusecException if interrupted while sleeping.
+	 */
+	protected void backoff(int attempt) throws ContinusecException {
+		long bound = this.initialBackoffMillis;
+		for (int i = 1; i < attempt && bound < this.maxBackoffMillis; i++) {
+			bound <<= 1;
+		}
+		bound = Math.min(bound, this.maxBackoffMillis);
+		if (bound <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ContinusecException(e);
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.io.IOException;
+
+/**
+ * Interface for the HTTP layer used by {@link ContinusecClient} to talk to the API server.
+ * A single instance may be shared by any number of clients, and is used by every
+ * {@link VerifiableLog}, {@link VerifiableMap} and {@link LogEntryIterator} created from them,
+ * so implementations must be thread-safe.
+ * <pre>{@code
+ * Transport transport = new DefaultTransport(16);
+ * ContinusecClient a = new ContinusecClient("account", "key", "https://api.continusec.com", transport);
+ * ContinusecClient b = new ContinusecClient("account", "other key", "https://api.continusec.com", transport);
+ * }</pre>
+ */
+public interface Transport {
+	/**
+	 * Send a request and return the response. Implementations should return any HTTP response
+	 * (including non-200 status codes) as a {@link ResponseData}, as mapping status codes to
+	 * exceptions is the responsibility of the client. Implementations should allow a request in flight to be
+	 * aborted from another thread, see {@link TransportRequest#setAbortHandler(Runnable)}.
+	 * @param request the request to send.
+	 * @return the status code, body and headers.
+	 * @throws IOException upon any network error.
+	 */
+	public ResponseData send(TransportRequest request) throws IOException;
+}
@@ -0,0 +1,125 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+/**
+ * Class to represent a single HTTP request that {@link ContinusecClient} asks a {@link Transport} to send.
+ */
+public class TransportRequest {
+	private String method;
+	private String url;
+	private byte[] data;
+	private String[][] headers;
+
+	private Runnable abortHandler = null;
+	private boolean aborted = false;
+
+	/**
+	 * Constructor.
+	 * @param method the HTTP method to use.
+	 * @param url the full URL to send the request to.
+	 * @param data for PUT and POST methods, the data (if any) to send in body. May be null.
+	 * @param headers the headers to include in the request, as name / value pairs.
+	 */
+	public TransportRequest(String method, String url, byte[] data, String[][] headers) {
+		this.method = method;
+		this.url = url;
+		this.data = data;
+		this.headers = headers;
+	}
+
+	/**
+	 * Get the HTTP method.
+	 * @return the method.
+	 */
+	public String getMethod() {
+		return this.method;
+	}
+
+	/**
+	 * Get the full URL.
+	 * @return the URL.
+	 */
+	public String getURL() {
+		return this.url;
+	}
+
+	/**
+	 * Get the request body.
+	 * @return the body, which may be null.
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+
+	/**
+	 * Get the request headers.
+	 * @return an array of name / value pairs.
+	 */
+	public String[][] getHeaders() {
+		return this.headers;
+	}
+
+	/**
+	 * Does this request carry a body?
+	 * @return true for POST and PUT requests.
+	 */
+	public boolean hasBody() {
+		return this.method.equals("POST") || this.method.equals("PUT");
+	}
+
+	/**
+	 * Set the callback used to abort this request while it is in flight, such as by closing its connection. Transports
+	 * should set this once the request has a connection (and again once the response arrives, if aborting then differs),
+	 * and release the connection slot as for any other network error when it is called. If the request has already been
+	 * aborted, the callback is run straight away. The callback may block, so is not run on the thread waiting for a result.
+	 * @param handler the callback, which may be called from another thread.
+	 */
+	public void setAbortHandler(Runnable handler) {
+		synchronized (this) {
+			if (!this.aborted) {
+				this.abortHandler = handler;
+				return;
+			}
+		}
+		handler.run();
+	}
+
+	/**
+	 * Has this request been aborted? Transports should check this before opening a connection.
+	 * @return true if the request has been aborted.
+	 */
+	public synchronized boolean isAborted() {
+		return this.aborted;
+	}
+
+	/**
+	 * Package private method to abort this request, for example when another hedged attempt has won. The transport's
+	 * abort handler (if any) is run, so that the connection is closed rather than held until the response completes.
+	 */
+	protected void abort() {
+		Runnable handler;
+		synchronized (this) {
+			this.aborted = true;
+			handler = this.abortHandler;
+			this.abortHandler = null;
+		}
+		if (handler != null) {
+			handler.run();
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the latest tree head for each log and map, set on a client with
+ * {@link ContinusecClient#setTreeHeadCache(TreeHeadCache)}:
+ * <pre>{@code
+ * client.setTreeHeadCache(new TreeHeadCache(5000));
+ * }</pre>
+ * <p>
+ * Calls to {@link VerifiableLog#getTreeHead(int)} and {@link VerifiableMap#getTreeHead(int)} for
+ * {@link ContinusecClient#HEAD} return the cached head without a request while it is younger than the TTL.
+ * Once older, the head is revalidated with a conditional request (If-None-Match, using the ETag of the cached
+ * response), and if the server replies 304 Not Modified the cached head is used again without a body being sent.
+ * Concurrent revalidations of the same head share a single request.
+ * <p>
+ * A head fetched in full always replaces the cached one, even if smaller, so that a log or map that has been
+ * deleted and created again is not stuck on its old head. Verification is unchanged: {@link VerifiableLog#getVerifiedLatestTreeHead(LogTreeHead)} still proves any
+ * newer head consistent with the previous one, and returns the previous head if there is nothing newer.
+ * Polling methods such as {@link VerifiableLog#blockUntilPresent(MerkleTreeLeaf)} always revalidate.
+ * Tree heads for a specific tree size are not cached here.
+ * <p>
+ * Heads are keyed on the server, account and API key as well as the log or map, so one cache may be shared by
+ * several clients.
+ */
+public class TreeHeadCache {
+	private volatile long ttlNanos;
+	private ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+
+	private AtomicLong hitCount = new AtomicLong();
+	private AtomicLong notModifiedCount = new AtomicLong();
+	private AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * A cached tree head.
+	 */
+	static class Entry {
+		private final Object head;
+		private final String etag;
+		private volatile long validatedNanos;
+
+		private Entry(Object head, String etag) {
+			this.head = head;
+			this.etag = etag;
+			this.validatedNanos = System.nanoTime();
+		}
+
+		Object getHead() {
+			return this.head;
+		}
+
+		String getETag() {
+			return this.etag;
+		}
+	}
+
+	/**
+	 * Create a cache with a TTL of 1 second.
+	 */
+	public TreeHeadCache() {
+		this(1000);
+	}
+
+	/**
+	 * Create a cache with a custom TTL.
+	 * @param ttlMillis how long a head is used before it is revalidated, 0 to revalidate on every call.
+	 */
+	public TreeHeadCache(long ttlMillis) {
+		this.setTtl(ttlMillis);
+	}
+
+	/**
+	 * Set how long a head is used before it is revalidated.
+	 * @param ttlMillis the TTL in milliseconds, 0 to revalidate on every call.
+	 */
+	public void setTtl(long ttlMillis) {
+		if (ttlMillis < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	/**
+	 * Get how long a head is used before it is revalidated.
+	 * @return the TTL in milliseconds.
+	 */
+	public long getTtlMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.ttlNanos);
+	}
+
+	/**
+	 * Remove all cached heads, so that the next call for each sends an unconditional request.
+	 */
+	public void clear() {
+		this.entries.clear();
+	}
+
+	/**
+	 * Get the number of calls answered from the cache without a request.
+	 * @return the number of hits.
+	 */
+	public long getHitCount() {
+		return this.hitCount.get();
+	}
+
+	/**
+	 * Get the number of revalidations answered with 304 Not Modified.
+	 * @return the number of unchanged heads revalidated.
+	 */
+	public long getNotModifiedCount() {
+		return this.notModifiedCount.get();
+	}
+
+	/**
+	 * Get the number of calls for which the head was fetched in full.
+	 * @return the number of misses.
+	 */
+	public long getMissCount() {
+		return this.missCount.get();
+	}
+
+	/**
+	 * Package private method to return a head if it may be used without revalidation.
+	 * @param key the server, account, log or map and operation.
+	 * @return the cached entry, or null if missing or expired.
+	 */
+	protected Entry getFresh(String key) {
+		Entry e = this.entries.get(key);
+		if (e != null && System.nanoTime() - e.validatedNanos < this.ttlNanos) {
+			this.hitCount.incrementAndGet();
+			return e;
+		}
+		return null;
+	}
+
+	/**
+	 * Package private method to return a head that may be revalidated.
+	 * @param key the server, account, log or map and operation.
+	 * @return the cached entry, or null if missing.
+	 */
+	protected Entry get(String key) {
+		return this.entries.get(key);
+	}
+
+	/**
+	 * Package private method called when the server confirms a cached head is unchanged.
+	 * @param e the cached entry.
+	 */
+	protected void onNotModified(Entry e) {
+		e.validatedNanos = System.nanoTime();
+		this.notModifiedCount.incrementAndGet();
+	}
+
+	/**
+	 * Package private method to store a head fetched in full.
+	 * @param key the server, account, log or map and operation.
+	 * @param head the tree head.
+	 * @param etag the ETag of the response, or null if none.
+	 */
+	protected void put(String key, Object head, String etag) {
+		this.missCount.incrementAndGet();
+		this.entries.put(key, new Entry(head, etag));
+	}
+}
@@ -0,0 +1,42 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+/**
+ * Callbacks for changes to the tree head of a log or map, added with
+ * {@link TreeHeadWatcher#watchLog(VerifiableLog, TreeHeadListener)} or
+ * {@link TreeHeadWatcher#watchMap(VerifiableMap, TreeHeadListener)}.
+ * <p>
+ * Methods are called on a thread belonging to the watcher, so should return quickly. Any {@link RuntimeException}
+ * thrown by a listener is ignored.
+ * @param <T> the type of tree head, {@link LogTreeHead} for logs or {@link MapTreeState} for maps.
+ */
+public interface TreeHeadListener<T> {
+	/**
+	 * Called with the first non-empty tree head seen, and then each newer tree head. Each has been verified to be consistent
+	 * with the one before it.
+	 * @param head the new tree head.
+	 */
+	public void treeHeadChanged(T head);
+
+	/**
+	 * Called when a poll fails, including when a new tree head fails to verify. Polling continues.
+	 * @param e the failure.
+	 */
+	default void pollFailed(ContinusecException e) {
+	}
+}
@@ -0,0 +1,369 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Polls the tree heads of logs and maps on behalf of any number of listeners:
+ * <pre>{@code
+ * TreeHeadWatcher watcher = TreeHeadWatcher.getSharedInstance();
+ * watcher.watchLog(log, head -> saveLatestTreeHead(head));
+ * watcher.watchMap(map, state -> saveLatestMapState(state));
+ * }</pre>
+ * <p>
+ * Each log or map is polled once however many listeners watch it, where the same log or map is identified by its
+ * client and name. Each new tree head is verified to be consistent with the one before it before listeners are told:
+ * for logs with a consistency proof, and for maps as by {@link VerifiableMap#getVerifiedMapState(MapTreeState, int)}.
+ * Empty tree heads (of size 0) are not reported. A listener added to a log or map already being watched is first told
+ * of the latest tree head seen.
+ * <p>
+ * The interval between polls adapts to how often the tree head changes. After a change the next poll is made after
+ * half the average time between recent changes, and each poll that sees no change (or fails) doubles the interval,
+ * always within the bounds set by {@link #setPollInterval(long, long)}. A log or map stops being polled once its
+ * last listener is removed. Polls are made on the watcher's own daemon threads, and always fetch the latest tree head
+ * from the server rather than the client's {@link TreeHeadCache}.
+ */
+public class TreeHeadWatcher implements AutoCloseable {
+	private static final TreeHeadWatcher shared = new TreeHeadWatcher();
+
+	private volatile long minPollMillis = 100;
+	private volatile long maxPollMillis = 30000;
+
+	private ScheduledThreadPoolExecutor scheduler;
+	private HashMap<Key,Watch<?>> watches = new HashMap<Key,Watch<?>>();
+	private boolean closed = false;
+
+	private AtomicLong pollCount = new AtomicLong();
+
+	/**
+	 * Create a watcher that polls on a single thread.
+	 */
+	public TreeHeadWatcher() {
+		this(1);
+	}
+
+	/**
+	 * Create a watcher that polls on a number of threads, so that a slow poll of one log or map does not delay others.
+	 * @param threads the number of threads.
+	 */
+	public TreeHeadWatcher(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException();
+		}
+		final AtomicInteger count = new AtomicInteger();
+		this.scheduler = new ScheduledThreadPoolExecutor(threads, r -> {
+			Thread t = new Thread(r, "continusec-tree-head-watcher-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+		this.scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Get a watcher shared by all users in the JVM, polling on a single thread. The shared instance cannot be closed,
+	 * so that one user cannot stop polling for all others; use {@link #unwatch(TreeHeadListener)} instead.
+	 * @return the shared instance.
+	 */
+	public static TreeHeadWatcher getSharedInstance() {
+		return shared;
+	}
+
+	/**
+	 * Set bounds on the interval between polls of each log or map.
+	 * @param minPollMillis the shortest interval, also used before the rate of change is known.
+	 * @param maxPollMillis the longest interval.
+	 */
+	public void setPollInterval(long minPollMillis, long maxPollMillis) {
+		if (minPollMillis < 1 || maxPollMillis < minPollMillis) {
+			throw new IllegalArgumentException();
+		}
+		this.minPollMillis = minPollMillis;
+		this.maxPollMillis = maxPollMillis;
+	}
+
+	/**
+	 * Start telling a listener of each new tree head of a log.
+	 * @param log the log.
+	 * @param listener the listener.
+	 */
+	public void watchLog(final VerifiableLog log, TreeHeadListener<LogTreeHead> listener) {
+		this.watch(new Key(log.getClient(), log.getPath()), listener, () -> new Watch<LogTreeHead>() {
+			protected LogTreeHead fetch(LogTreeHead prev) throws ContinusecException {
+				LogTreeHead head = log.getUncachedTreeHead();
+				if (head.getTreeSize() == 0) {
+					return null;
+				}
+				if (prev != null) {
+					if (head.getTreeSize() <= prev.getTreeSize()) {
+						return null;
+					}
+					log.verifyConsistency(prev, head);
+				}
+				return head;
+			}
+
+			protected int size(LogTreeHead head) {
+				return head.getTreeSize();
+			}
+		});
+	}
+
+	/**
+	 * Start telling a listener of each new state of a map.
+	 * @param map the map.
+	 * @param listener the listener.
+	 */
+	public void watchMap(final VerifiableMap map, TreeHeadListener<MapTreeState> listener) {
+		this.watch(new Key(map.getClient(), map.getPath()), listener, () -> new Watch<MapTreeState>() {
+			protected MapTreeState fetch(MapTreeState prev) throws ContinusecException {
+				MapTreeHead head = map.getUncachedTreeHead();
+				if (head.getTreeSize() == 0 || (prev != null && head.getTreeSize() <= prev.getTreeSize())) {
+					return null;
+				}
+				return map.verifyMapState(prev, head);
+			}
+
+			protected int size(MapTreeState state) {
+				return state.getTreeSize();
+			}
+		});
+	}
+
+	/**
+	 * Stop telling a listener of changes to any log or map.
+	 * @param listener the listener.
+	 */
+	public synchronized void unwatch(TreeHeadListener<?> listener) {
+		Iterator<Watch<?>> it = this.watches.values().iterator();
+		while (it.hasNext()) {
+			Watch<?> w = it.next();
+			w.subscribers.removeIf(s -> s.listener == listener);
+			if (w.subscribers.isEmpty()) {
+				if (w.next != null) {
+					w.next.cancel(false);
+				}
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Stop polling, and remove all listeners.
+	 * @throws UnsupportedOperationException if called on the shared instance, see {@link #getSharedInstance()}.
+	 */
+	public void close() {
+		if (this == shared) {
+			throw new UnsupportedOperationException("The shared watcher cannot be closed");
+		}
+		synchronized (this) {
+			this.closed = true;
+			this.watches.clear();
+		}
+		this.scheduler.shutdownNow();
+	}
+
+	/**
+	 * Get the number of logs and maps being watched.
+	 * @return the number being polled.
+	 */
+	public synchronized int getWatchCount() {
+		return this.watches.size();
+	}
+
+	/**
+	 * Get the number of polls made.
+	 * @return the number of polls.
+	 */
+	public long getPollCount() {
+		return this.pollCount.get();
+	}
+
+	/**
+	 * A factory for a watch, so that it is only created if the log or map is not already being watched.
+	 */
+	private interface WatchFactory<T> {
+		Watch<T> create();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> void watch(Key key, TreeHeadListener<T> listener, WatchFactory<T> factory) {
+		Subscriber<T> s = new Subscriber<T>(listener);
+		final Watch<T> w;
+		final T latest;
+		synchronized (this) {
+			if (this.closed) {
+				throw new IllegalStateException("Watcher is closed");
+			}
+			Watch<T> existing = (Watch<T>) this.watches.get(key);
+			if (existing == null) {
+				w = factory.create();
+				w.delayMillis = this.minPollMillis;
+				w.subscribers.add(s);
+				this.watches.put(key, w);
+				w.next = this.scheduler.schedule(w, 0, TimeUnit.MILLISECONDS);
+				return;
+			}
+			w = existing;
+			w.subscribers.add(s);
+			latest = w.latest;
+		}
+		if (latest != null) {
+			this.scheduler.execute(() -> s.deliver(latest, w.size(latest)));
+		}
+	}
+
+	/**
+	 * A listener, and the size of the last tree head it was told of, so that it is never told of an older one.
+	 */
+	private static class Subscriber<T> {
+		private TreeHeadListener<T> listener;
+		private int lastSize = -1;
+
+		private Subscriber(TreeHeadListener<T> listener) {
+			this.listener = listener;
+		}
+
+		private synchronized void deliver(T head, int size) {
+			if (size <= this.lastSize) {
+				return;
+			}
+			this.lastSize = size;
+			try {
+				this.listener.treeHeadChanged(head);
+			} catch (RuntimeException e) {
+				// ignore
+			}
+		}
+
+		private void failed(ContinusecException e) {
+			try {
+				this.listener.pollFailed(e);
+			} catch (RuntimeException re) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * The poll of a single log or map.
+	 */
+	private abstract class Watch<T> implements Runnable {
+		private CopyOnWriteArrayList<Subscriber<T>> subscribers = new CopyOnWriteArrayList<Subscriber<T>>();
+		private volatile T latest = null;
+		private ScheduledFuture<?> next = null;
+
+		// only accessed by the poll, which never runs concurrently with itself
+		private long delayMillis;
+		private long lastChangeMillis = -1;
+		private double meanChangeMillis = -1.0;
+
+		/**
+		 * Fetch and verify the latest tree head.
+		 * @param prev the latest tree head seen, or null if none.
+		 * @return the new tree head, or null if it is not newer than prev.
+		 */
+		protected abstract T fetch(T prev) throws ContinusecException;
+
+		protected abstract int size(T head);
+
+		public void run() {
+			boolean changed = false;
+			try {
+				T head = this.fetch(this.latest);
+				TreeHeadWatcher.this.pollCount.incrementAndGet();
+				if (head != null) {
+					this.latest = head;
+					changed = true;
+					int size = this.size(head);
+					for (Subscriber<T> s : this.subscribers) {
+						s.deliver(head, size);
+					}
+				}
+			} catch (ContinusecException e) {
+				this.failed(e);
+			} catch (RuntimeException e) {
+				this.failed(new ContinusecException(e));
+			} finally {
+				this.reschedule(changed);
+			}
+		}
+
+		private void failed(ContinusecException e) {
+			for (Subscriber<T> s : this.subscribers) {
+				s.failed(e);
+			}
+		}
+
+		/**
+		 * Schedule the next poll, sooner if the tree head has just changed.
+		 */
+		private void reschedule(boolean changed) {
+			long now = System.currentTimeMillis();
+			if (changed) {
+				if (this.lastChangeMillis >= 0) {
+					long gap = now - this.lastChangeMillis;
+					this.meanChangeMillis = (this.meanChangeMillis < 0) ? gap : (0.5 * this.meanChangeMillis) + (0.5 * gap);
+				}
+				this.lastChangeMillis = now;
+				this.delayMillis = (this.meanChangeMillis < 0) ? 0 : (long) (this.meanChangeMillis / 2);
+			} else {
+				this.delayMillis *= 2;
+			}
+			this.delayMillis = Math.max(TreeHeadWatcher.this.minPollMillis, Math.min(TreeHeadWatcher.this.maxPollMillis, this.delayMillis));
+
+			synchronized (TreeHeadWatcher.this) {
+				if (!TreeHeadWatcher.this.closed && !this.subscribers.isEmpty()) {
+					this.next = TreeHeadWatcher.this.scheduler.schedule(this, this.delayMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Identifies a log or map.
+	 */
+	private static class Key {
+		private ContinusecClient client;
+		private String path;
+
+		private Key(ContinusecClient client, String path) {
+			this.client = client;
+			this.path = path;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return this.client == k.client && this.path.equals(k.path);
+		}
+
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(this.client), this.path);
+		}
+	}
+}
@@ -18,19 +18,21 @@ package com.continusec.client;
 
 import java.lang.Iterable;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonArray;
+import com.google.gson.stream.JsonReader;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.DecoderException;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.Stack;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Class to interact with verifiable logs. Instantiate by callling {@link ContinusecClient#getVerifiableLog(String)} method:
@@ -112,6 +114,14 @@ import java.util.Arrays;
  *	 saveLatestTreeHead(head);
  * }
  * }</pre>
+ * <p>
+ * Most methods have an asynchronous counterpart that returns a {@link CompletableFuture} and runs
+ * on the executor configured via {@link ContinusecClient#setExecutor(java.util.concurrent.Executor)},
+ * using one of its threads for each request in flight. Futures complete exceptionally with the same
+ * {@link ContinusecException} that the blocking method would throw:
+ * <pre>{@code
+ * log.getVerifiedLatestTreeHeadAsync(prev).thenCompose(head -> log.verifyInclusionAsync(head, aer).thenApply(v -> head));
+ * }</pre>
  */
 public class VerifiableLog {
 	private ContinusecClient client;
@@ -127,13 +137,29 @@ public class VerifiableLog {
 		this.path = path;
 	}
 
+	/**
+	 * Package private method to get the path to this log, relative to the account.
+	 * @return the relative path.
+	 */
+	protected String getPath() {
+		return this.path;
+	}
+
+	/**
+	 * Package private method to get the client that this log belongs to.
+	 * @return the client.
+	 */
+	protected ContinusecClient getClient() {
+		return this.client;
+	}
+
 	/**
 	 * Send API call to create this log. This should only be called once, and subsequent
 	 * calls will cause an exception to be generated.
 	 * @throws ContinusecException upon error
 	 */
 	public void create() throws ContinusecException {
-		this.client.makeRequest("PUT", this.path, null, null);
+		this.client.makeRequest(Operation.LOG_CREATE, "PUT", this.path, null, null);
 	}
 
 	/**
@@ -142,7 +168,7 @@ public class VerifiableLog {
 	 * @throws ContinusecException upon error
 	 */
 	public void destroy() throws ContinusecException {
-		this.client.makeRequest("DELETE", this.path, null, null);
+		this.client.makeRequest(Operation.LOG_DESTROY, "DELETE", this.path, null, null);
 	}
 
 	/**
@@ -155,29 +181,81 @@ public class VerifiableLog {
 	 * @throws ContinusecException upon error
 	 */
 	public AddEntryResponse add(UploadableEntry e) throws ContinusecException {
-		try {
-			JsonObject j = new JsonParser().parse(new String(this.client.makeRequest("POST", this.path + "/entry" + e.getFormat(), e.getDataForUpload(), null).data, "UTF-8")).getAsJsonObject();
-			return new AddEntryResponse(Base64.decodeBase64(j.get("leaf_hash").getAsString()));
-		} catch (UnsupportedEncodingException e1) {
-			throw new ContinusecException(e1);
+		return this.client.makeJsonRequest(Operation.LOG_ADD, "POST", this.path + "/entry" + e.getFormat(), e.getDataForUpload(), null, AddEntryResponse::fromJsonReader);
+	}
+
+	/**
+	 * Add many entries to the log, with up to 16 requests in flight at once. See {@link #addAll(Iterable, int)}.
+	 * @param entries the entries to add.
+	 * @return the response or failure for each entry, in the order given.
+	 * @throws ContinusecException if interrupted while waiting.
+	 */
+	public AddAllResponse addAll(Iterable<? extends UploadableEntry> entries) throws ContinusecException {
+		return this.addAll(entries, 16);
+	}
+
+	/**
+	 * Add many entries to the log, sending each as soon as there are fewer than maxInFlight requests outstanding,
+	 * rather than waiting for each to be acknowledged before sending the next. A failure to add one entry does not stop
+	 * the others being sent, and is reported in the result. Entries are not necessarily sequenced in the order given.
+	 * Where the client can calculate the leaf hash of an entry itself, it is checked against the leaf hash returned,
+	 * see {@link LogEntrySink#submit(UploadableEntry)}.
+	 * @param entries the entries to add.
+	 * @param maxInFlight the maximum number of requests in flight at once.
+	 * @return the response or failure for each entry, in the order given.
+	 * @throws ContinusecException if interrupted while waiting.
+	 */
+	public AddAllResponse addAll(Iterable<? extends UploadableEntry> entries, int maxInFlight) throws ContinusecException {
+		ArrayList<CompletableFuture<AddEntryResponse>> futures = new ArrayList<CompletableFuture<AddEntryResponse>>();
+		try (LogEntrySink sink = this.openSink(maxInFlight)) {
+			for (UploadableEntry e : entries) {
+				futures.add(sink.add(e));
+			}
 		}
+		return new AddAllResponse(futures);
+	}
+
+	/**
+	 * Open a sink that adds entries to the log with many requests in flight at once. See {@link LogEntrySink}.
+	 * @param maxInFlight the maximum number of requests in flight at once.
+	 * @return the sink, which should be closed once all entries have been added.
+	 */
+	public LogEntrySink openSink(int maxInFlight) {
+		return new LogEntrySink(this, maxInFlight);
+	}
+
+	/**
+	 * Asynchronous version of {@link #add(UploadableEntry)}.
+	 * @param e the entry to add, often {@link RawDataEntry}, {@link JsonEntry} or {@link RedactableJsonEntry}.
+	 * @return a future for the add entry response.
+	 */
+	public CompletableFuture<AddEntryResponse> addAsync(final UploadableEntry e) {
+		return this.client.runAsync(() -> this.add(e));
 	}
 
 	/**
 	 * Get the tree hash for given tree size.
 	 *
 	 * @param treeSize the tree size to retrieve the hash for. Pass {@link ContinusecClient#HEAD} to get the
-	 * latest tree size.
+	 * latest tree size, which may be served from the client's {@link TreeHeadCache} (if any).
 	 * @return the tree hash for the given size (includes the tree size actually used, if unknown before running the query).
 	 * @throws ContinusecException upon error
 	 */
 	public LogTreeHead getTreeHead(int treeSize) throws ContinusecException {
-		try {
-			JsonObject e = new JsonParser().parse(new String(this.client.makeRequest("GET", this.path + "/tree/" + treeSize, null, null).data, "UTF-8")).getAsJsonObject();
-			return LogTreeHead.fromJsonObject(e);
-		} catch (UnsupportedEncodingException e) {
-			throw new ContinusecException(e);
+		if (treeSize == ContinusecClient.HEAD) {
+			return this.client.makeTreeHeadRequest(Operation.LOG_TREE_HEAD, this.path + "/tree/" + treeSize, true, LogTreeHead::fromJsonReader);
 		}
+		return this.client.makeJsonRequest(Operation.LOG_TREE_HEAD, "GET", this.path + "/tree/" + treeSize, null, null, LogTreeHead::fromJsonReader);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getTreeHead(int)}.
+	 * @param treeSize the tree size to retrieve the hash for. Pass {@link ContinusecClient#HEAD} to get the
+	 * latest tree size.
+	 * @return a future for the tree hash.
+	 */
+	public CompletableFuture<LogTreeHead> getTreeHeadAsync(final int treeSize) {
+		return this.client.runAsync(() -> this.getTreeHead(treeSize));
 	}
 
 	/**
@@ -189,7 +267,17 @@ public class VerifiableLog {
 	 * @throws ContinusecException upon error
 	 */
 	public VerifiableEntry get(int idx, VerifiableEntryFactory f) throws ContinusecException {
-		return f.createFromBytes(this.client.makeRequest("GET", this.path + "/entry/" + idx + f.getFormat(), null, null).data);
+		return f.createFromBytes(this.client.makeRequest(Operation.LOG_ENTRY, "GET", this.path + "/entry/" + idx + f.getFormat(), null, null).data);
+	}
+
+	/**
+	 * Asynchronous version of {@link #get(int, VerifiableEntryFactory)}.
+	 * @param idx the index to retrieve (starts at zero).
+	 * @param f the type of entry to return.
+	 * @return a future for the entry requested.
+	 */
+	public CompletableFuture<VerifiableEntry> getAsync(final int idx, final VerifiableEntryFactory f) {
+		return this.client.runAsync(() -> this.get(idx, f));
 	}
 
 	/**
@@ -206,6 +294,27 @@ public class VerifiableLog {
 		return new LogEntryIterable(this.client, this.path, beginIdx, endIdx, f);
 	}
 
+	/**
+	 * Returns a stream of a contiguous set of entries, which may be made parallel to fetch and decode many pages at once:
+	 * <pre>{@code
+	 * try (Stream<VerifiableEntry> entries = log.streamEntries(0, treeHead.getTreeSize(), RawDataEntryFactory.getInstance())) {
+	 *     List<byte[]> data = entries.parallel().map(e -> e.getData()).collect(Collectors.toList());
+	 * }
+	 * }</pre>
+	 * The range is split into page aligned chunks, each read with its own requests, see {@link LogEntrySpliterator}.
+	 * Entries are in index order, which ordered collectors keep. If an entry cannot be read, the stream fails with a
+	 * RuntimeException wrapping the cause, as the iterator returned by {@link #getEntries(int, int, VerifiableEntryFactory)} does.
+	 *
+	 * @param beginIdx the first entry to return
+	 * @param endIdx the last entry to return
+	 * @param f the type of entry to return, usually one of {@link RawDataEntryFactory#getInstance()}, {@link JsonEntryFactory#getInstance()}, {@link RedactedJsonEntryFactory#getInstance()}.
+	 * @return a sequential stream for the entries requested, which should be closed if not consumed to the end.
+	 */
+	public Stream<VerifiableEntry> streamEntries(int beginIdx, int endIdx, VerifiableEntryFactory f) {
+		LogEntrySpliterator rv = new LogEntrySpliterator(this.client, this.path, beginIdx, endIdx, f);
+		return StreamSupport.stream(rv, false).onClose(rv::closeAll);
+	}
+
 	/**
 	 * Get an inclusion proof for a given item for a specific tree size. Most clients will commonly use {@link #verifyInclusion(LogTreeHead,MerkleTreeLeaf)} instead.
 	 * @param treeSize the tree size for which the inclusion proof should be returned. This is usually as returned by {@link #getTreeHead(int)}.getTreeSize().
@@ -214,13 +323,18 @@ public class VerifiableLog {
 	 * @throws ContinusecException upon error
 	 */
 	public LogInclusionProof getInclusionProof(int treeSize, MerkleTreeLeaf leaf) throws ContinusecException {
-		try {
-			byte[] mtlHash = leaf.getLeafHash();
-			JsonObject e = new JsonParser().parse(new String(this.client.makeRequest("GET", this.path + "/tree/" + treeSize + "/inclusion/h/" + Hex.encodeHexString(mtlHash), null, null).data, "UTF-8")).getAsJsonObject();
-			return new LogInclusionProof(e.getAsJsonPrimitive("tree_size").getAsInt(), mtlHash, e.get("leaf_index").getAsInt(), jsonArrayToAuditProof(e.getAsJsonArray("proof")));
-		} catch (UnsupportedEncodingException e) {
-			throw new ContinusecException(e);
-		}
+		final byte[] mtlHash = leaf.getLeafHash();
+		return this.client.makeJsonRequest(Operation.LOG_INCLUSION, "GET", this.path + "/tree/" + treeSize + "/inclusion/h/" + Hex.encodeHexString(mtlHash), null, null, r -> readInclusionProof(r, mtlHash));
+	}
+
+	/**
+	 * Asynchronous version of {@link #getInclusionProof(int, MerkleTreeLeaf)}.
+	 * @param treeSize the tree size for which the inclusion proof should be returned.
+	 * @param leaf the entry for which the inclusion proof should be returned.
+	 * @return a future for the log inclusion proof.
+	 */
+	public CompletableFuture<LogInclusionProof> getInclusionProofAsync(final int treeSize, final MerkleTreeLeaf leaf) {
+		return this.client.runAsync(() -> this.getInclusionProof(treeSize, leaf));
 	}
 
 	/**
@@ -231,7 +345,24 @@ public class VerifiableLog {
 	 */
 	public void verifyInclusion(LogTreeHead treeHead, MerkleTreeLeaf leaf) throws ContinusecException {
 		LogInclusionProof proof = this.getInclusionProof(treeHead.getTreeSize(), leaf);
-		proof.verify(treeHead);
+		this.client.verifyProof(Operation.LOG_INCLUSION, treeHead.getTreeSize(), () -> proof.verify(treeHead));
+	}
+
+	/**
+	 * Asynchronous version of {@link #verifyInclusion(LogTreeHead, MerkleTreeLeaf)}.
+	 * @param treeHead the tree head for which the inclusion proof should be returned.
+	 * @param leaf the entry for which the inclusion proof should be returned.
+	 * @return a future that completes normally if and only if the leaf is proven to be included.
+	 */
+	public CompletableFuture<Void> verifyInclusionAsync(final LogTreeHead treeHead, MerkleTreeLeaf leaf) {
+		return this.getInclusionProofAsync(treeHead.getTreeSize(), leaf).thenApply(proof -> {
+			try {
+				this.client.verifyProof(Operation.LOG_INCLUSION, treeHead.getTreeSize(), () -> proof.verify(treeHead));
+				return null;
+			} catch (ContinusecException e) {
+				throw new CompletionException(e);
+			}
+		});
 	}
 
 	/**
@@ -243,20 +374,65 @@ public class VerifiableLog {
 	 * @throws ContinusecException upon error
 	 */
 	public LogInclusionProof getInclusionProofByIndex(int treeSize, int leafIndex) throws ContinusecException {
-		try {
-			JsonObject e = new JsonParser().parse(new String(this.client.makeRequest("GET", this.path + "/tree/" + treeSize + "/inclusion/" + leafIndex, null, null).data, "UTF-8")).getAsJsonObject();
-			return new LogInclusionProof(e.getAsJsonPrimitive("tree_size").getAsInt(), null, e.get("leaf_index").getAsInt(), jsonArrayToAuditProof(e.getAsJsonArray("proof")));
-		} catch (UnsupportedEncodingException e) {
-			throw new ContinusecException(e);
+		return this.client.makeJsonRequest(Operation.LOG_INCLUSION, "GET", this.path + "/tree/" + treeSize + "/inclusion/" + leafIndex, null, null, r -> readInclusionProof(r, null));
+	}
+
+	private static LogInclusionProof readInclusionProof(JsonReader r, byte[] mtlHash) throws IOException, ContinusecException {
+		int treeSize = -1;
+		int leafIndex = -1;
+		byte[][] auditPath = null;
+		r.beginObject();
+		while (r.hasNext()) {
+			String name = r.nextName();
+			if (name.equals("tree_size")) {
+				treeSize = r.nextInt();
+			} else if (name.equals("leaf_index")) {
+				leafIndex = r.nextInt();
+			} else if (name.equals("proof")) {
+				auditPath = readAuditPath(r);
+			} else {
+				r.skipValue();
+			}
+		}
+		r.endObject();
+		if (auditPath == null) {
+			throw new InternalErrorException();
 		}
+		return new LogInclusionProof(treeSize, mtlHash, leafIndex, auditPath);
 	}
 
-	private static byte[][] jsonArrayToAuditProof(JsonArray a) {
-		byte[][] auditPath = new byte[a.size()][];
-		for (int i = 0; i < auditPath.length; i++) {
-			auditPath[i] = Base64.decodeBase64(a.get(i).getAsString());
+	private static LogConsistencyProof readConsistencyProof(JsonReader r) throws IOException, ContinusecException {
+		int firstSize = -1;
+		int secondSize = -1;
+		byte[][] auditPath = null;
+		r.beginObject();
+		while (r.hasNext()) {
+			String name = r.nextName();
+			if (name.equals("first_tree_size")) {
+				firstSize = r.nextInt();
+			} else if (name.equals("second_tree_size")) {
+				secondSize = r.nextInt();
+			} else if (name.equals("proof")) {
+				auditPath = readAuditPath(r);
+			} else {
+				r.skipValue();
+			}
+		}
+		r.endObject();
+		if (auditPath == null) {
+			throw new InternalErrorException();
+		}
+		return new LogConsistencyProof(firstSize, secondSize, auditPath);
+	}
+
+	private static byte[][] readAuditPath(JsonReader r) throws IOException {
+		ArrayList<byte[]> rv = new ArrayList<byte[]>();
+		r.beginArray();
+		while (r.hasNext()) {
+			rv.add(Base64.decodeBase64(r.nextString()));
 		}
-		return auditPath;
+		r.endArray();
+		return rv.toArray(new byte[rv.size()][]);
 	}
 
 	/**
@@ -290,7 +466,41 @@ public class VerifiableLog {
 		}
 
 		LogConsistencyProof proof = this.getConsistencyProof(first.getTreeSize(), second.getTreeSize());
-		proof.verify(first, second);
+		this.client.verifyProof(Operation.LOG_CONSISTENCY, second.getTreeSize(), () -> proof.verify(first, second));
+	}
+
+	/**
+	 * Asynchronous version of {@link #verifyConsistency(LogTreeHead, LogTreeHead)}.
+	 * @param a one log tree head
+	 * @param b another log tree head
+	 * @return a future that completes normally if and only if the two tree heads are proven to be consistent.
+	 */
+	public CompletableFuture<Void> verifyConsistencyAsync(LogTreeHead a, LogTreeHead b) {
+		CompletableFuture<Void> rv = new CompletableFuture<Void>();
+		if ((a.getTreeSize() <= 0) || (b.getTreeSize() <= 0)) {
+			rv.completeExceptionally(new InvalidRangeException());
+			return rv;
+		}
+
+		if (a.getTreeSize() == b.getTreeSize()) {
+			if (!Arrays.equals(a.getRootHash(), b.getRootHash())) {
+				rv.completeExceptionally(new VerificationFailedException());
+			} else {
+				rv.complete(null);
+			}
+			return rv;
+		}
+
+		final LogTreeHead first = (a.getTreeSize() < b.getTreeSize()) ? a : b;
+		final LogTreeHead second = (a.getTreeSize() < b.getTreeSize()) ? b : a;
+		return this.getConsistencyProofAsync(first.getTreeSize(), second.getTreeSize()).thenApply(proof -> {
+			try {
+				this.client.verifyProof(Operation.LOG_CONSISTENCY, second.getTreeSize(), () -> proof.verify(first, second));
+				return null;
+			} catch (ContinusecException e) {
+				throw new CompletionException(e);
+			}
+		});
 	}
 
 	/**
@@ -302,12 +512,17 @@ public class VerifiableLog {
 	 * @throws ContinusecException upon error
 	 */
 	public LogConsistencyProof getConsistencyProof(int firstSize, int secondSize) throws ContinusecException {
-		try {
-			JsonObject e = new JsonParser().parse(new String(this.client.makeRequest("GET", this.path + "/tree/" + secondSize + "/consistency/" + firstSize, null, null).data, "UTF-8")).getAsJsonObject();
-			return new LogConsistencyProof(e.getAsJsonPrimitive("first_tree_size").getAsInt(), e.getAsJsonPrimitive("second_tree_size").getAsInt(), jsonArrayToAuditProof(e.getAsJsonArray("proof")));
-		} catch (UnsupportedEncodingException e) {
-			throw new ContinusecException(e);
-		}
+		return this.client.makeJsonRequest(Operation.LOG_CONSISTENCY, "GET", this.path + "/tree/" + secondSize + "/consistency/" + firstSize, null, null, VerifiableLog::readConsistencyProof);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getConsistencyProof(int, int)}.
+	 * @param firstSize the size of the first tree.
+	 * @param secondSize the size of the second tree.
+	 * @return a future for the log consistency proof.
+	 */
+	public CompletableFuture<LogConsistencyProof> getConsistencyProofAsync(final int firstSize, final int secondSize) {
+		return this.client.runAsync(() -> this.getConsistencyProof(firstSize, secondSize));
 	}
 
 	/**
@@ -315,6 +530,7 @@ public class VerifiableLog {
 	 * This polls {@link #getTreeHead(int)} and {@link #verifyInclusion(LogTreeHead, MerkleTreeLeaf)} until
 	 * such time as a new tree hash is produced that includes the given MerkleTreeLeaf. Exponential back-off
 	 * is used when no tree hash is available. This is intended for test use - the returned tree head is not verified for consistency.
+	 * To wait for many leaves at once, use an {@link InclusionWaiter} instead, which polls once for all of them.
 	 * @param leaf the leaf we should block until included. Typically this is a {@link AddEntryResponse} as returned by {@link #add(UploadableEntry)}.
 	 * @return the first tree hash that includes this leaf (proof is not verified).
 	 * @throws ContinusecException upon error
@@ -323,7 +539,7 @@ public class VerifiableLog {
 		int lastHead = -1;
 		double secsToSleep = 0;
 		while (true) {
-			LogTreeHead lth = this.getTreeHead(ContinusecClient.HEAD);
+			LogTreeHead lth = this.getUncachedTreeHead();
 			if (lth.getTreeSize() > lastHead) {
 				lastHead = lth.getTreeSize();
 				try {
@@ -346,6 +562,26 @@ public class VerifiableLog {
 		}
 	}
 
+	/**
+	 * Open a waiter that tracks many leaves until each is included in the log, using a single poll of the tree head
+	 * for all of them. See {@link InclusionWaiter}.
+	 * @param maxInFlight the maximum number of inclusion proof requests in flight at once.
+	 * @return the waiter, which should be closed once no longer needed.
+	 */
+	public InclusionWaiter openInclusionWaiter(int maxInFlight) {
+		return new InclusionWaiter(this, maxInFlight);
+	}
+
+	/**
+	 * Package private method to get the latest tree head from the server, revalidating any copy held by
+	 * the client's {@link TreeHeadCache}.
+	 * @return the latest tree head.
+	 * @throws ContinusecException upon error
+	 */
+	protected LogTreeHead getUncachedTreeHead() throws ContinusecException {
+		return this.client.makeTreeHeadRequest(Operation.LOG_TREE_HEAD, this.path + "/tree/" + ContinusecClient.HEAD, false, LogTreeHead::fromJsonReader);
+	}
+
 	/**
 	 * getVerifiedLatestTreeHead calls getVerifiedTreeHead() with HEAD to fetch the latest tree head,
 	 * and additionally verifies that it is newer than the previously passed tree head.
@@ -364,6 +600,20 @@ public class VerifiableLog {
 		return head;
 	}
 
+	/**
+	 * Asynchronous version of {@link #getVerifiedLatestTreeHead(LogTreeHead)}.
+	 * @param prev a previously persisted log tree head
+	 * @return a future for the verified tree head.
+	 */
+	public CompletableFuture<LogTreeHead> getVerifiedLatestTreeHeadAsync(final LogTreeHead prev) {
+		return this.getVerifiedTreeHeadAsync(prev, ContinusecClient.HEAD).thenApply(head -> {
+			if ((prev != null) && (head.getTreeSize() <= prev.getTreeSize())) {
+				return prev;
+			}
+			return head;
+		});
+	}
+
 	/**
 	 * getVerifiedTreeHead is a utility method to fetch a LogTreeHead and verifies that it is consistent with
 	 * a tree head earlier fetched and persisted. For first use, pass null for prev, which will
@@ -389,6 +639,25 @@ public class VerifiableLog {
 		return head;
 	}
 
+	/**
+	 * Asynchronous version of {@link #getVerifiedTreeHead(LogTreeHead, int)}. The consistency proof
+	 * is requested once the tree head has been fetched, without blocking the calling thread.
+	 * @param prev a previously persisted log tree head
+	 * @param treeSize the tree size to fetch
+	 * @return a future for the verified tree head.
+	 */
+	public CompletableFuture<LogTreeHead> getVerifiedTreeHeadAsync(final LogTreeHead prev, int treeSize) {
+		if ((treeSize != 0) && (prev != null) && (prev.getTreeSize() == treeSize)) {
+			return CompletableFuture.completedFuture(prev);
+		}
+
+		CompletableFuture<LogTreeHead> head = this.getTreeHeadAsync(treeSize);
+		if (prev == null) {
+			return head;
+		}
+		return head.thenCompose(h -> this.verifyConsistencyAsync(prev, h).thenApply(v -> h));
+	}
+
 	/**
 	 * VerifySuppliedInclusionProof is a utility method that fetches any required tree heads that are needed
 	 * to verify a supplied log inclusion proof. Additionally it will ensure that any fetched tree heads are consistent
@@ -401,10 +670,27 @@ public class VerifiableLog {
 	 */
 	public LogTreeHead verifySuppliedInclusionProof(LogTreeHead prev, LogInclusionProof proof) throws ContinusecException {
 		LogTreeHead headForInclProof = this.getVerifiedTreeHead(prev, proof.getTreeSize());
-		proof.verify(headForInclProof);
+		this.client.verifyProof(Operation.LOG_INCLUSION, headForInclProof.getTreeSize(), () -> proof.verify(headForInclProof));
 		return headForInclProof;
 	}
 
+	/**
+	 * Asynchronous version of {@link #verifySuppliedInclusionProof(LogTreeHead, LogInclusionProof)}.
+	 * @param prev a previously persisted log tree head, or null
+	 * @param proof an inclusion proof that may be for a different tree size than prev.getTreeSize()
+	 * @return a future for the verified LogTreeHead used to verify the proof.
+	 */
+	public CompletableFuture<LogTreeHead> verifySuppliedInclusionProofAsync(LogTreeHead prev, final LogInclusionProof proof) {
+		return this.getVerifiedTreeHeadAsync(prev, proof.getTreeSize()).thenApply(head -> {
+			try {
+				this.client.verifyProof(Operation.LOG_INCLUSION, head.getTreeSize(), () -> proof.verify(head));
+				return head;
+			} catch (ContinusecException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
 	/**
 	 * Utility method for auditors that wish to audit the full content of a log, as well as the log operation.
 	 * This method will retrieve all entries in batch from the log, and ensure that the root hash in head can be confirmed to accurately represent the contents
@@ -437,8 +723,10 @@ public class VerifiableLog {
 			}
 
 			int idx = (prev == null) ? 0 : prev.getTreeSize();
+			LogEntryIterator entries = new LogEntryIterator(this.client, this.path, idx, head.getTreeSize(), factory);
 			try {
-				for (VerifiableEntry e : this.getEntries(idx, head.getTreeSize(), factory)) {
+				while (entries.hasNext()) {
+					VerifiableEntry e = entries.next();
 					// do whatever content audit is desired on e
 					auditor.auditLogEntry(idx, e);
 
@@ -459,6 +747,8 @@ public class VerifiableLog {
 				} else {
 					throw e2;
 				}
+			} finally {
+				entries.close();
 			}
 
 			if (idx != head.getTreeSize()) {
@@ -16,14 +16,11 @@
 
 package com.continusec.client;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.DecoderException;
 
-import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Class to manage interactions with a Verifiable Map. Use {@link ContinusecClient#getVerifiableMap(String)} to instantiate:
@@ -73,6 +70,11 @@ import java.io.UnsupportedEncodingException;
  * <pre>{@code
  * VerifiableEntry entry = map.getVerifiedValue("foo".getBytes(), head, RawDataEntryFactory.getInstance());
  * }</pre>
+ * <p>
+ * As with {@link VerifiableLog}, most methods have an asynchronous counterpart that returns a {@link CompletableFuture}:
+ * <pre>{@code
+ * map.getVerifiedLatestMapStateAsync(prev).thenCompose(head -> map.getVerifiedValueAsync("foo".getBytes(), head, RawDataEntryFactory.getInstance()));
+ * }</pre>
  */
 public class VerifiableMap {
 	private ContinusecClient client;
@@ -88,6 +90,22 @@ public class VerifiableMap {
 		this.path = path;
 	}
 
+	/**
+	 * Package private method to get the path to this map, relative to the account.
+	 * @return the relative path.
+	 */
+	protected String getPath() {
+		return this.path;
+	}
+
+	/**
+	 * Package private method to get the client that this map belongs to.
+	 * @return the client.
+	 */
+	protected ContinusecClient getClient() {
+		return this.client;
+	}
+
 	/**
 	 * Get a pointer to the mutation log that underlies this verifiable map. Since the mutation log
 	 * is managed by the map, it cannot be directly modified, however all read operations are supported.
@@ -116,7 +134,7 @@ public class VerifiableMap {
 	 * @throws ContinusecException upon error
 	 */
 	public void create() throws ContinusecException {
-		this.client.makeRequest("PUT", this.path, null, null);
+		this.client.makeRequest(Operation.MAP_CREATE, "PUT", this.path, null, null);
 	}
 
 	/**
@@ -125,7 +143,7 @@ public class VerifiableMap {
 	 * @throws ContinusecException upon error
 	 */
 	public void destroy() throws ContinusecException {
-		this.client.makeRequest("DELETE", this.path, null, null);
+		this.client.makeRequest(Operation.MAP_DESTROY, "DELETE", this.path, null, null);
 	}
 
 	private static final byte[][] parseAuditPath(ResponseData rd) throws DecoderException {
@@ -167,10 +185,28 @@ public class VerifiableMap {
 	 */
 	public VerifiableEntry getVerifiedValue(byte[] key, MapTreeState treeHead, VerifiableEntryFactory f) throws ContinusecException {
 		MapGetEntryResponse resp = this.get(key, treeHead.getTreeSize(), f);
-		resp.verify(treeHead.getMapTreeHead());
+		this.client.verifyProof(Operation.MAP_GET, treeHead.getTreeSize(), () -> resp.verify(treeHead.getMapTreeHead()));
 		return resp.getValue();
 	}
 
+	/**
+	 * Asynchronous version of {@link #getVerifiedValue(byte[], MapTreeState, VerifiableEntryFactory)}.
+	 * @param key the key in the map.
+	 * @param treeHead a map tree state as previously returned by {@link #getVerifiedMapState(MapTreeState,int)}
+	 * @param f the factory that should be used to instantiate the VerifiableEntry.
+	 * @return a future for the verified VerifiableEntry (which may be empty).
+	 */
+	public CompletableFuture<VerifiableEntry> getVerifiedValueAsync(byte[] key, final MapTreeState treeHead, VerifiableEntryFactory f) {
+		return this.getAsync(key, treeHead.getTreeSize(), f).thenApply(resp -> {
+			try {
+				this.client.verifyProof(Operation.MAP_GET, treeHead.getTreeSize(), () -> resp.verify(treeHead.getMapTreeHead()));
+				return resp.getValue();
+			} catch (ContinusecException e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
 	/**
 	 * For a given key, return the value and inclusion proof for the given treeSize.
 	 * @param key the key in the map.
@@ -181,13 +217,24 @@ public class VerifiableMap {
 	 */
 	public MapGetEntryResponse get(byte[] key, int treeSize, VerifiableEntryFactory f) throws ContinusecException {
 		try {
-			ResponseData rd = this.client.makeRequest("GET", this.path + "/tree/" + treeSize + "/key/h/" + Hex.encodeHexString(key) + f.getFormat(), null, null);
+			ResponseData rd = this.client.makeRequest(Operation.MAP_GET, "GET", this.path + "/tree/" + treeSize + "/key/h/" + Hex.encodeHexString(key) + f.getFormat(), null, null);
 			return new MapGetEntryResponse(key, f.createFromBytes(rd.data), parseAuditPath(rd), parseVerifiedTreeSize(rd));
 		} catch (DecoderException e) {
 			throw new InternalErrorException();
 		}
 	}
 
+	/**
+	 * Asynchronous version of {@link #get(byte[], int, VerifiableEntryFactory)}.
+	 * @param key the key in the map.
+	 * @param treeSize the tree size.
+	 * @param f the factory that should be used to instantiate the VerifiableEntry.
+	 * @return a future for the value and inclusion proof.
+	 */
+	public CompletableFuture<MapGetEntryResponse> getAsync(final byte[] key, final int treeSize, final VerifiableEntryFactory f) {
+		return this.client.runAsync(() -> this.get(key, treeSize, f));
+	}
+
 	/**
 	 * Set the value for a given key in the map. Calling this has the effect of adding a mutation to the
 	 * mutation log for the map, which then reflects in the root hash for the map. This occurs asynchronously.
@@ -197,12 +244,17 @@ public class VerifiableMap {
 	 * @throws ContinusecException upon error
 	 */
 	public AddEntryResponse set(byte[] key, UploadableEntry e) throws ContinusecException {
-		try {
-			JsonObject j = new JsonParser().parse(new String(this.client.makeRequest("PUT", this.path + "/key/h/" + Hex.encodeHexString(key) + e.getFormat(), e.getDataForUpload(), null).data, "UTF-8")).getAsJsonObject();
-			return new AddEntryResponse(Base64.decodeBase64(j.get("leaf_hash").getAsString()));
-		} catch (UnsupportedEncodingException e1) {
-			throw new ContinusecException(e1);
-		}
+		return this.client.makeJsonRequest(Operation.MAP_SET, "PUT", this.path + "/key/h/" + Hex.encodeHexString(key) + e.getFormat(), e.getDataForUpload(), null, AddEntryResponse::fromJsonReader);
+	}
+
+	/**
+	 * Asynchronous version of {@link #set(byte[], UploadableEntry)}.
+	 * @param key the key to set.
+	 * @param e the entry to set to key to.
+	 * @return a future for the add entry response.
+	 */
+	public CompletableFuture<AddEntryResponse> setAsync(final byte[] key, final UploadableEntry e) {
+		return this.client.runAsync(() -> this.set(key, e));
 	}
 
 	/**
@@ -216,13 +268,19 @@ public class VerifiableMap {
 	 * @throws ContinusecException upon error
 	 */
 	public AddEntryResponse update(byte[] key, UploadableEntry e, MerkleTreeLeaf previousLeafHash) throws ContinusecException {
-		try {
-			String[][] headers = {{"X-Previous-LeafHash", Hex.encodeHexString(previousLeafHash.getLeafHash())}};
-			JsonObject j = new JsonParser().parse(new String(this.client.makeRequest("PUT", this.path + "/key/h/" + Hex.encodeHexString(key) + e.getFormat(), e.getDataForUpload(), headers).data, "UTF-8")).getAsJsonObject();
-			return new AddEntryResponse(Base64.decodeBase64(j.get("leaf_hash").getAsString()));
-		} catch (UnsupportedEncodingException e1) {
-			throw new ContinusecException(e1);
-		}
+		String[][] headers = {{"X-Previous-LeafHash", Hex.encodeHexString(previousLeafHash.getLeafHash())}};
+		return this.client.makeJsonRequest(Operation.MAP_SET, "PUT", this.path + "/key/h/" + Hex.encodeHexString(key) + e.getFormat(), e.getDataForUpload(), headers, AddEntryResponse::fromJsonReader);
+	}
+
+	/**
+	 * Asynchronous version of {@link #update(byte[], UploadableEntry, MerkleTreeLeaf)}.
+	 * @param key the key to set.
+	 * @param e the entry to set to key to.
+	 * @param previousLeafHash the previous leaf hash.
+	 * @return a future for the add entry response.
+	 */
+	public CompletableFuture<AddEntryResponse> updateAsync(final byte[] key, final UploadableEntry e, final MerkleTreeLeaf previousLeafHash) {
+		return this.client.runAsync(() -> this.update(key, e, previousLeafHash));
 	}
 
 	/**
@@ -233,32 +291,41 @@ public class VerifiableMap {
 	 * @throws ContinusecException upon error
 	 */
 	public AddEntryResponse delete(byte[] key) throws ContinusecException {
-		try {
-			JsonObject j = new JsonParser().parse(new String(this.client.makeRequest("DELETE", this.path + "/key/h/" + Hex.encodeHexString(key), null, null).data, "UTF-8")).getAsJsonObject();
-			return new AddEntryResponse(Base64.decodeBase64(j.get("leaf_hash").getAsString()));
-		} catch (UnsupportedEncodingException e1) {
-			throw new ContinusecException(e1);
-		}
+		return this.client.makeJsonRequest(Operation.MAP_DELETE, "DELETE", this.path + "/key/h/" + Hex.encodeHexString(key), null, null, AddEntryResponse::fromJsonReader);
+	}
+
+	/**
+	 * Asynchronous version of {@link #delete(byte[])}.
+	 * @param key the key to delete.
+	 * @return a future for the add entry response.
+	 */
+	public CompletableFuture<AddEntryResponse> deleteAsync(final byte[] key) {
+		return this.client.runAsync(() -> this.delete(key));
 	}
 
 	/**
 	 * Get the tree hash for given tree size.
 	 *
 	 * @param treeSize the tree size to retrieve the hash for. Pass {@link ContinusecClient#HEAD} to get the
-	 * latest tree size.
+	 * latest tree size, which may be served from the client's {@link TreeHeadCache} (if any).
 	 * @return the tree hash for the given size (includes the tree size actually used, if unknown before running the query).
 	 * @throws ContinusecException upon error
 	 */
 	public MapTreeHead getTreeHead(int treeSize) throws ContinusecException {
-		try {
-			JsonObject e = new JsonParser().parse(new String(this.client.makeRequest("GET", this.path + "/tree/" + treeSize, null, null).data, "UTF-8")).getAsJsonObject();
-			return new MapTreeHead(
-				Base64.decodeBase64(e.get("map_hash").getAsString()),
-				LogTreeHead.fromJsonObject(e.getAsJsonObject("mutation_log"))
-			);
-		} catch (UnsupportedEncodingException e) {
-			throw new ContinusecException(e);
+		if (treeSize == ContinusecClient.HEAD) {
+			return this.client.makeTreeHeadRequest(Operation.MAP_TREE_HEAD, this.path + "/tree/" + treeSize, true, MapTreeHead::fromJsonReader);
 		}
+		return this.client.makeJsonRequest(Operation.MAP_TREE_HEAD, "GET", this.path + "/tree/" + treeSize, null, null, MapTreeHead::fromJsonReader);
+	}
+
+	/**
+	 * Asynchronous version of {@link #getTreeHead(int)}.
+	 * @param treeSize the tree size to retrieve the hash for. Pass {@link ContinusecClient#HEAD} to get the
+	 * latest tree size.
+	 * @return a future for the tree hash.
+	 */
+	public CompletableFuture<MapTreeHead> getTreeHeadAsync(final int treeSize) {
+		return this.client.runAsync(() -> this.getTreeHead(treeSize));
 	}
 
 	/**
@@ -278,6 +345,20 @@ public class VerifiableMap {
 		return head;
 	}
 
+	/**
+	 * Asynchronous version of {@link #getVerifiedLatestMapState(MapTreeState)}.
+	 * @param prev previously held MapTreeState, may be null to skip consistency checks.
+	 * @return a future for the latest map state.
+	 */
+	public CompletableFuture<MapTreeState> getVerifiedLatestMapStateAsync(final MapTreeState prev) {
+		return this.getVerifiedMapStateAsync(prev, ContinusecClient.HEAD).thenApply(head -> {
+			if ((prev != null) && (head.getTreeSize() <= prev.getTreeSize())) {
+				return prev;
+			}
+			return head;
+		});
+	}
+
 	/**
 	 * getVerifiedMapState returns a wrapper for the MapTreeHead for a given tree size, along with
 	 * a LogTreeHead for the TreeHeadLog that has been verified to contain this map tree head.
@@ -297,7 +378,18 @@ public class VerifiableMap {
 			return prev;
 		}
 
-		MapTreeHead mapHead = this.getTreeHead(treeSize);
+		return this.verifyMapState(prev, this.getTreeHead(treeSize));
+	}
+
+	/**
+	 * Package private method to verify a map tree head, producing the map state for it. The mutation log is verified
+	 * to be consistent with any previous state, and the tree head log to include the map tree head.
+	 * @param prev previously held MapTreeState, may be null to skip consistency checks.
+	 * @param mapHead the map tree head to verify.
+	 * @return the map state.
+	 * @throws ContinusecException upon error
+	 */
+	protected MapTreeState verifyMapState(MapTreeState prev, MapTreeHead mapHead) throws ContinusecException {
 		if (prev != null) {
 			this.getMutationLog().verifyConsistency(prev.getMapTreeHead().getMutationLogTreeHead(), mapHead.getMutationLogTreeHead());
 		}
@@ -313,11 +405,47 @@ public class VerifiableMap {
 		return new MapTreeState(mapHead, thlth);
 	}
 
+	/**
+	 * Asynchronous version of {@link #getVerifiedMapState(MapTreeState, int)}. Each request is issued as soon as
+	 * the result it depends on is available, without blocking the calling thread. The tree head log is only
+	 * queried once the map tree head has been fetched, so that it is guaranteed to include it.
+	 * @param prev previously held MapTreeState, may be null to skip consistency checks.
+	 * @param treeSize the tree size to retrieve the hash for. Pass {@link ContinusecClient#HEAD} to get the
+	 * latest tree size.
+	 * @return a future for the map state for the given size.
+	 */
+	public CompletableFuture<MapTreeState> getVerifiedMapStateAsync(final MapTreeState prev, int treeSize) {
+		if ((treeSize != 0) && (prev != null) && (prev.getTreeSize() == treeSize)) {
+			return CompletableFuture.completedFuture(prev);
+		}
+
+		CompletableFuture<MapTreeHead> mapHead = this.getTreeHeadAsync(treeSize);
+		if (prev != null) {
+			mapHead = mapHead.thenCompose(mh -> this.getMutationLog().verifyConsistencyAsync(prev.getMapTreeHead().getMutationLogTreeHead(), mh.getMutationLogTreeHead()).thenApply(v -> mh));
+		}
+
+		final LogTreeHead prevThlth = (prev == null) ? null : prev.getTreeHeadLogTreeHead();
+		final VerifiableLog treeHeadLog = this.getTreeHeadLog();
+		return mapHead.thenCompose(mh -> treeHeadLog.getVerifiedLatestTreeHeadAsync(prevThlth).thenCompose(
+			thlth -> treeHeadLog.verifyInclusionAsync(thlth, mh).thenApply(v -> new MapTreeState(mh, thlth))
+		));
+	}
+
+	/**
+	 * Package private method to get the latest map tree head from the server, revalidating any copy held by
+	 * the client's {@link TreeHeadCache}.
+	 * @return the latest map tree head.
+	 * @throws ContinusecException upon error
+	 */
+	protected MapTreeHead getUncachedTreeHead() throws ContinusecException {
+		return this.client.makeTreeHeadRequest(Operation.MAP_TREE_HEAD, this.path + "/tree/" + ContinusecClient.HEAD, false, MapTreeHead::fromJsonReader);
+	}
+
 	/**
 	 * Block until the map has caught up to a certain size.
 	 * This polls {@link #getTreeHead(int)} until
 	 * such time as a new tree hash is produced that is of at least this size.
-	 * This is intended for test use.
+	 * This is intended for test use. To be notified of each new map state instead, see {@link TreeHeadWatcher}.
 	 * @param treeSize the tree size that we should wait for.
 	 * @return the first tree hash that is at least this size.
 	 * @throws ContinusecException upon error
@@ -326,7 +454,7 @@ public class VerifiableMap {
 		int lastHead = -1;
 		double secsToSleep = 0;
 		while (true) {
-			MapTreeHead mth = this.getTreeHead(ContinusecClient.HEAD);
+			MapTreeHead mth = this.getUncachedTreeHead();
 			if (mth.getTreeSize() > lastHead) {
 				lastHead = mth.getTreeSize();
 				if (lastHead >= treeSize) {
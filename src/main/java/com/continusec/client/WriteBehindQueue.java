@@ -0,0 +1,277 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of log and map mutations that are sent in the background, so that the caller does not wait for the server:
+ * <pre>{@code
+ * WriteBehindQueue queue = new WriteBehindQueue(10000, 8, WriteBehindQueue.OverflowPolicy.BLOCK);
+ * queue.add(log, new RawDataEntry("foo".getBytes())).whenComplete((aer, err) -> ...);
+ * queue.set(map, "foo".getBytes(), new RawDataEntry("bar".getBytes()));
+ * ...
+ * queue.close();
+ * }</pre>
+ * <p>
+ * Mutations are held in a bounded queue, and sent by a fixed number of worker threads using the usual calls such as
+ * {@link VerifiableLog#add(UploadableEntry)}, so the retry policy and other settings of the client apply. With more than
+ * one worker, mutations may reach the server in a different order to that submitted. A single queue may be used for
+ * many logs and maps.
+ * <p>
+ * What happens when the queue is full is set by the {@link OverflowPolicy}. Mutations still queued when the process
+ * exits are lost, so {@link #close()} should be called on shutdown to send them.
+ */
+public class WriteBehindQueue implements AutoCloseable {
+	/**
+	 * What to do with a mutation submitted while the queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Wait until there is space in the queue.
+		 */
+		BLOCK,
+		/**
+		 * Discard the mutation. The future returned fails with a {@link QueueFullException}.
+		 */
+		DROP,
+		/**
+		 * Throw a {@link QueueFullException} to the caller.
+		 */
+		FAIL,
+	}
+
+	/**
+	 * A queued mutation.
+	 */
+	private interface Mutation {
+		AddEntryResponse send() throws ContinusecException;
+	}
+
+	private static class Task {
+		private Mutation mutation;
+		private CompletableFuture<AddEntryResponse> result = new CompletableFuture<AddEntryResponse>();
+
+		private Task(Mutation mutation) {
+			this.mutation = mutation;
+		}
+	}
+
+	private ArrayBlockingQueue<Task> queue;
+	private OverflowPolicy policy;
+	private ArrayList<Thread> workers = new ArrayList<Thread>();
+
+	private int pending = 0;
+	private boolean closed = false;
+
+	private AtomicLong completedCount = new AtomicLong();
+	private AtomicLong failedCount = new AtomicLong();
+	private AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * Create a queue and start its workers.
+	 * @param capacity the maximum number of mutations waiting to be sent.
+	 * @param workers the number of threads sending mutations, and so the maximum number of requests in flight.
+	 * @param policy what to do when the queue is full.
+	 */
+	public WriteBehindQueue(int capacity, int workers, OverflowPolicy policy) {
+		if (capacity < 1 || workers < 1 || policy == null) {
+			throw new IllegalArgumentException();
+		}
+		this.queue = new ArrayBlockingQueue<Task>(capacity);
+		this.policy = policy;
+		for (int i = 0; i < workers; i++) {
+			Thread t = new Thread(this::work, "continusec-write-behind-" + i);
+			t.setDaemon(true);
+			t.start();
+			this.workers.add(t);
+		}
+	}
+
+	/**
+	 * Queue an entry to be added to a log, see {@link VerifiableLog#add(UploadableEntry)}.
+	 * @param log the log.
+	 * @param e the entry to add.
+	 * @return a future for the add entry response.
+	 * @throws ContinusecException if the queue is full and the policy is {@link OverflowPolicy#FAIL}, or interrupted while waiting.
+	 */
+	public CompletableFuture<AddEntryResponse> add(VerifiableLog log, UploadableEntry e) throws ContinusecException {
+		return this.submit(() -> log.add(e));
+	}
+
+	/**
+	 * Queue a value to be set in a map, see {@link VerifiableMap#set(byte[], UploadableEntry)}.
+	 * @param map the map.
+	 * @param key the key to set.
+	 * @param e the value.
+	 * @return a future for the add entry response.
+	 * @throws ContinusecException if the queue is full and the policy is {@link OverflowPolicy#FAIL}, or interrupted while waiting.
+	 */
+	public CompletableFuture<AddEntryResponse> set(VerifiableMap map, byte[] key, UploadableEntry e) throws ContinusecException {
+		return this.submit(() -> map.set(key, e));
+	}
+
+	/**
+	 * Queue a conditional update of a value in a map, see {@link VerifiableMap#update(byte[], UploadableEntry, MerkleTreeLeaf)}.
+	 * @param map the map.
+	 * @param key the key to set.
+	 * @param e the value.
+	 * @param previousLeafHash the value the key must have for the update to be applied.
+	 * @return a future for the add entry response.
+	 * @throws ContinusecException if the queue is full and the policy is {@link OverflowPolicy#FAIL}, or interrupted while waiting.
+	 */
+	public CompletableFuture<AddEntryResponse> update(VerifiableMap map, byte[] key, UploadableEntry e, MerkleTreeLeaf previousLeafHash) throws ContinusecException {
+		return this.submit(() -> map.update(key, e, previousLeafHash));
+	}
+
+	/**
+	 * Queue the deletion of a value from a map, see {@link VerifiableMap#delete(byte[])}.
+	 * @param map the map.
+	 * @param key the key to delete.
+	 * @return a future for the add entry response.
+	 * @throws ContinusecException if the queue is full and the policy is {@link OverflowPolicy#FAIL}, or interrupted while waiting.
+	 */
+	public CompletableFuture<AddEntryResponse> delete(VerifiableMap map, byte[] key) throws ContinusecException {
+		return this.submit(() -> map.delete(key));
+	}
+
+	/**
+	 * Wait until all mutations submitted so far have been sent.
+	 * @throws ContinusecException if interrupted while waiting.
+	 */
+	public synchronized void flush() throws ContinusecException {
+		try {
+			while (this.pending > 0) {
+				this.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ContinusecException(e);
+		}
+	}
+
+	/**
+	 * Stop accepting mutations, wait until those queued have been sent, then stop the workers.
+	 * @throws ContinusecException if interrupted while waiting.
+	 */
+	public void close() throws ContinusecException {
+		synchronized (this) {
+			this.closed = true;
+		}
+		this.flush();
+		for (Thread t : this.workers) {
+			t.interrupt();
+		}
+	}
+
+	/**
+	 * Get the number of mutations waiting to be sent.
+	 * @return the queue depth.
+	 */
+	public int getQueueDepth() {
+		return this.queue.size();
+	}
+
+	/**
+	 * Get the number of mutations sent successfully.
+	 * @return the number of completed mutations.
+	 */
+	public long getCompletedCount() {
+		return this.completedCount.get();
+	}
+
+	/**
+	 * Get the number of mutations that failed when sent.
+	 * @return the number of failed mutations.
+	 */
+	public long getFailedCount() {
+		return this.failedCount.get();
+	}
+
+	/**
+	 * Get the number of mutations not queued as the queue was full.
+	 * @return the number of mutations dropped or rejected.
+	 */
+	public long getDroppedCount() {
+		return this.droppedCount.get();
+	}
+
+	private CompletableFuture<AddEntryResponse> submit(Mutation m) throws ContinusecException {
+		Task t = new Task(m);
+		synchronized (this) {
+			if (this.closed) {
+				throw new IllegalStateException("Queue is closed");
+			}
+			this.pending++;
+		}
+
+		boolean queued = false;
+		try {
+			if (this.policy == OverflowPolicy.BLOCK) {
+				this.queue.put(t);
+				queued = true;
+			} else {
+				queued = this.queue.offer(t);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ContinusecException(e);
+		} finally {
+			if (!queued) {
+				this.done();
+			}
+		}
+
+		if (!queued) {
+			this.droppedCount.incrementAndGet();
+			if (this.policy == OverflowPolicy.FAIL) {
+				throw new QueueFullException();
+			}
+			t.result.completeExceptionally(new QueueFullException());
+		}
+		return t.result;
+	}
+
+	private void work() {
+		while (true) {
+			Task t;
+			try {
+				t = this.queue.take();
+			} catch (InterruptedException e) {
+				return; // closed
+			}
+			try {
+				AddEntryResponse rv = t.mutation.send();
+				this.completedCount.incrementAndGet();
+				t.result.complete(rv);
+			} catch (ContinusecException | RuntimeException e) {
+				this.failedCount.incrementAndGet();
+				t.result.completeExceptionally(e);
+			} finally {
+				this.done();
+			}
+		}
+	}
+
+	private synchronized void done() {
+		this.pending--;
+		this.notifyAll();
+	}
+}
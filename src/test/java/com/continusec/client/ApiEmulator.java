@@ -0,0 +1,548 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process emulation of the Continusec API, for running integration tests and benchmarks without a server:
+ * <pre>{@code
+ * ApiEmulator emulator = new ApiEmulator("1234", "secret");
+ * emulator.start();
+ * ContinusecClient client = new ContinusecClient("1234", "secret", emulator.getBaseURL());
+ * ...
+ * emulator.stop();
+ * }</pre>
+ * <p>
+ * Logs are held as RFC 6962 Merkle Trees (see {@link EmulatedLog}) and maps as sparse Merkle Trees (see {@link EmulatedMap}),
+ * so all proofs returned verify as they would against the real service. As with the real service, entries added are not
+ * part of the tree until sequenced, which happens in the background after the sequencing delay. Tests that need an entry to be
+ * included can call {@link #sequenceNow()} rather than polling. Responses to GET requests carry an ETag, and a
+ * request with a matching If-None-Match is answered with 304 Not Modified.
+ * <p>
+ * All data is kept in memory and is lost when the emulator is stopped. Redaction of entries for API keys with
+ * restricted access is not emulated, entries are always returned in full.
+ */
+class ApiEmulator {
+	private String account;
+	private String apiKey;
+
+	private ConcurrentHashMap<String,EmulatedLog> logs = new ConcurrentHashMap<String,EmulatedLog>();
+	private ConcurrentHashMap<String,EmulatedMap> maps = new ConcurrentHashMap<String,EmulatedMap>();
+	private Set<String> destroyedLogs = ConcurrentHashMap.newKeySet();
+	private Set<String> destroyedMaps = ConcurrentHashMap.newKeySet();
+
+	private volatile long sequencingDelayMillis = 10;
+	private volatile int maxEntriesPerPage = 1000;
+	private AtomicBoolean sequencingScheduled = new AtomicBoolean();
+	private SecureRandom random = new SecureRandom();
+
+	private HttpServer server = null;
+	private ExecutorService executor = null;
+	private ScheduledExecutorService sequencer = null;
+
+	/**
+	 * Thrown by request handlers to return an error status.
+	 */
+	private static class HttpError extends Exception {
+		private static final long serialVersionUID = 1L;
+		private int statusCode;
+
+		private HttpError(int statusCode) {
+			this.statusCode = statusCode;
+		}
+	}
+
+	/**
+	 * Create an emulator for a single account.
+	 * @param account the account number that requests must be made to.
+	 * @param apiKey the API key that requests must present, or null to allow anonymous access.
+	 */
+	ApiEmulator(String account, String apiKey) {
+		this.account = account;
+		this.apiKey = apiKey;
+	}
+
+	/**
+	 * Set how long after an entry is added before it is sequenced into the tree.
+	 * @param millis the delay in milliseconds, or a negative number to only sequence when {@link #sequenceNow()} is called.
+	 */
+	void setSequencingDelay(long millis) {
+		this.sequencingDelayMillis = millis;
+	}
+
+	/**
+	 * Set the most entries returned for a single request for a range of entries. Larger ranges are truncated, as the
+	 * real service does.
+	 * @param max the maximum number of entries per page.
+	 */
+	void setMaxEntriesPerPage(int max) {
+		this.maxEntriesPerPage = max;
+	}
+
+	/**
+	 * Start listening on a free port on the loopback interface.
+	 * @throws IOException if the server cannot be started.
+	 */
+	synchronized void start() throws IOException {
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "api-emulator");
+			t.setDaemon(true);
+			return t;
+		});
+		this.sequencer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "api-emulator-sequencer");
+			t.setDaemon(true);
+			return t;
+		});
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/v1/account/", this::handle);
+		this.server.start();
+	}
+
+	/**
+	 * Stop the server and release its threads.
+	 */
+	synchronized void stop() {
+		if (this.server != null) {
+			this.server.stop(0);
+			this.executor.shutdownNow();
+			this.sequencer.shutdownNow();
+			this.server = null;
+		}
+	}
+
+	/**
+	 * Get the base URL to pass to {@link ContinusecClient#ContinusecClient(String, String, String)}.
+	 * @return the base URL.
+	 */
+	String getBaseURL() {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Sequence all queued log entries and map mutations, without waiting for the sequencing delay.
+	 * @throws ContinusecException if a map tree head cannot be encoded.
+	 */
+	void sequenceNow() throws ContinusecException {
+		for (EmulatedLog log : this.logs.values()) {
+			log.sequence();
+		}
+		for (EmulatedMap map : this.maps.values()) {
+			map.sequence();
+		}
+	}
+
+	private void scheduleSequencing() {
+		long delay = this.sequencingDelayMillis;
+		if (delay < 0 || !this.sequencingScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		this.sequencer.schedule(() -> {
+			this.sequencingScheduled.set(false);
+			try {
+				this.sequenceNow();
+			} catch (ContinusecException e) {
+				// only possible for values that were already accepted, so nothing useful can be done
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void handle(HttpExchange ex) throws IOException {
+		int status = 200;
+		byte[] body = new byte[0];
+		try {
+			byte[] data = readAll(ex.getRequestBody());
+			String path = ex.getRequestURI().getPath().substring("/v1/account/".length());
+			String[] parts = path.split("/");
+			if (!parts[0].equals(this.account)) {
+				throw new HttpError(404);
+			}
+			if (this.apiKey != null && !("Key " + this.apiKey).equals(ex.getRequestHeaders().getFirst("Authorization"))) {
+				throw new HttpError(403);
+			}
+			body = this.route(ex, parts, data);
+			if (ex.getRequestMethod().equals("GET") && body.length > 0) {
+				// strong validator for conditional requests, so that unchanged tree heads can be revalidated
+				String etag = "\"" + DigestUtils.sha256Hex(body).substring(0, 32) + "\"";
+				ex.getResponseHeaders().add("ETag", etag);
+				if (etag.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+					status = 304;
+				}
+			}
+		} catch (HttpError e) {
+			status = e.statusCode;
+		} catch (ContinusecException | DecoderException | RuntimeException e) {
+			// malformed input, such as bad JSON or hex, is rejected as the real service does
+			status = 400;
+		}
+
+		if (status != 200) {
+			body = new byte[0];
+		}
+		if (body.length == 0) {
+			ex.sendResponseHeaders(status, -1);
+			ex.close();
+			return;
+		}
+		ex.sendResponseHeaders(status, body.length);
+		try (OutputStream os = ex.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	private byte[] route(HttpExchange ex, String[] p, byte[] data) throws HttpError, ContinusecException, DecoderException {
+		String method = ex.getRequestMethod();
+		if (p.length == 2 && method.equals("GET") && p[1].equals("logs")) {
+			return names(this.logs.keySet());
+		} else if (p.length == 2 && method.equals("GET") && p[1].equals("maps")) {
+			return names(this.maps.keySet());
+		} else if (p.length < 3) {
+			throw new HttpError(404);
+		}
+
+		String name = p[2];
+		if (p[1].equals("log")) {
+			if (p.length == 3) {
+				return createOrDestroy(method, name, this.logs, this.destroyedLogs, new EmulatedLog());
+			}
+			return this.routeLog(method, getObject(this.logs, name), p, 3, data, true);
+		} else if (p[1].equals("map")) {
+			if (p.length == 3) {
+				return createOrDestroy(method, name, this.maps, this.destroyedMaps, new EmulatedMap());
+			}
+			EmulatedMap map = getObject(this.maps, name);
+			if (p.length >= 5 && p[3].equals("log") && method.equals("GET")) {
+				if (p[4].equals("mutation")) {
+					return this.routeLog(method, map.getMutationLog(), p, 5, data, false);
+				} else if (p[4].equals("treehead")) {
+					return this.routeLog(method, map.getTreeHeadLog(), p, 5, data, false);
+				}
+			} else if (p.length >= 6 && p[3].equals("key") && p[4].equals("h")) {
+				byte[] key = Hex.decodeHex(p[5].toCharArray());
+				if (method.equals("PUT")) {
+					String prev = ex.getRequestHeaders().getFirst("X-Previous-LeafHash");
+					EmulatedLog.Entry value = createEntry(data, format(p, 6));
+					if (prev == null) {
+						return this.added(map.mutate("set", key, value, null));
+					}
+					return this.added(map.mutate("update", key, value, Hex.decodeHex(prev.trim().toCharArray())));
+				} else if (method.equals("DELETE") && p.length == 6) {
+					return this.added(map.mutate("delete", key, null, null));
+				}
+			} else if (p.length >= 5 && p[3].equals("tree") && method.equals("GET")) {
+				int treeSize = treeSize(Integer.parseInt(p[4]), map.size());
+				if (p.length == 5) {
+					return mapTreeHead(map, treeSize).toString().getBytes(StandardCharsets.UTF_8);
+				} else if (p.length >= 8 && p[5].equals("key") && p[6].equals("h")) {
+					return mapGet(ex, map, Hex.decodeHex(p[7].toCharArray()), treeSize, format(p, 8));
+				}
+			}
+		}
+		throw new HttpError(404);
+	}
+
+	private byte[] routeLog(String method, EmulatedLog log, String[] p, int i, byte[] data, boolean writable) throws HttpError, ContinusecException {
+		if (p[i].equals("entry") && method.equals("POST") && writable) {
+			EmulatedLog.Entry e = createEntry(data, format(p, i + 1));
+			log.addIfAbsent(e);
+			return this.added(e.getLeafHash());
+		} else if (!method.equals("GET")) {
+			throw new HttpError(404);
+		}
+
+		if (p[i].equals("entry") && p.length > i + 1) {
+			int idx = Integer.parseInt(p[i + 1]);
+			if (idx < 0 || idx >= log.size()) {
+				throw new HttpError(400);
+			}
+			return entryData(log.get(idx), format(p, i + 2));
+		} else if (p[i].equals("entries") && p.length > i + 1) {
+			String[] range = p[i + 1].split("-");
+			return this.entries(log, Integer.parseInt(range[0]), Integer.parseInt(range[1]), format(p, i + 2));
+		} else if (p[i].equals("tree") && p.length > i + 1) {
+			int treeSize = treeSize(Integer.parseInt(p[i + 1]), log.size());
+			if (p.length == i + 2) {
+				return logTreeHead(log, treeSize).toString().getBytes(StandardCharsets.UTF_8);
+			} else if (p.length == i + 5 && p[i + 2].equals("inclusion") && p[i + 3].equals("h")) {
+				try {
+					return inclusionProof(log, log.indexOf(Hex.decodeHex(p[i + 4].toCharArray())), treeSize);
+				} catch (DecoderException e) {
+					throw new HttpError(400);
+				}
+			} else if (p.length == i + 4 && p[i + 2].equals("inclusion")) {
+				int idx = Integer.parseInt(p[i + 3]);
+				if (idx < 0) {
+					throw new HttpError(400);
+				}
+				return inclusionProof(log, idx, treeSize);
+			} else if (p.length == i + 4 && p[i + 2].equals("consistency")) {
+				return consistencyProof(log, Integer.parseInt(p[i + 3]), treeSize);
+			}
+		}
+		throw new HttpError(404);
+	}
+
+	private byte[] added(byte[] leafHash) {
+		this.scheduleSequencing();
+		JsonObject o = new JsonObject();
+		o.addProperty("leaf_hash", Base64.encodeBase64String(leafHash));
+		return o.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private byte[] entries(EmulatedLog log, int first, int last, String format) throws HttpError {
+		int size = log.size();
+		if (first < 0 || last <= first || first >= size) {
+			throw new HttpError(400);
+		}
+		last = Math.min(Math.min(last, size), first + this.maxEntriesPerPage);
+		JsonArray rv = new JsonArray();
+		for (int i = first; i < last; i++) {
+			EmulatedLog.Entry e = log.get(i);
+			if (!format.isEmpty() && e.getJson() == null) {
+				// the real service stops at the first entry that cannot be returned in the requested format
+				break;
+			}
+			JsonObject o = new JsonObject();
+			o.addProperty("leaf_data", Base64.encodeBase64String(entryData(e, format)));
+			rv.add(o);
+		}
+		JsonObject o = new JsonObject();
+		o.add("entries", rv);
+		return o.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private byte[] mapGet(HttpExchange ex, EmulatedMap map, byte[] key, int treeSize, String format) throws HttpError {
+		EmulatedMap.Lookup l = map.get(key, treeSize);
+		StringBuilder proof = new StringBuilder();
+		for (int i = 0; i < l.auditPath.length; i++) {
+			if (l.auditPath[i] != null) {
+				if (proof.length() > 0) {
+					proof.append(',');
+				}
+				proof.append(i).append('/').append(Hex.encodeHexString(l.auditPath[i]));
+			}
+		}
+		if (proof.length() > 0) {
+			ex.getResponseHeaders().add("X-Verified-Proof", proof.toString());
+		}
+		ex.getResponseHeaders().add("X-Verified-TreeSize", Integer.toString(treeSize));
+		return (l.value == null) ? new byte[0] : entryData(l.value, format);
+	}
+
+	private static byte[] inclusionProof(EmulatedLog log, int idx, int treeSize) throws HttpError {
+		if (idx == -2) {
+			throw new HttpError(404);
+		} else if (idx == -1 || idx >= treeSize) {
+			throw new HttpError(400);
+		}
+		JsonObject o = new JsonObject();
+		o.addProperty("tree_size", treeSize);
+		o.addProperty("leaf_index", idx);
+		o.add("proof", hashes(log.inclusionProof(idx, treeSize)));
+		return o.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] consistencyProof(EmulatedLog log, int first, int second) throws HttpError {
+		if (first <= 0 || first > second) {
+			throw new HttpError(400);
+		}
+		JsonObject o = new JsonObject();
+		o.addProperty("first_tree_size", first);
+		o.addProperty("second_tree_size", second);
+		o.add("proof", hashes(log.consistencyProof(first, second)));
+		return o.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static JsonObject logTreeHead(EmulatedLog log, int treeSize) {
+		byte[] hash = log.treeHash(treeSize);
+		JsonObject o = new JsonObject();
+		o.addProperty("tree_size", treeSize);
+		o.addProperty("tree_hash", (hash == null) ? null : Base64.encodeBase64String(hash));
+		return o;
+	}
+
+	private static JsonObject mapTreeHead(EmulatedMap map, int treeSize) {
+		JsonObject o = new JsonObject();
+		o.addProperty("map_hash", Base64.encodeBase64String(map.rootHash(treeSize)));
+		o.add("mutation_log", logTreeHead(map.getMutationLog(), treeSize));
+		return o;
+	}
+
+	/**
+	 * Resolve a requested tree size, where 0 means the latest.
+	 */
+	private static int treeSize(int requested, int current) throws HttpError {
+		if (requested < 0 || requested > current) {
+			throw new HttpError(400);
+		}
+		return (requested == 0) ? current : requested;
+	}
+
+	private static <T> byte[] createOrDestroy(String method, String name, Map<String,T> objects, Set<String> destroyed, T created) throws HttpError {
+		if (method.equals("PUT")) {
+			if (destroyed.contains(name) || objects.putIfAbsent(name, created) != null) {
+				throw new HttpError(409);
+			}
+			return new byte[0];
+		} else if (method.equals("DELETE")) {
+			if (objects.remove(name) == null) {
+				throw new HttpError(destroyed.contains(name) ? 409 : 404);
+			}
+			destroyed.add(name);
+			return new byte[0];
+		}
+		throw new HttpError(404);
+	}
+
+	private static <T> T getObject(Map<String,T> objects, String name) throws HttpError {
+		T rv = objects.get(name);
+		if (rv == null) {
+			throw new HttpError(404);
+		}
+		return rv;
+	}
+
+	private static byte[] names(Set<String> names) {
+		JsonArray rv = new JsonArray();
+		for (String n : new TreeSet<String>(names)) {
+			JsonObject o = new JsonObject();
+			o.addProperty("name", n);
+			rv.add(o);
+		}
+		JsonObject o = new JsonObject();
+		o.add("results", rv);
+		return o.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static JsonArray hashes(List<byte[]> l) {
+		JsonArray rv = new JsonArray();
+		for (byte[] b : l) {
+			rv.add(new JsonPrimitive(Base64.encodeBase64String(b)));
+		}
+		return rv;
+	}
+
+	/**
+	 * The format suffix of a path, e.g. "xjson" or "xjson/redactable", starting from part i.
+	 */
+	private static String format(String[] p, int i) {
+		StringBuilder sb = new StringBuilder();
+		for (; i < p.length; i++) {
+			if (sb.length() > 0) {
+				sb.append('/');
+			}
+			sb.append(p[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Create an entry from uploaded data, as {@link UploadableEntry#getFormat()} describes it.
+	 */
+	private EmulatedLog.Entry createEntry(byte[] data, String format) throws HttpError, ContinusecException {
+		if (format.isEmpty() || data.length == 0) {
+			return new EmulatedLog.Entry(data);
+		}
+		JsonElement o = new JsonParser().parse(new String(data, StandardCharsets.UTF_8));
+		if (format.equals("xjson/redactable")) {
+			o = this.addNonces(o);
+		} else if (!format.equals("xjson")) {
+			throw new HttpError(404);
+		}
+		return new EmulatedLog.Entry(ObjectHash.objectHashWithStdRedaction(o), o.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Replace each value in each object with a [nonce, value] pair, so that it may later be redacted.
+	 */
+	private JsonElement addNonces(JsonElement o) {
+		if (o.isJsonArray()) {
+			JsonArray rv = new JsonArray();
+			for (JsonElement e : o.getAsJsonArray()) {
+				rv.add(this.addNonces(e));
+			}
+			return rv;
+		} else if (o.isJsonObject()) {
+			JsonObject rv = new JsonObject();
+			for (Map.Entry<String,JsonElement> e : o.getAsJsonObject().entrySet()) {
+				byte[] nonce = new byte[32];
+				this.random.nextBytes(nonce);
+				JsonArray pair = new JsonArray();
+				pair.add(new JsonPrimitive(Hex.encodeHexString(nonce)));
+				pair.add(this.addNonces(e.getValue()));
+				rv.add(e.getKey(), pair);
+			}
+			return rv;
+		}
+		return o;
+	}
+
+	private static byte[] entryData(EmulatedLog.Entry e, String format) throws HttpError {
+		if (format.isEmpty()) {
+			return e.getLeafInput();
+		} else if (!format.equals("xjson")) {
+			throw new HttpError(404);
+		} else if (e.getJson() == null) {
+			if (e.getLeafInput().length == 0) {
+				return e.getLeafInput();
+			}
+			throw new HttpError(400);
+		}
+		return e.getJson();
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream rv = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		for (int n = is.read(buf); n != -1; n = is.read(buf)) {
+			rv.write(buf, 0, n);
+		}
+		return rv.toByteArray();
+	}
+}
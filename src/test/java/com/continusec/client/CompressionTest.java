@@ -0,0 +1,99 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that compressed responses, compressed by {@link FaultInjectingProxy}, are requested and decoded.
+ */
+public class CompressionTest {
+	private ApiEmulator emulator;
+	private FaultInjectingProxy proxy;
+	private ContinusecClient client;
+	private VerifiableLog log;
+
+	@Before
+	public void setUp() throws Exception {
+		this.emulator = new ApiEmulator("1234", "secret");
+		this.emulator.start();
+		this.proxy = new FaultInjectingProxy(this.emulator.getBaseURL());
+		this.proxy.start();
+		this.client = new ContinusecClient("1234", "secret", this.proxy.getBaseURL());
+
+		this.log = this.client.getVerifiableLog("compressed");
+		this.log.create();
+		for (int i = 0; i < 20; i++) {
+			this.log.add(new RawDataEntry(("foo-" + i).getBytes()));
+		}
+		this.emulator.sequenceNow();
+	}
+
+	@After
+	public void tearDown() {
+		this.proxy.stop();
+		this.emulator.stop();
+	}
+
+	@Test
+	public void testGzip() throws ContinusecException {
+		this.checkCompressed("gzip");
+	}
+
+	@Test
+	public void testDeflate() throws ContinusecException {
+		this.checkCompressed("deflate");
+	}
+
+	@Test
+	public void testDisabled() throws ContinusecException {
+		this.proxy.setCompression("gzip");
+		this.client.setCompressionEnabled(false);
+		this.checkEntries();
+		assertNull(this.proxy.getLastAcceptEncoding());
+		assertEquals(this.client.getResponseBytesDecoded(), this.client.getResponseBytesOnWire());
+	}
+
+	private void checkCompressed(String encoding) throws ContinusecException {
+		this.proxy.setCompression(encoding);
+		this.checkEntries();
+		assertEquals("gzip, deflate", this.proxy.getLastAcceptEncoding());
+		assertTrue(this.client.getResponseBytesOnWire() < this.client.getResponseBytesDecoded());
+
+		// a 304 revalidating a cached head has an empty body, even though marked as compressed
+		TreeHeadCache cache = new TreeHeadCache(0);
+		this.client.setTreeHeadCache(cache);
+		LogTreeHead head = this.log.getTreeHead(ContinusecClient.HEAD);
+		assertEquals(head, this.log.getTreeHead(ContinusecClient.HEAD));
+		assertEquals(1, cache.getNotModifiedCount());
+	}
+
+	private void checkEntries() throws ContinusecException {
+		int count = 0;
+		for (VerifiableEntry e : this.log.getEntries(0, 20, RawDataEntryFactory.getInstance())) {
+			assertEquals("foo-" + count, new String(e.getData()));
+			count++;
+		}
+		assertEquals(20, count);
+	}
+}
@@ -0,0 +1,125 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the connection limits and reuse of {@link DefaultTransport}, with two {@link FaultInjectingProxy} instances in
+ * front of an {@link ApiEmulator} acting as separate hosts.
+ */
+public class DefaultTransportTest {
+	private ApiEmulator emulator;
+	private FaultInjectingProxy hostA;
+	private FaultInjectingProxy hostB;
+	private DefaultTransport transport;
+	private VerifiableLog logA;
+	private VerifiableLog logB;
+
+	@Before
+	public void setUp() throws Exception {
+		this.emulator = new ApiEmulator("1234", "secret");
+		this.emulator.start();
+		this.hostA = new FaultInjectingProxy(this.emulator.getBaseURL());
+		this.hostA.start();
+		this.hostB = new FaultInjectingProxy(this.emulator.getBaseURL());
+		this.hostB.start();
+		this.transport = new DefaultTransport(2, 3);
+		this.logA = this.createLog(this.hostA);
+		this.logB = this.createLog(this.hostB);
+		this.logA.create();
+		this.logA.add(new RawDataEntry("foo".getBytes()));
+		this.emulator.sequenceNow();
+	}
+
+	@After
+	public void tearDown() {
+		this.hostA.stop();
+		this.hostB.stop();
+		this.emulator.stop();
+	}
+
+	@Test
+	public void testLimits() throws Exception {
+		this.hostA.addLatency(LatencyDistribution.fixed(500), ".*/tree/0");
+		List<CompletableFuture<LogTreeHead>> slow = this.getTreeHeads(this.logA, 6);
+
+		// callers queued for a busy host do not hold slots needed by another host
+		FaultInjectingProxyTest.waitFor(() -> this.transport.getWaitCount() >= 4, 2000);
+		assertEquals(2, this.transport.getConnectionsInUse());
+		long start = System.nanoTime();
+		assertEquals(1, this.logB.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		assertTrue(System.nanoTime() - start < 250000000L);
+		for (CompletableFuture<LogTreeHead> f : slow) {
+			assertEquals(1, f.get().getTreeSize());
+		}
+
+		// with both hosts busy, the total limit applies
+		this.hostB.addLatency(LatencyDistribution.fixed(200), ".*/tree/0");
+		slow = this.getTreeHeads(this.logA, 4);
+		slow.addAll(this.getTreeHeads(this.logB, 4));
+		for (CompletableFuture<LogTreeHead> f : slow) {
+			assertEquals(1, f.get().getTreeSize());
+		}
+		assertEquals(3, this.transport.getPeakConnectionsInUse());
+		assertEquals(0, this.transport.getConnectionsInUse());
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			assertEquals(1, this.logA.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		}
+		// error responses are read to the end too, so that their connection can be reused
+		VerifiableLog missing = new ContinusecClient("1234", "secret", this.hostA.getBaseURL(), this.transport).getVerifiableLog("missing");
+		for (int i = 0; i < 5; i++) {
+			try {
+				missing.getTreeHead(ContinusecClient.HEAD);
+				fail();
+			} catch (ObjectNotFoundException e) {
+				// good
+			}
+		}
+		assertEquals(1, this.hostA.getConnectionCount());
+		assertEquals(0, this.transport.getConnectionsInUse());
+	}
+
+	private VerifiableLog createLog(FaultInjectingProxy host) {
+		ContinusecClient client = new ContinusecClient("1234", "secret", host.getBaseURL(), this.transport);
+		// identical concurrent requests would otherwise share a single request
+		client.setCoalescingEnabled(false);
+		return client.getVerifiableLog("transport");
+	}
+
+	private List<CompletableFuture<LogTreeHead>> getTreeHeads(VerifiableLog log, int count) {
+		ArrayList<CompletableFuture<LogTreeHead>> rv = new ArrayList<CompletableFuture<LogTreeHead>>();
+		for (int i = 0; i < count; i++) {
+			rv.add(log.getTreeHeadAsync(ContinusecClient.HEAD));
+		}
+		return rv;
+	}
+}
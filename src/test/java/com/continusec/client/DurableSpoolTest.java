@@ -0,0 +1,174 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link DurableSpool}, against an {@link ApiEmulator} behind a {@link FaultInjectingProxy} that simulates outages.
+ */
+public class DurableSpoolTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ApiEmulator emulator;
+	private FaultInjectingProxy proxy;
+	private ContinusecClient client;
+	private VerifiableLog log;
+
+	@Before
+	public void setUp() throws Exception {
+		this.emulator = new ApiEmulator("1234", "secret");
+		this.emulator.start();
+		this.proxy = new FaultInjectingProxy(this.emulator.getBaseURL());
+		this.proxy.start();
+		this.client = new ContinusecClient("1234", "secret", this.proxy.getBaseURL());
+		this.client.setRetryPolicy(null);
+		this.log = this.client.getVerifiableLog("spooled");
+		this.log.create();
+	}
+
+	@After
+	public void tearDown() {
+		this.proxy.stop();
+		this.emulator.stop();
+	}
+
+	@Test
+	public void testOutage() throws Exception {
+		VerifiableMap map = this.client.getVerifiableMap("spooled");
+		map.create();
+		DurableSpool spool = new DurableSpool(this.client, this.folder.newFolder(), 4096);
+		spool.setBackoff(1, 20);
+
+		this.proxy.inject(FaultInjectingProxy.Fault.SERVER_ERROR, 1.0, ".*/(entry|key/).*");
+		ArrayList<CompletableFuture<AddEntryResponse>> futures = new ArrayList<CompletableFuture<AddEntryResponse>>();
+		for (int i = 0; i < 50; i++) {
+			futures.add(spool.add(this.log, entry(i)));
+		}
+		CompletableFuture<AddEntryResponse> set = spool.set(map, "foo".getBytes(), new RawDataEntry("bar".getBytes()));
+		CompletableFuture<AddEntryResponse> missing = spool.add(this.client.getVerifiableLog("nosuchlog"), entry(0));
+		Thread.sleep(100);
+		assertEquals(52, spool.getPendingCount());
+		assertTrue(spool.getSegmentCount() > 1);
+		assertTrue(spool.getOutageRetryCount() > 0);
+
+		this.proxy.clear();
+		spool.flush();
+		assertEquals(0, spool.getPendingCount());
+		assertEquals(51, spool.getSentCount());
+		assertEquals(1, spool.getRejectedCount());
+		assertEquals(1, spool.getSegmentCount());
+		assertTrue(set.isDone() && !set.isCompletedExceptionally());
+		assertTrue(missing.isCompletedExceptionally());
+		for (int i = 0; i < 50; i++) {
+			assertArrayEquals(entry(i).getLeafHash(), futures.get(i).get().getLeafHash());
+		}
+		spool.close();
+
+		// entries were sent in the order added
+		this.emulator.sequenceNow();
+		int count = 0;
+		for (VerifiableEntry e : this.log.getEntries(0, 50, RawDataEntryFactory.getInstance())) {
+			assertArrayEquals(entry(count).getData(), e.getData());
+			count++;
+		}
+		assertEquals(50, count);
+		assertEquals(1, map.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		File dir = this.folder.newFolder();
+		this.proxy.inject(FaultInjectingProxy.Fault.SERVER_ERROR, 1.0, ".*/entry.*");
+		DurableSpool spool = new DurableSpool(this.client, dir, 64 * 1024);
+		spool.setBackoff(1, 20);
+		ArrayList<CompletableFuture<AddEntryResponse>> futures = new ArrayList<CompletableFuture<AddEntryResponse>>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(spool.add(this.log, entry(i)));
+		}
+		spool.close();
+		for (CompletableFuture<AddEntryResponse> f : futures) {
+			assertTrue(f.isCompletedExceptionally());
+		}
+
+		// damage the last record, as if the process died while writing it
+		File segment = new File(dir, "spool-00000000.dat");
+		try (RandomAccessFile f = new RandomAccessFile(segment, "rw")) {
+			long last = 0;
+			for (long pos = 0; ; ) {
+				f.seek(pos);
+				int len = f.readInt();
+				if (len == 0) {
+					break;
+				}
+				last = pos;
+				pos += 41 + len;
+			}
+			f.seek(last + 41 + 3);
+			int b = f.read();
+			f.seek(last + 41 + 3);
+			f.write(b ^ 0xff);
+		}
+
+		spool = new DurableSpool(this.client, dir, 64 * 1024);
+		spool.setBackoff(1, 20);
+		assertEquals(9, spool.getPendingCount());
+		this.proxy.clear();
+		spool.flush();
+		assertEquals(9, spool.getSentCount());
+		spool.close();
+
+		// every record is now done, so nothing is sent again and the segment is deleted
+		spool = new DurableSpool(this.client, dir, 64 * 1024);
+		assertEquals(0, spool.getPendingCount());
+		assertEquals(0, spool.getSegmentCount());
+		assertFalse(segment.exists());
+		spool.close();
+
+		this.emulator.sequenceNow();
+		int count = 0;
+		for (VerifiableEntry e : this.log.getEntries(0, 9, RawDataEntryFactory.getInstance())) {
+			assertArrayEquals(entry(count).getData(), e.getData());
+			count++;
+		}
+		assertEquals(9, count);
+		assertEquals(9, this.log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+	}
+
+	private static RawDataEntry entry(int i) {
+		StringBuilder sb = new StringBuilder("foo-" + i + "-");
+		while (sb.length() < 200) {
+			sb.append('x');
+		}
+		return new RawDataEntry(sb.toString().getBytes());
+	}
+}
@@ -0,0 +1,249 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * A log held in memory by {@link ApiEmulator}, as an RFC 6962 Merkle Tree. Entries are added to a
+ * pending queue, and only become part of the tree when sequenced.
+ * <p>
+ * Hashes of complete, aligned subtrees are kept for each level, so that tree hashes and proofs for
+ * any tree size can be produced with a logarithmic number of hash operations.
+ */
+class EmulatedLog {
+	private ArrayList<Entry> entries = new ArrayList<Entry>();
+	private ArrayList<ArrayList<byte[]>> levels = new ArrayList<ArrayList<byte[]>>();
+	private HashMap<String,Integer> indexByLeafHash = new HashMap<String,Integer>();
+	private ArrayList<Entry> pending = new ArrayList<Entry>();
+	private HashMap<String,Integer> pendingByLeafHash = new HashMap<String,Integer>();
+
+	/**
+	 * An entry in a log. The leaf input is the value that is hashed to produce the leaf hash, which is
+	 * the raw data for raw entries, and the object hash for JSON entries.
+	 */
+	static class Entry {
+		private byte[] leafInput;
+		private byte[] json;
+		private byte[] leafHash;
+
+		/**
+		 * Create a raw data entry.
+		 * @param data the data.
+		 */
+		Entry(byte[] data) {
+			this(data, null);
+		}
+
+		/**
+		 * Create an entry.
+		 * @param leafInput the value hashed to produce the leaf hash.
+		 * @param json the JSON form, or null for raw data entries.
+		 */
+		Entry(byte[] leafInput, byte[] json) {
+			this.leafInput = leafInput;
+			this.json = json;
+			this.leafHash = Util.leafMerkleTreeHash(leafInput);
+		}
+
+		byte[] getLeafInput() {
+			return this.leafInput;
+		}
+
+		byte[] getJson() {
+			return this.json;
+		}
+
+		byte[] getLeafHash() {
+			return this.leafHash;
+		}
+	}
+
+	EmulatedLog() {
+		this.levels.add(new ArrayList<byte[]>());
+	}
+
+	/**
+	 * Queue an entry to be sequenced.
+	 * @param e the entry.
+	 */
+	synchronized void add(Entry e) {
+		this.pending.add(e);
+		String k = Hex.encodeHexString(e.getLeafHash());
+		Integer n = this.pendingByLeafHash.get(k);
+		this.pendingByLeafHash.put(k, (n == null) ? 1 : n + 1);
+	}
+
+	/**
+	 * Queue an entry to be sequenced, unless an entry with the same leaf hash is already queued or in the tree,
+	 * as the real service does for log entries.
+	 * @param e the entry.
+	 */
+	synchronized void addIfAbsent(Entry e) {
+		if (this.indexOf(e.getLeafHash()) == -2) {
+			this.add(e);
+		}
+	}
+
+	/**
+	 * Add an entry straight to the tree, bypassing the queue.
+	 * @param e the entry.
+	 */
+	synchronized void append(Entry e) {
+		int idx = this.entries.size();
+		this.entries.add(e);
+		String k = Hex.encodeHexString(e.getLeafHash());
+		if (!this.indexByLeafHash.containsKey(k)) {
+			this.indexByLeafHash.put(k, idx);
+		}
+
+		this.levels.get(0).add(e.getLeafHash());
+		for (int level = 0; (this.levels.get(level).size() & 1) == 0; level++) {
+			ArrayList<byte[]> cur = this.levels.get(level);
+			if (this.levels.size() == level + 1) {
+				this.levels.add(new ArrayList<byte[]>());
+			}
+			this.levels.get(level + 1).add(Util.nodeMerkleTreeHash(cur.get(cur.size() - 2), cur.get(cur.size() - 1)));
+		}
+	}
+
+	/**
+	 * Add all queued entries to the tree.
+	 * @return the entries sequenced.
+	 */
+	synchronized List<Entry> sequence() {
+		ArrayList<Entry> rv = this.pending;
+		this.pending = new ArrayList<Entry>();
+		this.pendingByLeafHash.clear();
+		for (Entry e : rv) {
+			this.append(e);
+		}
+		return rv;
+	}
+
+	synchronized int size() {
+		return this.entries.size();
+	}
+
+	synchronized Entry get(int idx) {
+		return this.entries.get(idx);
+	}
+
+	/**
+	 * Get the index of the first entry with a leaf hash.
+	 * @param leafHash the leaf hash.
+	 * @return the index, -1 if only queued, or -2 if unknown.
+	 */
+	synchronized int indexOf(byte[] leafHash) {
+		String k = Hex.encodeHexString(leafHash);
+		Integer rv = this.indexByLeafHash.get(k);
+		if (rv != null) {
+			return rv;
+		}
+		return this.pendingByLeafHash.containsKey(k) ? -1 : -2;
+	}
+
+	/**
+	 * Get the root hash for the first treeSize entries.
+	 * @param treeSize the tree size.
+	 * @return the root hash, or null for an empty tree.
+	 */
+	synchronized byte[] treeHash(int treeSize) {
+		if (treeSize == 0) {
+			return null;
+		}
+		return this.mth(0, treeSize);
+	}
+
+	/**
+	 * Get the audit path for an entry, per RFC 6962 section 2.1.1.
+	 * @param idx the leaf index.
+	 * @param treeSize the tree size.
+	 * @return the audit path, from the leaf up.
+	 */
+	synchronized List<byte[]> inclusionProof(int idx, int treeSize) {
+		ArrayList<byte[]> rv = new ArrayList<byte[]>();
+		this.path(idx, 0, treeSize, rv);
+		return rv;
+	}
+
+	/**
+	 * Get a consistency proof between two tree sizes, per RFC 6962 section 2.1.2.
+	 * @param first the smaller tree size.
+	 * @param second the larger tree size.
+	 * @return the proof.
+	 */
+	synchronized List<byte[]> consistencyProof(int first, int second) {
+		ArrayList<byte[]> rv = new ArrayList<byte[]>();
+		this.subproof(first, 0, second, true, rv);
+		return rv;
+	}
+
+	private void path(int m, int a, int b, List<byte[]> rv) {
+		int n = b - a;
+		if (n == 1) {
+			return;
+		}
+		int k = largestPow2LessThan(n);
+		if (m < k) {
+			this.path(m, a, a + k, rv);
+			rv.add(this.mth(a + k, b));
+		} else {
+			this.path(m - k, a + k, b, rv);
+			rv.add(this.mth(a, a + k));
+		}
+	}
+
+	private void subproof(int m, int a, int b, boolean complete, List<byte[]> rv) {
+		int n = b - a;
+		if (m == n) {
+			if (!complete) {
+				rv.add(this.mth(a, b));
+			}
+			return;
+		}
+		int k = largestPow2LessThan(n);
+		if (m <= k) {
+			this.subproof(m, a, a + k, complete, rv);
+			rv.add(this.mth(a + k, b));
+		} else {
+			this.subproof(m - k, a + k, b, false, rv);
+			rv.add(this.mth(a, a + k));
+		}
+	}
+
+	/**
+	 * Merkle Tree Hash of the entries from a (inclusive) to b (exclusive).
+	 */
+	private byte[] mth(int a, int b) {
+		int n = b - a;
+		if (Integer.bitCount(n) == 1 && (a % n) == 0) {
+			int level = Integer.numberOfTrailingZeros(n);
+			return this.levels.get(level).get(a >> level);
+		}
+		int k = largestPow2LessThan(n);
+		return Util.nodeMerkleTreeHash(this.mth(a, a + k), this.mth(a + k, b));
+	}
+
+	private static int largestPow2LessThan(int n) {
+		return Integer.highestOneBit(n - 1);
+	}
+}
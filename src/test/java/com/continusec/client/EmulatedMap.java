@@ -0,0 +1,302 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A map held in memory by {@link ApiEmulator}, as a 256 level sparse Merkle Tree. Mutations are added to the
+ * mutation log, and when sequenced applied to the tree in order. A new map tree head is produced for every
+ * mutation, and added to the tree head log.
+ * <p>
+ * The tree is persistent: each mutation copies only the nodes on the path to the changed key, so that the value
+ * and proof for any key can be produced at any earlier tree size. Subtrees holding a single key are stored as a
+ * single leaf node, whose hash is calculated using the default value for each empty sibling.
+ */
+class EmulatedMap {
+	private EmulatedLog mutationLog = new EmulatedLog();
+	private EmulatedLog treeHeadLog = new EmulatedLog();
+	private ArrayList<Node> roots = new ArrayList<Node>();
+	private ArrayList<Mutation> pending = new ArrayList<Mutation>();
+
+	/**
+	 * A queued change to the map.
+	 */
+	private static class Mutation {
+		private byte[] key;
+		private EmulatedLog.Entry value;
+		private byte[] previousLeafHash;
+		private EmulatedLog.Entry logEntry;
+	}
+
+	/**
+	 * The value and audit path for a key at a tree size.
+	 */
+	static class Lookup {
+		byte[][] auditPath = new byte[256][];
+		EmulatedLog.Entry value;
+	}
+
+	EmulatedMap() {
+		this.roots.add(null);
+	}
+
+	EmulatedLog getMutationLog() {
+		return this.mutationLog;
+	}
+
+	EmulatedLog getTreeHeadLog() {
+		return this.treeHeadLog;
+	}
+
+	/**
+	 * Queue a mutation.
+	 * @param action "set", "update" or "delete".
+	 * @param key the key.
+	 * @param value the new value, or null to delete.
+	 * @param previousLeafHash for updates, the leaf hash the current value must have for the update to apply.
+	 * @return the leaf hash of the mutation log entry.
+	 * @throws ContinusecException if the mutation cannot be encoded.
+	 */
+	synchronized byte[] mutate(String action, byte[] key, EmulatedLog.Entry value, byte[] previousLeafHash) throws ContinusecException {
+		JsonObject o = new JsonObject();
+		o.addProperty("timestamp", Instant.now().toString());
+		o.addProperty("action", action);
+		o.addProperty("key", Base64.encodeBase64String(key));
+		if (value != null) {
+			o.addProperty("value", Base64.encodeBase64String(value.getLeafHash()));
+		}
+		if (previousLeafHash != null) {
+			o.addProperty("previous", Base64.encodeBase64String(previousLeafHash));
+		}
+
+		Mutation m = new Mutation();
+		m.key = key;
+		m.value = value;
+		m.previousLeafHash = previousLeafHash;
+		m.logEntry = new EmulatedLog.Entry(ObjectHash.objectHash(o), o.toString().getBytes(StandardCharsets.UTF_8));
+		this.pending.add(m);
+		this.mutationLog.add(m.logEntry);
+		return m.logEntry.getLeafHash();
+	}
+
+	/**
+	 * Apply all queued mutations.
+	 * @throws ContinusecException if a tree head cannot be encoded.
+	 */
+	synchronized void sequence() throws ContinusecException {
+		this.mutationLog.sequence();
+		ArrayList<Mutation> todo = this.pending;
+		this.pending = new ArrayList<Mutation>();
+		for (Mutation m : todo) {
+			byte[] kh = DigestUtils.sha256(m.key);
+			Node root = this.roots.get(this.roots.size() - 1);
+			if (m.previousLeafHash != null) {
+				Lookup cur = this.lookup(root, kh);
+				byte[] curHash = (cur.value == null) ? Util.DEFAULT_LEAF_VALUES[256] : cur.value.getLeafHash();
+				if (!Arrays.equals(curHash, m.previousLeafHash)) {
+					this.roots.add(root);
+					this.publishTreeHead();
+					continue;
+				}
+			}
+			EmulatedLog.Entry v = m.value;
+			if (v != null && Arrays.equals(v.getLeafHash(), Util.DEFAULT_LEAF_VALUES[256])) {
+				v = null; // an empty value is the same as no value
+			}
+			this.roots.add(set(root, 0, kh, v));
+			this.publishTreeHead();
+		}
+	}
+
+	/**
+	 * Number of mutations applied.
+	 */
+	synchronized int size() {
+		return this.roots.size() - 1;
+	}
+
+	synchronized byte[] rootHash(int treeSize) {
+		Node n = this.roots.get(treeSize);
+		return (n == null) ? Util.DEFAULT_LEAF_VALUES[0] : n.hash();
+	}
+
+	/**
+	 * Get the value and audit path for a key.
+	 * @param key the key.
+	 * @param treeSize the tree size.
+	 * @return the lookup result.
+	 */
+	synchronized Lookup get(byte[] key, int treeSize) {
+		return this.lookup(this.roots.get(treeSize), DigestUtils.sha256(key));
+	}
+
+	/**
+	 * Add the map tree head for the latest mutation to the tree head log, in the same JSON form
+	 * that {@link MapTreeHead#getLeafHash()} hashes.
+	 */
+	private void publishTreeHead() throws ContinusecException {
+		int size = this.size();
+		JsonObject ml = new JsonObject();
+		ml.addProperty("tree_size", size);
+		ml.addProperty("tree_hash", Base64.encodeBase64String(this.mutationLog.treeHash(size)));
+		JsonObject o = new JsonObject();
+		o.addProperty("map_hash", Base64.encodeBase64String(this.rootHash(size)));
+		o.add("mutation_log", ml);
+		this.treeHeadLog.append(new EmulatedLog.Entry(ObjectHash.objectHash(o), o.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private Lookup lookup(Node node, byte[] kh) {
+		Lookup rv = new Lookup();
+		for (int depth = 0; node != null && depth < 256; depth++) {
+			if (node instanceof Leaf) {
+				Leaf l = (Leaf) node;
+				if (Arrays.equals(l.kh, kh)) {
+					rv.value = l.value;
+				} else {
+					int j = depth;
+					while (bit(l.kh, j) == bit(kh, j)) {
+						j++;
+					}
+					rv.auditPath[j] = new Leaf(l.kh, l.value, j + 1).hash();
+				}
+				return rv;
+			}
+			Branch b = (Branch) node;
+			Node sibling = bit(kh, depth) ? b.left : b.right;
+			if (sibling != null) {
+				rv.auditPath[depth] = sibling.hash();
+			}
+			node = bit(kh, depth) ? b.right : b.left;
+		}
+		return rv;
+	}
+
+	/**
+	 * Return a copy of the subtree at depth with the value for a key replaced.
+	 */
+	private static Node set(Node node, int depth, byte[] kh, EmulatedLog.Entry v) {
+		if (node == null) {
+			return (v == null) ? null : new Leaf(kh, v, depth);
+		}
+		if (node instanceof Leaf) {
+			Leaf l = (Leaf) node;
+			if (Arrays.equals(l.kh, kh)) {
+				return (v == null) ? null : new Leaf(kh, v, depth);
+			} else if (v == null) {
+				return node;
+			}
+			return split(l, new Leaf(kh, v, depth), depth);
+		}
+		Branch b = (Branch) node;
+		Node left = b.left;
+		Node right = b.right;
+		if (bit(kh, depth)) {
+			right = set(right, depth + 1, kh, v);
+		} else {
+			left = set(left, depth + 1, kh, v);
+		}
+		if (left == null && right == null) {
+			return null;
+		}
+		return new Branch(left, right, depth);
+	}
+
+	private static Node split(Leaf a, Leaf b, int depth) {
+		boolean ab = bit(a.kh, depth);
+		if (ab == bit(b.kh, depth)) {
+			Node child = split(a, b, depth + 1);
+			return ab ? new Branch(null, child, depth) : new Branch(child, null, depth);
+		}
+		Leaf a2 = new Leaf(a.kh, a.value, depth + 1);
+		Leaf b2 = new Leaf(b.kh, b.value, depth + 1);
+		return ab ? new Branch(b2, a2, depth) : new Branch(a2, b2, depth);
+	}
+
+	private static boolean bit(byte[] kh, int i) {
+		return ((kh[i >> 3] >> (7 - (i & 7))) & 1) == 1;
+	}
+
+	/**
+	 * Immutable tree node, with the hash calculated on first use.
+	 */
+	private static abstract class Node {
+		protected int depth;
+		private volatile byte[] hash = null;
+
+		Node(int depth) {
+			this.depth = depth;
+		}
+
+		byte[] hash() {
+			if (this.hash == null) {
+				this.hash = this.calculateHash();
+			}
+			return this.hash;
+		}
+
+		protected abstract byte[] calculateHash();
+	}
+
+	private static class Branch extends Node {
+		private Node left;
+		private Node right;
+
+		Branch(Node left, Node right, int depth) {
+			super(depth);
+			this.left = left;
+			this.right = right;
+		}
+
+		protected byte[] calculateHash() {
+			byte[] l = (this.left == null) ? Util.DEFAULT_LEAF_VALUES[this.depth + 1] : this.left.hash();
+			byte[] r = (this.right == null) ? Util.DEFAULT_LEAF_VALUES[this.depth + 1] : this.right.hash();
+			return Util.nodeMerkleTreeHash(l, r);
+		}
+	}
+
+	private static class Leaf extends Node {
+		private byte[] kh;
+		private EmulatedLog.Entry value;
+
+		Leaf(byte[] kh, EmulatedLog.Entry value, int depth) {
+			super(depth);
+			this.kh = kh;
+			this.value = value;
+		}
+
+		protected byte[] calculateHash() {
+			byte[] t = this.value.getLeafHash();
+			for (int i = 255; i >= this.depth; i--) {
+				if (bit(this.kh, i)) {
+					t = Util.nodeMerkleTreeHash(Util.DEFAULT_LEAF_VALUES[i + 1], t);
+				} else {
+					t = Util.nodeMerkleTreeHash(t, Util.DEFAULT_LEAF_VALUES[i + 1]);
+				}
+			}
+			return t;
+		}
+	}
+}
@@ -0,0 +1,510 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the same flows as {@link AppTest} against an in-process {@link ApiEmulator}.
+ */
+public class EmulatorTest {
+	private ApiEmulator emulator;
+	private ContinusecClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		this.emulator = new ApiEmulator("1234", "secret");
+		this.emulator.start();
+		this.client = new ContinusecClient("1234", "secret", this.emulator.getBaseURL());
+	}
+
+	@After
+	public void tearDown() {
+		this.emulator.stop();
+	}
+
+	@Test
+	public void testLog() throws ContinusecException {
+		VerifiableLog log = this.client.getVerifiableLog("newtestlog");
+		log.create();
+		try {
+			log.create();
+			fail();
+		} catch (ObjectConflictException e) {
+			// good
+		}
+
+		log.add(new RawDataEntry("foo".getBytes()));
+		log.add(new JsonEntry("{\"name\":\"adam\",\"ssn\":123.45}".getBytes()));
+		log.add(new RedactableJsonEntry("{\"name\":\"adam\",\"ssn\":123.45}".getBytes()));
+		AddEntryResponse aer = log.add(new RawDataEntry("foo".getBytes()));
+		log.blockUntilPresent(aer);
+
+		LogTreeHead head = log.getTreeHead(ContinusecClient.HEAD);
+		assertEquals(3, head.getTreeSize());
+
+		for (int i = 0; i < 100; i++) {
+			log.add(new RawDataEntry(("foo-" + i).getBytes()));
+		}
+		this.emulator.sequenceNow();
+
+		LogTreeHead head103 = log.getVerifiedLatestTreeHead(head);
+		assertEquals(103, head103.getTreeSize());
+
+		try {
+			log.verifyInclusion(head103, new RawDataEntry("foo27".getBytes()));
+			fail();
+		} catch (ObjectNotFoundException e) {
+			// good
+		}
+
+		LogInclusionProof inclProof = log.getInclusionProof(head103.getTreeSize(), new RawDataEntry("foo-27".getBytes()));
+		inclProof.verify(head103);
+		try {
+			inclProof.verify(head);
+			fail();
+		} catch (VerificationFailedException e) {
+			// good
+		}
+
+		LogTreeHead head50 = log.getTreeHead(50);
+		log.getConsistencyProof(head50.getTreeSize(), head103.getTreeSize()).verify(head50, head103);
+
+		inclProof = log.getInclusionProof(10, new RawDataEntry("foo".getBytes()));
+		assertEquals(10, log.verifySuppliedInclusionProof(head103, inclProof).getTreeSize());
+
+		final int[] count = new int[1];
+		log.verifyEntries(null, head103, RawDataEntryFactory.getInstance(), (idx, e) -> count[0]++);
+		assertEquals(103, count[0]);
+
+		count[0] = 0;
+		try {
+			log.verifyEntries(log.getTreeHead(1), head103, JsonEntryFactory.getInstance(), (idx, e) -> count[0]++);
+			fail();
+		} catch (NotAllEntriesReturnedException e) {
+			// good
+		}
+
+		count[0] = 0;
+		log.verifyEntries(log.getTreeHead(1), log.getTreeHead(3), JsonEntryFactory.getInstance(), (idx, e) -> count[0]++);
+		assertEquals(2, count[0]);
+
+		log.verifyInclusion(head103, new JsonEntry("{	\"ssn\":  123.4500 ,   \"name\" :  \"adam\"}".getBytes()));
+		log.verifyInclusion(head103, log.get(2, RedactedJsonEntryFactory.getInstance()));
+
+		assertEquals(1, this.client.listLogs().size());
+		log.destroy();
+		try {
+			log.destroy();
+			fail();
+		} catch (ObjectConflictException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void testMap() throws ContinusecException {
+		VerifiableMap map = this.client.getVerifiableMap("newtestmap");
+		try {
+			map.getTreeHead(ContinusecClient.HEAD);
+			fail();
+		} catch (ObjectNotFoundException e) {
+			// good
+		}
+		map.create();
+
+		map.set("foo".getBytes(), new RawDataEntry("foo".getBytes()));
+		map.set("fiz".getBytes(), new JsonEntry("{\"name\":\"adam\",\"ssn\":123.45}".getBytes()));
+		AddEntryResponse waitResponse = map.set("foz".getBytes(), new RedactableJsonEntry("{\"name\":\"adam\",\"ssn\":123.45}".getBytes()));
+		for (int i = 0; i < 100; i++) {
+			map.set(("foo" + i).getBytes(), new RawDataEntry(("fooval" + i).getBytes()));
+		}
+		map.delete("foo".getBytes());
+		map.delete("foodddd".getBytes());
+		map.delete("foo27".getBytes());
+
+		map.getMutationLog().blockUntilPresent(waitResponse);
+		MapTreeHead mrHead = map.blockUntilSize(106);
+		assertEquals(106, mrHead.getMutationLogTreeHead().getTreeSize());
+
+		MapGetEntryResponse entryResp = map.get("foo".getBytes(), mrHead.getTreeSize(), RawDataEntryFactory.getInstance());
+		entryResp.verify(mrHead);
+		assertEquals(0, entryResp.getValue().getData().length);
+
+		entryResp = map.get("foo29".getBytes(), mrHead.getTreeSize(), RawDataEntryFactory.getInstance());
+		entryResp.verify(mrHead);
+		assertEquals("fooval29", new String(entryResp.getValue().getData()));
+
+		entryResp = map.get("fiz".getBytes(), mrHead.getTreeSize(), JsonEntryFactory.getInstance());
+		entryResp.verify(mrHead);
+
+		MapTreeState mapState106 = map.getVerifiedLatestMapState(null);
+		MapTreeState mapState2 = map.getVerifiedMapState(mapState106, 2);
+		assertEquals(2, mapState2.getTreeSize());
+		assertEquals("foo", new String(map.getVerifiedValue("foo".getBytes(), mapState2, RawDataEntryFactory.getInstance()).getData()));
+
+		MerkleTreeLeaf prev = map.get("foo1".getBytes(), ContinusecClient.HEAD, RawDataEntryFactory.getInstance()).getValue();
+		map.update("foo1".getBytes(), new RawDataEntry("bar".getBytes()), prev);
+		map.update("foo2".getBytes(), new RawDataEntry("bar".getBytes()), prev);
+		this.emulator.sequenceNow();
+		MapTreeState mapState108 = map.getVerifiedLatestMapState(mapState106);
+		assertEquals(108, mapState108.getTreeSize());
+		assertEquals("bar", new String(map.getVerifiedValue("foo1".getBytes(), mapState108, RawDataEntryFactory.getInstance()).getData()));
+		assertEquals("fooval2", new String(map.getVerifiedValue("foo2".getBytes(), mapState108, RawDataEntryFactory.getInstance()).getData()));
+
+		map.destroy();
+		try {
+			map.create();
+			fail();
+		} catch (ObjectConflictException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void testHttp2Transport() throws ContinusecException {
+		// the emulator only speaks HTTP/1.1, and the JDK client returns header names in lower case
+		this.client = new ContinusecClient("1234", "secret", this.emulator.getBaseURL(), new Http2Transport());
+		this.testLog();
+		this.testMap();
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		VerifiableLog log = this.client.getVerifiableLog("asynclog");
+		log.create();
+		ArrayList<CompletableFuture<AddEntryResponse>> adds = new ArrayList<CompletableFuture<AddEntryResponse>>();
+		for (int i = 0; i < 10; i++) {
+			adds.add(log.addAsync(new RawDataEntry(("foo-" + i).getBytes())));
+		}
+		CompletableFuture.allOf(adds.toArray(new CompletableFuture<?>[adds.size()])).get(10, TimeUnit.SECONDS);
+		this.emulator.sequenceNow();
+
+		LogTreeHead head = log.getVerifiedLatestTreeHeadAsync(null).get(10, TimeUnit.SECONDS);
+		assertEquals(10, head.getTreeSize());
+		log.verifyInclusionAsync(head, new RawDataEntry("foo-3".getBytes())).get(10, TimeUnit.SECONDS);
+		LogTreeHead head5 = log.getTreeHeadAsync(5).get(10, TimeUnit.SECONDS);
+		log.verifyConsistencyAsync(head5, head).get(10, TimeUnit.SECONDS);
+		String data = new String(log.getAsync(head.getTreeSize() - 1, RawDataEntryFactory.getInstance()).get(10, TimeUnit.SECONDS).getData());
+		assertTrue(data.startsWith("foo-"));
+
+		// requests beyond the size of the default pool are queued until a thread is free
+		ArrayList<CompletableFuture<LogTreeHead>> heads = new ArrayList<CompletableFuture<LogTreeHead>>();
+		for (int i = 0; i < ContinusecClient.DEFAULT_ASYNC_THREADS * 3; i++) {
+			heads.add(log.getTreeHeadAsync(1 + i % 10));
+		}
+		for (int i = 0; i < heads.size(); i++) {
+			assertEquals(1 + i % 10, heads.get(i).get(10, TimeUnit.SECONDS).getTreeSize());
+		}
+
+		VerifiableMap map = this.client.getVerifiableMap("asyncmap");
+		map.create();
+		map.setAsync("foo".getBytes(), new RawDataEntry("bar".getBytes())).get(10, TimeUnit.SECONDS);
+		this.emulator.sequenceNow();
+		MapTreeState state = map.getVerifiedLatestMapStateAsync(null).get(10, TimeUnit.SECONDS);
+		assertEquals(1, state.getTreeSize());
+		assertEquals("bar", new String(map.getVerifiedValueAsync("foo".getBytes(), state, RawDataEntryFactory.getInstance()).get(10, TimeUnit.SECONDS).getData()));
+
+		// failures are passed to the future rather than thrown
+		CompletableFuture<LogTreeHead> missing = this.client.getVerifiableLog("missing").getTreeHeadAsync(ContinusecClient.HEAD);
+		try {
+			missing.get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ObjectNotFoundException);
+		}
+		assertTrue(missing.isCompletedExceptionally());
+		try {
+			log.verifyInclusionAsync(head, new RawDataEntry("never added".getBytes())).get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ObjectNotFoundException);
+		}
+		try {
+			map.getTreeHeadAsync(5).thenApply(h -> h.getTreeSize()).get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof InvalidRangeException);
+		}
+	}
+
+	@Test
+	public void testAddAll() throws ContinusecException {
+		VerifiableLog log = this.client.getVerifiableLog("newtestlog");
+		log.create();
+		ArrayList<UploadableEntry> entries = new ArrayList<UploadableEntry>();
+		for (int i = 0; i < 200; i++) {
+			entries.add(new RawDataEntry(("foo-" + i).getBytes()));
+		}
+		entries.add(50, new JsonEntry("not json".getBytes()));
+
+		AddAllResponse resp = log.addAll(entries, 8);
+		assertEquals(1, resp.getFailures().size());
+		assertTrue(resp.getFailures().get(50) instanceof InvalidRangeException);
+		assertEquals(null, resp.getResponses().get(50));
+		for (int i = 0; i < entries.size(); i++) {
+			if (i != 50) {
+				assertArrayEquals(((MerkleTreeLeaf) entries.get(i)).getLeafHash(), resp.getResponses().get(i).getLeafHash());
+			}
+		}
+		this.emulator.sequenceNow();
+		assertEquals(200, log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+	}
+
+	@Test
+	public void testLocalLeafHash() throws Exception {
+		VerifiableLog log = this.client.getVerifiableLog("newtestlog");
+		log.create();
+		try (LogEntrySink sink = log.openSink(4)) {
+			RawDataEntry raw = new RawDataEntry("foo".getBytes());
+			PendingAddEntry pending = sink.submit(raw);
+			assertTrue(pending.isLeafHashLocal());
+			assertArrayEquals(raw.getLeafHash(), pending.getLeafHash());
+			assertArrayEquals(raw.getLeafHash(), pending.getResponse().get().getLeafHash());
+
+			pending = sink.submit(new RedactableJsonEntry("{\"name\":\"adam\"}".getBytes()));
+			assertFalse(pending.isLeafHashLocal());
+			assertArrayEquals(pending.getResponse().get().getLeafHash(), pending.getLeafHash());
+
+			// an entry that calculates the wrong leaf hash for itself, as would be seen if the server were to lie
+			pending = sink.submit(new RawDataEntry("bar".getBytes()) {
+				public byte[] getLeafHash() {
+					return Util.leafMerkleTreeHash("baz".getBytes());
+				}
+			});
+			try {
+				pending.getResponse().get();
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof VerificationFailedException);
+			}
+			sink.flush();
+			assertEquals(1, sink.getMismatchedCount());
+			assertEquals(1, sink.getFailedCount());
+		}
+	}
+
+	@Test
+	public void testInclusionWaiter() throws Exception {
+		VerifiableLog log = this.client.getVerifiableLog("newtestlog");
+		log.create();
+		try (InclusionWaiter waiter = log.openInclusionWaiter(8)) {
+			waiter.setPollInterval(5, 50);
+			ArrayList<CompletableFuture<LogTreeHead>> futures = new ArrayList<CompletableFuture<LogTreeHead>>();
+			try (LogEntrySink sink = log.openSink(8)) {
+				for (int i = 0; i < 100; i++) {
+					futures.add(waiter.waitFor(sink.submit(new RawDataEntry(("foo-" + i).getBytes()))));
+				}
+			}
+			CompletableFuture<LogTreeHead> never = waiter.waitFor(new RawDataEntry("never added".getBytes()));
+
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).get(10, TimeUnit.SECONDS);
+			for (int i = 0; i < 100; i++) {
+				log.verifyInclusion(futures.get(i).get(), new RawDataEntry(("foo-" + i).getBytes()));
+			}
+			assertTrue(waiter.getPollCount() < 100);
+			assertFalse(never.isDone());
+			assertEquals(1, waiter.getPendingCount());
+			never.cancel(false);
+			assertEquals(0, waiter.getPendingCount());
+		}
+	}
+
+	@Test
+	public void testTreeHeadWatcher() throws Exception {
+		VerifiableLog log = this.client.getVerifiableLog("newtestlog");
+		log.create();
+		VerifiableMap map = this.client.getVerifiableMap("newtestmap");
+		map.create();
+
+		try (TreeHeadWatcher watcher = new TreeHeadWatcher()) {
+			watcher.setPollInterval(5, 50);
+			final List<Integer> sizesA = Collections.synchronizedList(new ArrayList<Integer>());
+			final List<Integer> sizesB = Collections.synchronizedList(new ArrayList<Integer>());
+			final List<Integer> mapSizes = Collections.synchronizedList(new ArrayList<Integer>());
+			TreeHeadListener<LogTreeHead> a = head -> sizesA.add(head.getTreeSize());
+			TreeHeadListener<LogTreeHead> b = head -> sizesB.add(head.getTreeSize());
+			TreeHeadListener<MapTreeState> m = state -> mapSizes.add(state.getTreeSize());
+			watcher.watchLog(log, a);
+			watcher.watchLog(this.client.getVerifiableLog("newtestlog"), b);
+			watcher.watchMap(map, m);
+			assertEquals(2, watcher.getWatchCount());
+
+			for (int i = 0; i < 10; i++) {
+				log.add(new RawDataEntry(("foo-" + i).getBytes()));
+				map.set(("foo-" + i).getBytes(), new RawDataEntry(("bar-" + i).getBytes()));
+				Thread.sleep(10);
+			}
+			for (int i = 0; i < 500 && !(last(sizesA) == 10 && last(sizesB) == 10 && last(mapSizes) == 10); i++) {
+				Thread.sleep(10);
+			}
+			for (List<Integer> sizes : Arrays.asList(sizesA, sizesB, mapSizes)) {
+				assertEquals(10, last(sizes));
+				for (int i = 1; i < sizes.size(); i++) {
+					assertTrue(sizes.get(i) > sizes.get(i - 1));
+				}
+			}
+
+			watcher.unwatch(a);
+			watcher.unwatch(b);
+			assertEquals(1, watcher.getWatchCount());
+		}
+
+		// the shared instance cannot be closed, and keeps polling for everyone else
+		try {
+			TreeHeadWatcher.getSharedInstance().close();
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// good
+		}
+		final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+		TreeHeadListener<LogTreeHead> l = head -> sizes.add(head.getTreeSize());
+		TreeHeadWatcher.getSharedInstance().watchLog(log, l);
+		try {
+			for (int i = 0; i < 500 && last(sizes) != 10; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(10, last(sizes));
+		} finally {
+			TreeHeadWatcher.getSharedInstance().unwatch(l);
+		}
+	}
+
+	private static int last(List<Integer> l) {
+		synchronized (l) {
+			return l.isEmpty() ? -1 : l.get(l.size() - 1);
+		}
+	}
+
+	@Test
+	public void testWriteBehind() throws Exception {
+		VerifiableLog log = this.client.getVerifiableLog("newtestlog");
+		log.create();
+		VerifiableMap map = this.client.getVerifiableMap("newtestmap");
+		map.create();
+
+		WriteBehindQueue queue = new WriteBehindQueue(10, 4, WriteBehindQueue.OverflowPolicy.BLOCK);
+		ArrayList<CompletableFuture<AddEntryResponse>> futures = new ArrayList<CompletableFuture<AddEntryResponse>>();
+		for (int i = 0; i < 100; i++) {
+			futures.add(queue.add(log, new RawDataEntry(("foo-" + i).getBytes())));
+			futures.add(queue.set(map, ("foo-" + i).getBytes(), new RawDataEntry(("bar-" + i).getBytes())));
+		}
+		futures.add(queue.add(this.client.getVerifiableLog("nosuchlog"), new RawDataEntry("foo".getBytes())));
+		queue.close();
+
+		for (int i = 0; i < 200; i++) {
+			assertTrue(futures.get(i).isDone());
+			futures.get(i).get();
+		}
+		try {
+			futures.get(200).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ObjectNotFoundException);
+		}
+		assertEquals(200, queue.getCompletedCount());
+		assertEquals(1, queue.getFailedCount());
+
+		this.emulator.sequenceNow();
+		assertEquals(100, log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		assertEquals(100, map.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+	}
+
+	@Test
+	public void testTreeHeadCache() throws Exception {
+		TreeHeadCache cache = new TreeHeadCache(60000);
+		this.client.setTreeHeadCache(cache);
+		VerifiableLog log = this.client.getVerifiableLog("newtestlog");
+		log.create();
+		log.add(new RawDataEntry("foo".getBytes()));
+		this.emulator.sequenceNow();
+
+		LogTreeHead head = log.getTreeHead(ContinusecClient.HEAD);
+		assertEquals(1, head.getTreeSize());
+		assertEquals(head, log.getTreeHead(ContinusecClient.HEAD));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+
+		cache.setTtl(0);
+		assertEquals(head, log.getVerifiedLatestTreeHead(head));
+		assertEquals(1, cache.getNotModifiedCount());
+
+		log.add(new RawDataEntry("bar".getBytes()));
+		this.emulator.sequenceNow();
+		assertEquals(2, log.getVerifiedLatestTreeHead(head).getTreeSize());
+		assertEquals(2, cache.getMissCount());
+
+		// a cache shared with a client for another server does not mix up logs of the same name
+		cache.setTtl(60000);
+		ApiEmulator other = new ApiEmulator("1234", "secret");
+		other.start();
+		try {
+			ContinusecClient otherClient = new ContinusecClient("1234", "secret", other.getBaseURL());
+			otherClient.setTreeHeadCache(cache);
+			VerifiableLog otherLog = otherClient.getVerifiableLog("newtestlog");
+			otherLog.create();
+			assertEquals(0, otherLog.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+			assertEquals(2, log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		} finally {
+			other.stop();
+		}
+
+		// a head fetched in full replaces the cached one, even if smaller, as a log may have been created again
+		cache.put("key", log.getTreeHead(2), null);
+		cache.put("key", head, null);
+		assertEquals(head, cache.get("key").getHead());
+	}
+
+	@Test
+	public void testAccess() throws ContinusecException {
+		this.client.getVerifiableLog("newtestlog").create();
+		try {
+			new ContinusecClient("1234", "wrongcred", this.emulator.getBaseURL()).getVerifiableLog("newtestlog").getTreeHead(ContinusecClient.HEAD);
+			fail();
+		} catch (UnauthorizedAccessException e) {
+			// good
+		}
+		try {
+			new ContinusecClient("wrongaccount", "secret", this.emulator.getBaseURL()).getVerifiableLog("newtestlog").getTreeHead(ContinusecClient.HEAD);
+			fail();
+		} catch (ObjectNotFoundException e) {
+			// good
+		}
+		try {
+			this.client.getVerifiableLog("newtestlog").getTreeHead(5);
+			fail();
+		} catch (InvalidRangeException e) {
+			// good
+		}
+	}
+}
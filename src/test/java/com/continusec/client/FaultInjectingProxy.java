@@ -0,0 +1,454 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP proxy that adds latency and failures to requests, for testing and benchmarking how the client copes
+ * with a slow or unreliable server. Typically placed in front of an {@link ApiEmulator}:
+ * <pre>{@code
+ * FaultInjectingProxy proxy = new FaultInjectingProxy(emulator.getBaseURL());
+ * proxy.addLatency(LatencyDistribution.exponential(5, 20), ".*");
+ * proxy.inject(FaultInjectingProxy.Fault.SERVER_ERROR, 0.01, ".*");
+ * proxy.injectNext(FaultInjectingProxy.Fault.CUT_BODY, 1, ".+/entries/.+");
+ * proxy.start();
+ * ContinusecClient client = new ContinusecClient("1234", "secret", proxy.getBaseURL());
+ * }</pre>
+ * <p>
+ * Rules are matched against the request path (e.g. "/v1/account/1234/log/foo/tree/0") in the order they were
+ * added, and the first matching rule that fires is applied. Faults that change a response, such as
+ * {@link Fault#TRUNCATE_ENTRIES}, do nothing for requests that fail at the server, or if they do not apply to the request.
+ * Accept-Encoding is not forwarded, so that responses can be inspected and changed, but responses may be compressed
+ * by the proxy instead, see {@link #setCompression(String)}.
+ */
+class FaultInjectingProxy {
+	/**
+	 * Failures that can be injected, and how the client is expected to see them.
+	 */
+	enum Fault {
+		/**
+		 * Close the connection without forwarding the request. Seen as a {@link ContinusecNetworkException}.
+		 * Note that {@link DefaultTransport} silently resends a GET once if the connection drops.
+		 */
+		DROP_REQUEST,
+		/**
+		 * Forward the request, but close the connection without sending the response, so that a write may
+		 * succeed even though the client sees a {@link ContinusecNetworkException}.
+		 */
+		DROP_RESPONSE,
+		/**
+		 * Return 503 without forwarding the request. Seen as an {@link InternalErrorException}.
+		 */
+		SERVER_ERROR,
+		/**
+		 * Return 400 without forwarding the request. Seen as an {@link InvalidRangeException}.
+		 */
+		BAD_REQUEST,
+		/**
+		 * Return 429 without forwarding the request, as a server shedding load does. Seen as an
+		 * {@link InternalErrorException}.
+		 */
+		TOO_MANY_REQUESTS,
+		/**
+		 * Send the response headers and half the body, then close the connection. Seen as a failure part way through
+		 * reading, which {@link LogEntryIterator} may resume from.
+		 */
+		CUT_BODY,
+		/**
+		 * Send the body in small pieces with a pause between each, see {@link FaultInjectingProxy#setSlowBody(int, long)}.
+		 */
+		SLOW_BODY,
+		/**
+		 * Return only the first half of the entries in a page of entries, as the server does when a page is
+		 * larger than it is willing to return. {@link LogEntryIterator} requests the rest in the next page.
+		 */
+		TRUNCATE_ENTRIES,
+		/**
+		 * Return a page of entries with no entries. Seen by {@link LogEntryIterator} as a {@link NotAllEntriesReturnedException}.
+		 */
+		EMPTY_ENTRIES,
+	}
+
+	/**
+	 * A fault applied with a probability, or to a number of matching requests.
+	 */
+	private static class FaultRule {
+		private Fault fault;
+		private Pattern pattern;
+		private double probability;
+		private AtomicInteger remaining;
+
+		private boolean fires(String path) {
+			if (!this.pattern.matcher(path).matches()) {
+				return false;
+			} else if (this.remaining != null) {
+				return this.remaining.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+			}
+			return ThreadLocalRandom.current().nextDouble() < this.probability;
+		}
+	}
+
+	private static class LatencyRule {
+		private Pattern pattern;
+		private LatencyDistribution distribution;
+	}
+
+	private String targetBaseURL;
+	private List<FaultRule> faults = new CopyOnWriteArrayList<FaultRule>();
+	private List<LatencyRule> latencies = new CopyOnWriteArrayList<LatencyRule>();
+	private volatile int slowBodyChunkBytes = 64;
+	private volatile long slowBodyDelayMillis = 50;
+	private volatile String compression = null;
+	private volatile String lastAcceptEncoding = null;
+
+	private AtomicLong requestCount = new AtomicLong();
+	private Set<InetSocketAddress> clientAddresses = ConcurrentHashMap.newKeySet();
+	private EnumMap<Fault,AtomicLong> injectedCounts = new EnumMap<Fault,AtomicLong>(Fault.class);
+
+	private HttpServer server = null;
+	private ExecutorService executor = null;
+
+	/**
+	 * Create a proxy.
+	 * @param targetBaseURL the base URL requests are forwarded to, e.g. from {@link ApiEmulator#getBaseURL()}.
+	 */
+	FaultInjectingProxy(String targetBaseURL) {
+		this.targetBaseURL = targetBaseURL;
+		for (Fault f : Fault.values()) {
+			this.injectedCounts.put(f, new AtomicLong());
+		}
+	}
+
+	/**
+	 * Inject a fault into a fraction of matching requests.
+	 * @param fault the fault.
+	 * @param probability the chance that each matching request has the fault, between 0 and 1.
+	 * @param pathRegex the regular expression the whole request path must match.
+	 */
+	void inject(Fault fault, double probability, String pathRegex) {
+		FaultRule r = new FaultRule();
+		r.fault = fault;
+		r.pattern = Pattern.compile(pathRegex);
+		r.probability = probability;
+		this.faults.add(r);
+	}
+
+	/**
+	 * Inject a fault into the next matching requests.
+	 * @param fault the fault.
+	 * @param count the number of matching requests that should have the fault.
+	 * @param pathRegex the regular expression the whole request path must match.
+	 */
+	void injectNext(Fault fault, int count, String pathRegex) {
+		FaultRule r = new FaultRule();
+		r.fault = fault;
+		r.pattern = Pattern.compile(pathRegex);
+		r.remaining = new AtomicInteger(count);
+		this.faults.add(r);
+	}
+
+	/**
+	 * Delay matching requests before they are forwarded. Only the first matching distribution is used.
+	 * @param distribution the distribution of delays.
+	 * @param pathRegex the regular expression the whole request path must match.
+	 */
+	void addLatency(LatencyDistribution distribution, String pathRegex) {
+		LatencyRule r = new LatencyRule();
+		r.pattern = Pattern.compile(pathRegex);
+		r.distribution = distribution;
+		this.latencies.add(r);
+	}
+
+	/**
+	 * Set how responses with the {@link Fault#SLOW_BODY} fault are sent.
+	 * @param chunkBytes the number of bytes sent at a time.
+	 * @param delayMillis the pause before each chunk.
+	 */
+	void setSlowBody(int chunkBytes, long delayMillis) {
+		this.slowBodyChunkBytes = chunkBytes;
+		this.slowBodyDelayMillis = delayMillis;
+	}
+
+	/**
+	 * Set how responses are compressed for clients that accept it. The Content-Encoding header is sent even for
+	 * responses with an empty body, as some servers do.
+	 * @param encoding "gzip" or "deflate" (zlib wrapped), or null (the default) to send responses uncompressed.
+	 */
+	void setCompression(String encoding) {
+		this.compression = encoding;
+	}
+
+	/**
+	 * Get the Accept-Encoding header of the most recent request.
+	 * @return the header, or null if the request had none.
+	 */
+	String getLastAcceptEncoding() {
+		return this.lastAcceptEncoding;
+	}
+
+	/**
+	 * Remove all faults and latency.
+	 */
+	void clear() {
+		this.faults.clear();
+		this.latencies.clear();
+	}
+
+	/**
+	 * Get the number of requests received.
+	 * @return the number of requests.
+	 */
+	long getRequestCount() {
+		return this.requestCount.get();
+	}
+
+	/**
+	 * Get the number of connections that requests have been received on, told apart by client address and port.
+	 * @return the number of connections.
+	 */
+	long getConnectionCount() {
+		return this.clientAddresses.size();
+	}
+
+	/**
+	 * Get the number of times a fault has been injected.
+	 * @param fault the fault.
+	 * @return the number of times injected.
+	 */
+	long getInjectedCount(Fault fault) {
+		return this.injectedCounts.get(fault).get();
+	}
+
+	/**
+	 * Start listening on a free port on the loopback interface.
+	 * @throws IOException if the server cannot be started.
+	 */
+	synchronized void start() throws IOException {
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "fault-injecting-proxy");
+			t.setDaemon(true);
+			return t;
+		});
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", this::handle);
+		this.server.start();
+	}
+
+	/**
+	 * Stop the proxy and release its threads.
+	 */
+	synchronized void stop() {
+		if (this.server != null) {
+			this.server.stop(0);
+			this.executor.shutdownNow();
+			this.server = null;
+		}
+	}
+
+	/**
+	 * Get the base URL to pass to {@link ContinusecClient#ContinusecClient(String, String, String)}.
+	 * @return the base URL.
+	 */
+	String getBaseURL() {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange ex) throws IOException {
+		this.requestCount.incrementAndGet();
+		this.clientAddresses.add(ex.getRemoteAddress());
+		String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+		this.lastAcceptEncoding = accept;
+		try {
+			String path = ex.getRequestURI().getRawPath();
+			byte[] data = readAll(ex.getRequestBody());
+
+			for (LatencyRule r : this.latencies) {
+				if (r.pattern.matcher(path).matches()) {
+					Thread.sleep(r.distribution.nextMillis(ThreadLocalRandom.current()));
+					break;
+				}
+			}
+
+			Fault fault = null;
+			for (FaultRule r : this.faults) {
+				if (r.fires(path)) {
+					fault = r.fault;
+					break;
+				}
+			}
+
+			if (fault == Fault.DROP_REQUEST) {
+				this.injected(fault);
+				ex.close();
+				return;
+			} else if (fault == Fault.SERVER_ERROR || fault == Fault.BAD_REQUEST || fault == Fault.TOO_MANY_REQUESTS) {
+				this.injected(fault);
+				ex.sendResponseHeaders((fault == Fault.SERVER_ERROR) ? 503 : (fault == Fault.BAD_REQUEST) ? 400 : 429, -1);
+				ex.close();
+				return;
+			}
+
+			HttpURLConnection conn = this.forward(ex, data);
+			int code = conn.getResponseCode();
+			InputStream in = (code >= 400) ? conn.getErrorStream() : conn.getInputStream();
+			byte[] body = (in == null) ? new byte[0] : readAll(in);
+
+			if (fault == Fault.DROP_RESPONSE) {
+				this.injected(fault);
+				ex.close();
+				return;
+			} else if ((fault == Fault.TRUNCATE_ENTRIES || fault == Fault.EMPTY_ENTRIES) && code == 200 && path.contains("/entries/")) {
+				this.injected(fault);
+				body = truncateEntries(body, fault == Fault.EMPTY_ENTRIES);
+			}
+
+			for (Map.Entry<String,List<String>> h : conn.getHeaderFields().entrySet()) {
+				String k = h.getKey();
+				if (k != null && !k.equalsIgnoreCase("Content-Length") && !k.equalsIgnoreCase("Transfer-Encoding") && !k.equalsIgnoreCase("Connection")) {
+					ex.getResponseHeaders().put(k, h.getValue());
+				}
+			}
+			String encoding = this.compression;
+			if (encoding != null && accept != null && accept.contains(encoding)) {
+				ex.getResponseHeaders().set("Content-Encoding", encoding);
+				if (body.length > 0) {
+					body = compress(body, encoding);
+				}
+			}
+
+			if (body.length == 0) {
+				ex.sendResponseHeaders(code, -1);
+				ex.close();
+				return;
+			}
+			ex.sendResponseHeaders(code, body.length);
+			OutputStream os = ex.getResponseBody();
+			if (fault == Fault.CUT_BODY) {
+				this.injected(fault);
+				os.write(body, 0, body.length / 2);
+				os.flush();
+				// closing before the promised length has been written drops the connection
+				ex.close();
+				return;
+			} else if (fault == Fault.SLOW_BODY) {
+				this.injected(fault);
+				for (int i = 0; i < body.length; i += this.slowBodyChunkBytes) {
+					Thread.sleep(this.slowBodyDelayMillis);
+					os.write(body, i, Math.min(this.slowBodyChunkBytes, body.length - i));
+					os.flush();
+				}
+			} else {
+				os.write(body);
+			}
+			os.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ex.close();
+		} catch (IOException e) {
+			ex.close();
+		}
+	}
+
+	private HttpURLConnection forward(HttpExchange ex, byte[] data) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(this.targetBaseURL + ex.getRequestURI().toString()).openConnection();
+		conn.setUseCaches(false);
+		conn.setInstanceFollowRedirects(false);
+		conn.setRequestMethod(ex.getRequestMethod());
+		for (Map.Entry<String,List<String>> h : ex.getRequestHeaders().entrySet()) {
+			String k = h.getKey();
+			if (!k.equalsIgnoreCase("Accept-Encoding") && !k.equalsIgnoreCase("Host") && !k.equalsIgnoreCase("Content-Length") && !k.equalsIgnoreCase("Connection")) {
+				for (String v : h.getValue()) {
+					conn.addRequestProperty(k, v);
+				}
+			}
+		}
+		if (data.length > 0) {
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(data.length);
+			try (OutputStream out = conn.getOutputStream()) {
+				out.write(data);
+			}
+		}
+		return conn;
+	}
+
+	private void injected(Fault fault) {
+		this.injectedCounts.get(fault).incrementAndGet();
+	}
+
+	private static byte[] truncateEntries(byte[] body, boolean empty) {
+		JsonObject o = new JsonParser().parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+		JsonArray entries = o.getAsJsonArray("entries");
+		JsonArray rv = new JsonArray();
+		if (!empty) {
+			int keep = Math.max(1, entries.size() / 2);
+			for (int i = 0; i < keep && i < entries.size(); i++) {
+				rv.add(entries.get(i));
+			}
+		}
+		o.add("entries", rv);
+		return o.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] compress(byte[] body, String encoding) throws IOException {
+		ByteArrayOutputStream rv = new ByteArrayOutputStream();
+		try (OutputStream os = encoding.equals("gzip") ? new GZIPOutputStream(rv) : new DeflaterOutputStream(rv)) {
+			os.write(body);
+		}
+		return rv.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream rv = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		for (int n = is.read(buf); n != -1; n = is.read(buf)) {
+			rv.write(buf, 0, n);
+		}
+		is.close();
+		return rv.toByteArray();
+	}
+}
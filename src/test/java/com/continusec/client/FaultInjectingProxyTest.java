@@ -0,0 +1,537 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that each fault injected by {@link FaultInjectingProxy} is seen by the client as expected.
+ */
+public class FaultInjectingProxyTest {
+	private ApiEmulator emulator;
+	private FaultInjectingProxy proxy;
+	private ContinusecClient client;
+	private ContinusecClient direct;
+	private VerifiableLog log;
+
+	@Before
+	public void setUp() throws Exception {
+		this.emulator = new ApiEmulator("1234", "secret");
+		this.emulator.start();
+		this.proxy = new FaultInjectingProxy(this.emulator.getBaseURL());
+		this.proxy.start();
+		this.client = new ContinusecClient("1234", "secret", this.proxy.getBaseURL());
+		this.client.setRetryPolicy(null);
+		// bypasses the proxy, with enough connections to set up large logs quickly
+		this.direct = new ContinusecClient("1234", "secret", this.emulator.getBaseURL(), new DefaultTransport(32));
+
+		this.log = this.client.getVerifiableLog("faults");
+		this.log.create();
+		for (int i = 0; i < 20; i++) {
+			this.log.add(new RawDataEntry(("foo-" + i).getBytes()));
+		}
+		this.emulator.sequenceNow();
+	}
+
+	@After
+	public void tearDown() {
+		this.proxy.stop();
+		this.emulator.stop();
+	}
+
+	@Test
+	public void testErrors() throws ContinusecException {
+		this.proxy.injectNext(FaultInjectingProxy.Fault.SERVER_ERROR, 1, ".*/tree/0");
+		this.proxy.injectNext(FaultInjectingProxy.Fault.BAD_REQUEST, 1, ".*/tree/0");
+		// HttpURLConnection resends a GET once if the connection drops, so drop both
+		this.proxy.injectNext(FaultInjectingProxy.Fault.DROP_REQUEST, 2, ".*/tree/0");
+		this.proxy.injectNext(FaultInjectingProxy.Fault.DROP_RESPONSE, 1, ".*/entry");
+		try {
+			this.log.getTreeHead(ContinusecClient.HEAD);
+			fail();
+		} catch (InternalErrorException e) {
+			// good
+		}
+		try {
+			this.log.getTreeHead(ContinusecClient.HEAD);
+			fail();
+		} catch (InvalidRangeException e) {
+			// good
+		}
+		try {
+			this.log.getTreeHead(ContinusecClient.HEAD);
+			fail();
+		} catch (ContinusecNetworkException e) {
+			// good
+		}
+		assertEquals(20, this.log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+
+		try {
+			this.log.add(new RawDataEntry("bar".getBytes()));
+			fail();
+		} catch (ContinusecNetworkException e) {
+			// good
+		}
+		this.emulator.sequenceNow();
+		assertEquals(21, this.log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+	}
+
+	@Test
+	public void testRetries() throws ContinusecException {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setBackoff(1, 10);
+		this.client.setRetryPolicy(policy);
+
+		// server errors, dropped connections and cut bodies are retried
+		this.proxy.injectNext(FaultInjectingProxy.Fault.SERVER_ERROR, 2, ".*/tree/0");
+		assertEquals(20, this.log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		assertEquals(2, policy.getRetryCount());
+		// HttpURLConnection resends a GET once if the connection drops, so drop both
+		this.proxy.injectNext(FaultInjectingProxy.Fault.DROP_REQUEST, 2, ".*/tree/0");
+		assertEquals(20, this.log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		assertEquals(3, policy.getRetryCount());
+		this.proxy.injectNext(FaultInjectingProxy.Fault.CUT_BODY, 1, ".*/tree/0");
+		assertEquals(20, this.log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		assertEquals(4, policy.getRetryCount());
+
+		// the failure is returned once out of attempts
+		this.proxy.injectNext(FaultInjectingProxy.Fault.SERVER_ERROR, 3, ".*/tree/0");
+		try {
+			this.log.getTreeHead(ContinusecClient.HEAD);
+			fail();
+		} catch (InternalErrorException e) {
+			// good
+		}
+		assertEquals(6, policy.getRetryCount());
+
+		// adding an entry is not idempotent, so is not retried
+		this.proxy.injectNext(FaultInjectingProxy.Fault.SERVER_ERROR, 1, ".*/entry");
+		long requests = this.proxy.getRequestCount();
+		try {
+			this.log.add(new RawDataEntry("bar".getBytes()));
+			fail();
+		} catch (InternalErrorException e) {
+			// good
+		}
+		assertEquals(requests + 1, this.proxy.getRequestCount());
+		assertEquals(6, policy.getRetryCount());
+
+		// once the budget is spent, failures are returned straight away
+		policy.setRetryBudget(1, 0);
+		this.proxy.injectNext(FaultInjectingProxy.Fault.SERVER_ERROR, 2, ".*/tree/0");
+		try {
+			this.log.getTreeHead(ContinusecClient.HEAD);
+			fail();
+		} catch (InternalErrorException e) {
+			// good
+		}
+		assertEquals(7, policy.getRetryCount());
+		assertEquals(1, policy.getBudgetExhaustedCount());
+
+		// a batch of entries cut part way through resumes from the entry reached
+		policy.setRetryBudget(10, 0.1);
+		List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+		this.client.addRequestListener(new RequestListener() {
+			public void requestStarted(RequestInfo r) {
+				paths.add(r.getPath());
+			}
+		});
+		this.proxy.injectNext(FaultInjectingProxy.Fault.CUT_BODY, 1, ".*/entries/.*");
+		int count = 0;
+		for (VerifiableEntry e : this.log.getEntries(0, 20, RawDataEntryFactory.getInstance())) {
+			assertEquals("foo-" + count, new String(e.getData()));
+			count++;
+		}
+		assertEquals(20, count);
+		assertEquals(8, policy.getRetryCount());
+		assertEquals(2, paths.size());
+		assertTrue(paths.get(0).endsWith("/entries/0-20"));
+		assertTrue(!paths.get(1).contains("/entries/0-"));
+	}
+
+	@Test
+	public void testConcurrencyLimiter() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10);
+		limiter.setBackoffRatio(0.5);
+		limiter.setLatencyTolerance(Double.POSITIVE_INFINITY);
+		this.client.setConcurrencyLimiter(limiter);
+
+		// each request completing in good time while the limit is in use grows the limit by a fraction
+		this.proxy.addLatency(LatencyDistribution.fixed(20), ".*/tree/.*");
+		this.getTreeHeads(40);
+		int grown = limiter.getLimit();
+		assertTrue(grown >= 5);
+
+		// a 429 halves it
+		this.proxy.injectNext(FaultInjectingProxy.Fault.TOO_MANY_REQUESTS, 1, ".*/tree/0");
+		try {
+			this.log.getTreeHead(ContinusecClient.HEAD);
+			fail();
+		} catch (InternalErrorException e) {
+			// good
+		}
+		assertTrue(limiter.getLimit() <= (grown + 1) / 2);
+
+		// as does a request much slower than the fastest seen
+		limiter.setLatencyTolerance(2.0);
+		this.getTreeHeads(40);
+		grown = limiter.getLimit();
+		this.proxy.clear();
+		this.proxy.addLatency(LatencyDistribution.fixed(300), ".*/tree/0");
+		this.log.getTreeHead(ContinusecClient.HEAD);
+		assertTrue(limiter.getLimit() <= (grown + 1) / 2);
+
+		// requests over the limit wait for a slot
+		limiter.setLimitBounds(2, 2);
+		this.proxy.addLatency(LatencyDistribution.fixed(300), ".*/tree/.*");
+		ArrayList<CompletableFuture<LogTreeHead>> heads = new ArrayList<CompletableFuture<LogTreeHead>>();
+		for (int i = 1; i <= 5; i++) {
+			heads.add(this.log.getTreeHeadAsync(i));
+		}
+		waitFor(() -> limiter.getInFlight() == 2 && limiter.getQueueDepth() == 3, 1000);
+		for (int i = 1; i <= 5; i++) {
+			assertEquals(i, heads.get(i - 1).get(5, TimeUnit.SECONDS).getTreeSize());
+		}
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(0, limiter.getQueueDepth());
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		this.proxy.addLatency(LatencyDistribution.fixed(300), ".*/(tree/0|entry)");
+
+		// identical reads in flight at the same time share one request
+		long requests = this.proxy.getRequestCount();
+		ArrayList<CompletableFuture<LogTreeHead>> heads = new ArrayList<CompletableFuture<LogTreeHead>>();
+		for (int i = 0; i < 10; i++) {
+			heads.add(this.log.getTreeHeadAsync(ContinusecClient.HEAD));
+		}
+		for (CompletableFuture<LogTreeHead> f : heads) {
+			assertEquals(20, f.get(5, TimeUnit.SECONDS).getTreeSize());
+		}
+		assertEquals(requests + 1, this.proxy.getRequestCount());
+		assertEquals(9, this.client.getCoalescedCount());
+
+		// as do their failures
+		this.proxy.injectNext(FaultInjectingProxy.Fault.SERVER_ERROR, 1, ".*/tree/0");
+		heads.clear();
+		for (int i = 0; i < 10; i++) {
+			heads.add(this.log.getTreeHeadAsync(ContinusecClient.HEAD));
+		}
+		for (CompletableFuture<LogTreeHead> f : heads) {
+			try {
+				f.get(5, TimeUnit.SECONDS);
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof InternalErrorException);
+			}
+		}
+		assertEquals(requests + 2, this.proxy.getRequestCount());
+		assertEquals(18, this.client.getCoalescedCount());
+
+		// writes are never shared, even if identical
+		ArrayList<CompletableFuture<AddEntryResponse>> adds = new ArrayList<CompletableFuture<AddEntryResponse>>();
+		for (int i = 0; i < 5; i++) {
+			adds.add(this.log.addAsync(new RawDataEntry("bar".getBytes())));
+		}
+		for (CompletableFuture<AddEntryResponse> f : adds) {
+			f.get(5, TimeUnit.SECONDS);
+		}
+		assertEquals(requests + 7, this.proxy.getRequestCount());
+		assertEquals(18, this.client.getCoalescedCount());
+	}
+
+	@Test
+	public void testRequestListeners() throws ContinusecException {
+		RetryPolicy policy = new RetryPolicy();
+		policy.setBackoff(1, 10);
+		this.client.setRetryPolicy(policy);
+		// a listener that throws neither fails the request nor stops other listeners being called
+		this.client.addRequestListener(new RequestListener() {
+			public void requestStarted(RequestInfo r) {
+				throw new IllegalStateException();
+			}
+
+			public void bodyCompleted(RequestInfo r) {
+				throw new IllegalStateException();
+			}
+		});
+		List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		this.client.addRequestListener(new RequestListener() {
+			public void requestStarted(RequestInfo r) {
+				events.add("started");
+			}
+
+			public void firstByteReceived(RequestInfo r) {
+				events.add("first " + r.getStatusCode());
+			}
+
+			public void bodyCompleted(RequestInfo r) {
+				events.add("body " + r.getStatusCode());
+			}
+
+			public void parseCompleted(RequestInfo r) {
+				events.add("parsed " + r.getStatusCode());
+			}
+		});
+
+		// each attempt is reported, including those that fail and are retried
+		this.proxy.injectNext(FaultInjectingProxy.Fault.SERVER_ERROR, 2, ".*/tree/0");
+		assertEquals(20, this.log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		assertEquals(Arrays.asList("started", "first 503", "body 503", "started", "first 503", "body 503",
+				"started", "first 200", "body 200", "parsed 200"), events);
+
+		// an attempt that gets no response is only reported as started
+		events.clear();
+		this.proxy.injectNext(FaultInjectingProxy.Fault.DROP_REQUEST, 2, ".*/tree/0");
+		assertEquals(20, this.log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		assertEquals(Arrays.asList("started", "started", "first 200", "body 200", "parsed 200"), events);
+
+		// a failure that is not retried is reported once
+		events.clear();
+		this.proxy.injectNext(FaultInjectingProxy.Fault.BAD_REQUEST, 1, ".*/tree/0");
+		try {
+			this.log.getTreeHead(ContinusecClient.HEAD);
+			fail();
+		} catch (InvalidRangeException e) {
+			// good
+		}
+		assertEquals(Arrays.asList("started", "first 400", "body 400"), events);
+	}
+
+	@Test
+	public void testEntries() throws ContinusecException {
+		this.client.setEntriesReadAhead(2);
+		this.checkEntries();
+	}
+
+	@Test
+	public void testEntriesStreamed() throws ContinusecException {
+		this.client.setEntriesReadAhead(0);
+		this.checkEntries();
+	}
+
+	@Test
+	public void testStreamedParsing() throws Exception {
+		// entries large enough that a page is read over many packets
+		char[] pad = new char[1000];
+		Arrays.fill(pad, 'x');
+		ArrayList<RawDataEntry> entries = new ArrayList<RawDataEntry>();
+		for (int i = 20; i < 2000; i++) {
+			entries.add(new RawDataEntry(("foo-" + i + "-" + new String(pad)).getBytes()));
+		}
+		assertTrue(this.direct.getVerifiableLog("faults").addAll(entries, 32).isSuccess());
+		this.emulator.sequenceNow();
+		this.client.getEntryPageSizer().setBounds(2000, 2000);
+		this.client.setEntriesReadAhead(0);
+
+		// a body cut part way through fails after the entries before the cut have been parsed
+		this.proxy.injectNext(FaultInjectingProxy.Fault.CUT_BODY, 1, ".*/entries/.*");
+		int count = 0;
+		try {
+			for (VerifiableEntry e : this.log.getEntries(0, 2000, RawDataEntryFactory.getInstance())) {
+				e.getData();
+				count++;
+			}
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof ContinusecNetworkException);
+		}
+		assertTrue(count > 20);
+		assertTrue(count < 2000);
+
+		// and uncut, the whole page is parsed as it streams in
+		HashSet<String> seen = new HashSet<String>();
+		for (VerifiableEntry e : this.log.getEntries(0, 2000, RawDataEntryFactory.getInstance())) {
+			seen.add(new String(e.getData()));
+		}
+		assertEquals(2000, seen.size());
+		assertEquals(1, this.proxy.getInjectedCount(FaultInjectingProxy.Fault.CUT_BODY));
+
+		// proofs cut part way through fail rather than returning a partial proof
+		LogTreeHead head = this.log.getTreeHead(ContinusecClient.HEAD);
+		this.proxy.injectNext(FaultInjectingProxy.Fault.CUT_BODY, 1, ".*/inclusion/.*");
+		try {
+			this.log.getInclusionProof(head.getTreeSize(), new RawDataEntry("foo-3".getBytes()));
+			fail();
+		} catch (ContinusecNetworkException e) {
+			// good
+		}
+		this.proxy.injectNext(FaultInjectingProxy.Fault.CUT_BODY, 1, ".*/consistency/.*");
+		try {
+			this.log.getConsistencyProof(10, head.getTreeSize());
+			fail();
+		} catch (ContinusecNetworkException e) {
+			// good
+		}
+		this.log.getInclusionProof(head.getTreeSize(), new RawDataEntry("foo-3".getBytes())).verify(head);
+		this.log.getConsistencyProof(10, head.getTreeSize()).verify(this.log.getTreeHead(10), head);
+		assertEquals(3, this.proxy.getInjectedCount(FaultInjectingProxy.Fault.CUT_BODY));
+	}
+
+	@Test
+	public void testReadAhead() throws Exception {
+		this.addDirect(20, 2000);
+		this.client.setEntriesReadAhead(2);
+
+		// abandoning iteration stops fetching beyond the batches already ahead
+		this.proxy.addLatency(LatencyDistribution.fixed(50), ".*/entries/.*");
+		long requests = this.proxy.getRequestCount();
+		Iterator<VerifiableEntry> it = this.log.getEntries(0, 2000, RawDataEntryFactory.getInstance()).iterator();
+		assertEquals("foo-0", new String(it.next().getData()));
+		((LogEntryIterator) it).close();
+		waitFor(() -> this.proxy.getRequestCount() >= requests + 3, 2000);
+		assertEquals(requests + 3, this.proxy.getRequestCount());
+
+		HashSet<String> seen = new HashSet<String>();
+		for (VerifiableEntry e : this.log.getEntries(0, 2000, RawDataEntryFactory.getInstance())) {
+			seen.add(new String(e.getData()));
+		}
+		assertEquals(2000, seen.size());
+
+		// closing aborts batches still downloading rather than waiting for them
+		this.proxy.clear();
+		this.proxy.addLatency(LatencyDistribution.fixed(2000), ".*/entries/[1-9].*");
+		DefaultTransport transport = new DefaultTransport();
+		ContinusecClient slow = new ContinusecClient("1234", "secret", this.proxy.getBaseURL(), transport);
+		slow.setRetryPolicy(null);
+		slow.setEntriesReadAhead(2);
+		it = slow.getVerifiableLog("faults").getEntries(0, 2000, RawDataEntryFactory.getInstance()).iterator();
+		it.next();
+		waitFor(() -> transport.getConnectionsInUse() == 2, 1000);
+		((LogEntryIterator) it).close();
+		waitFor(() -> transport.getConnectionsInUse() == 0, 1000);
+	}
+
+	@Test
+	public void testHedging() throws Exception {
+		DefaultTransport transport = new DefaultTransport();
+		ContinusecClient hedged = new ContinusecClient("1234", "secret", this.proxy.getBaseURL(), transport);
+		HedgingPolicy policy = new HedgingPolicy();
+		policy.setDelayBounds(200, 200);
+		hedged.setHedgingPolicy(policy);
+		VerifiableLog log = hedged.getVerifiableLog("faults");
+
+		assertEquals(20, log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		assertEquals(0, policy.getHedgesIssued());
+
+		// the first response takes seconds to arrive, so the hedge wins and the first connection is closed
+		this.proxy.setSlowBody(8, 200);
+		this.proxy.injectNext(FaultInjectingProxy.Fault.SLOW_BODY, 1, ".*/tree/0");
+		long start = System.nanoTime();
+		assertEquals(20, log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		assertTrue(System.nanoTime() - start < 1000000000L);
+		assertEquals(1, policy.getHedgesIssued());
+		assertEquals(1, policy.getHedgesWon());
+		waitFor(() -> transport.getConnectionsInUse() == 0, 1000);
+
+		// the caller waiting on a bounded executor does not starve the attempts of threads
+		hedged.setExecutor(Executors.newFixedThreadPool(1));
+		this.proxy.injectNext(FaultInjectingProxy.Fault.SLOW_BODY, 1, ".*/tree/0");
+		assertEquals(20, log.getTreeHeadAsync(ContinusecClient.HEAD).get(5, TimeUnit.SECONDS).getTreeSize());
+		assertEquals(2, policy.getHedgesWon());
+	}
+
+	/**
+	 * Fetch tree heads for sizes 1 to 20 concurrently, without coalescing, until count have been fetched.
+	 */
+	private void getTreeHeads(int count) throws Exception {
+		ArrayList<CompletableFuture<LogTreeHead>> heads = new ArrayList<CompletableFuture<LogTreeHead>>();
+		for (int i = 0; i < count; i++) {
+			heads.add(this.log.getTreeHeadAsync(1 + (i % 20)));
+		}
+		for (CompletableFuture<LogTreeHead> f : heads) {
+			f.get(10, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Add entries "foo-begin" to "foo-end" (exclusive) to the log without going through the proxy, and sequence them.
+	 * Entries added together are not sequenced in order.
+	 */
+	private void addDirect(int begin, int end) throws ContinusecException {
+		ArrayList<RawDataEntry> entries = new ArrayList<RawDataEntry>();
+		for (int i = begin; i < end; i++) {
+			entries.add(new RawDataEntry(("foo-" + i).getBytes()));
+		}
+		assertTrue(this.direct.getVerifiableLog("faults").addAll(entries, 32).isSuccess());
+		this.emulator.sequenceNow();
+	}
+
+	/**
+	 * Poll until a condition holds, failing if it does not within the deadline.
+	 */
+	static void waitFor(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline) {
+				fail("Condition not met within " + timeoutMillis + "ms");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private void checkEntries() throws ContinusecException {
+		this.proxy.setSlowBody(16, 1);
+		this.proxy.injectNext(FaultInjectingProxy.Fault.TRUNCATE_ENTRIES, 1, ".*/entries/.*");
+		this.proxy.injectNext(FaultInjectingProxy.Fault.SLOW_BODY, 1, ".*/entries/.*");
+		int count = 0;
+		for (VerifiableEntry e : this.log.getEntries(0, 20, RawDataEntryFactory.getInstance())) {
+			assertEquals("foo-" + count, new String(e.getData()));
+			count++;
+		}
+		assertEquals(20, count);
+		assertEquals(1, this.proxy.getInjectedCount(FaultInjectingProxy.Fault.TRUNCATE_ENTRIES));
+		assertEquals(1, this.proxy.getInjectedCount(FaultInjectingProxy.Fault.SLOW_BODY));
+
+		this.proxy.injectNext(FaultInjectingProxy.Fault.EMPTY_ENTRIES, 1, ".*/entries/.*");
+		try {
+			this.log.getEntries(0, 20, RawDataEntryFactory.getInstance()).iterator().next();
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof NotAllEntriesReturnedException);
+		}
+
+		this.proxy.injectNext(FaultInjectingProxy.Fault.CUT_BODY, 1, ".*/entries/.*");
+		try {
+			for (VerifiableEntry e : this.log.getEntries(0, 20, RawDataEntryFactory.getInstance())) {
+				e.getData();
+			}
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof ContinusecException);
+		}
+	}
+}
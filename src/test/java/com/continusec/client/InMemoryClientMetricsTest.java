@@ -0,0 +1,135 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks the counts and percentiles recorded by {@link InMemoryClientMetrics} and {@link LatencyHistogram}.
+ */
+public class InMemoryClientMetricsTest {
+	@Test
+	public void testHistogram() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getPercentileMicros(50.0));
+		assertEquals(0.0, h.getMeanMicros(), 0.0);
+
+		// small values each have their own bucket
+		for (int i = 1; i <= 100; i++) {
+			h.record(i);
+		}
+		assertEquals(100, h.getCount());
+		assertEquals(50.5, h.getMeanMicros(), 0.0001);
+		assertEquals(100, h.getMaxMicros());
+		assertEquals(1, h.getPercentileMicros(0.0));
+		assertEquals(50, h.getPercentileMicros(50.0));
+		assertEquals(90, h.getPercentileMicros(90.0));
+		assertEquals(99, h.getPercentileMicros(99.0));
+		assertEquals(100, h.getPercentileMicros(100.0));
+
+		// from 128, buckets hold two values, then four from 256, and so on
+		h = new LatencyHistogram();
+		h.record(127);
+		h.record(128);
+		h.record(129);
+		h.record(130);
+		h.record(1000);
+		assertEquals(127, h.getPercentileMicros(20.0));
+		assertEquals(129, h.getPercentileMicros(40.0));
+		assertEquals(129, h.getPercentileMicros(60.0));
+		assertEquals(131, h.getPercentileMicros(80.0));
+		// never above the largest value recorded
+		assertEquals(1000, h.getPercentileMicros(100.0));
+
+		// large values are within 2%
+		h = new LatencyHistogram();
+		h.recordNanos(1000000000L);
+		h.recordNanos(5000000000L);
+		assertEquals(1000000, h.getPercentileMicros(0.0), 20000);
+		assertTrue(h.getPercentileMicros(0.0) >= 1000000);
+		assertEquals(5000000, h.getMaxMicros());
+
+		// values out of range are clamped
+		h = new LatencyHistogram();
+		h.record(-5);
+		assertEquals(1, h.getCount());
+		assertEquals(0, h.getPercentileMicros(100.0));
+		h.record(Long.MAX_VALUE);
+		assertTrue(h.getMaxMicros() > 0);
+
+		try {
+			h.getPercentileMicros(101.0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void testCounters() {
+		InMemoryClientMetrics m = new InMemoryClientMetrics();
+		assertTrue(m.getCounters().isEmpty());
+
+		m.requestCompleted(Operation.LOG_ADD, "POST", 200, 2000000L, 100, 100);
+		m.requestCompleted(Operation.LOG_ADD, "POST", 200, 4000000L, 50, 150);
+		m.requestCompleted(Operation.LOG_TREE_HEAD, "GET", 304, 1000000L, 0, 0);
+		m.requestFailed(Operation.LOG_ADD, "POST", new InternalErrorException(), 1000000L);
+		m.verificationCompleted(Operation.LOG_INCLUSION, 10000L, true);
+		m.verificationCompleted(Operation.LOG_INCLUSION, 20000L, false);
+		m.entriesPageCompleted(500, 500, 10000, -1);
+		m.entriesPageCompleted(1000, 200, 10000, -1);
+
+		assertEquals(2, m.getRequestLatency(Operation.LOG_ADD).getCount());
+		assertEquals(2000, m.getRequestLatency(Operation.LOG_ADD).getPercentileMicros(50.0), 40);
+		assertEquals(4000, m.getRequestLatency(Operation.LOG_ADD).getMaxMicros());
+		assertEquals(2, m.getStatusCount(Operation.LOG_ADD, 200));
+		assertEquals(0, m.getStatusCount(Operation.LOG_ADD, 304));
+		assertEquals(1, m.getStatusCount(Operation.LOG_TREE_HEAD, 304));
+		assertEquals(1, m.getErrorCount(Operation.LOG_ADD, InternalErrorException.class));
+		assertEquals(0, m.getErrorCount(Operation.LOG_ADD, ContinusecNetworkException.class));
+		assertEquals(150, m.getBytesOnWire(Operation.LOG_ADD));
+		assertEquals(250, m.getBytesDecoded(Operation.LOG_ADD));
+		assertEquals(2, m.getVerificationLatency(Operation.LOG_INCLUSION).getCount());
+		assertEquals(1, m.getVerificationFailures(Operation.LOG_INCLUSION));
+		assertEquals(2, m.getEntriesPageCount());
+		assertEquals(1, m.getEntriesShortPageCount());
+		assertEquals(1000, m.getEntriesLastPageSize());
+		assertEquals(500, m.getEntriesMinPageSize());
+		assertEquals(1000, m.getEntriesMaxPageSize());
+
+		Map<String,Long> c = m.getCounters();
+		assertEquals(2L, (long) c.get("log.add.requests"));
+		assertEquals(2L, (long) c.get("log.add.status.200"));
+		assertEquals(1L, (long) c.get("log.add.error.InternalErrorException"));
+		assertEquals(150L, (long) c.get("log.add.bytes.wire"));
+		assertEquals(4000L, (long) c.get("log.add.latency.max_us"));
+		assertEquals(1L, (long) c.get("log.inclusion.verify.failed"));
+		assertEquals(2L, (long) c.get("log.entries.page.count"));
+		assertEquals(1L, (long) c.get("log.entries.page.short"));
+		assertEquals(500L, (long) c.get("log.entries.page.size.min"));
+		// operations without requests are left out
+		assertFalse(c.containsKey("map.get.requests"));
+	}
+}
@@ -0,0 +1,72 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import java.util.Random;
+
+/**
+ * A distribution of delays added to requests by {@link FaultInjectingProxy}.
+ */
+interface LatencyDistribution {
+	/**
+	 * Draw the next delay.
+	 * @param r the source of randomness.
+	 * @return the delay in milliseconds.
+	 */
+	long nextMillis(Random r);
+
+	/**
+	 * The same delay for every request.
+	 * @param millis the delay.
+	 * @return the distribution.
+	 */
+	static LatencyDistribution fixed(long millis) {
+		return r -> millis;
+	}
+
+	/**
+	 * A delay uniformly distributed between two bounds.
+	 * @param minMillis the lowest delay.
+	 * @param maxMillis the highest delay.
+	 * @return the distribution.
+	 */
+	static LatencyDistribution uniform(long minMillis, long maxMillis) {
+		return r -> minMillis + (long) (r.nextDouble() * (maxMillis - minMillis));
+	}
+
+	/**
+	 * An exponentially distributed delay above a minimum, as for a server that is busy at random.
+	 * @param minMillis the lowest delay.
+	 * @param meanExtraMillis the mean delay added to the minimum.
+	 * @return the distribution.
+	 */
+	static LatencyDistribution exponential(long minMillis, double meanExtraMillis) {
+		return r -> minMillis + (long) (-meanExtraMillis * Math.log(1.0 - r.nextDouble()));
+	}
+
+	/**
+	 * A delay that is usually fast but sometimes much slower, as for a server with occasional pauses.
+	 * This is the shape of tail latency that hedging is designed for.
+	 * @param fast the usual distribution.
+	 * @param slow the distribution for slow requests.
+	 * @param slowProbability the fraction of requests that are slow.
+	 * @return the distribution.
+	 */
+	static LatencyDistribution bimodal(LatencyDistribution fast, LatencyDistribution slow, double slowProbability) {
+		return r -> (r.nextDouble() < slowProbability) ? slow.nextMillis(r) : fast.nextMillis(r);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks how log entries are paged and streamed, against an in-process {@link ApiEmulator}.
+ */
+public class LogEntriesTest {
+	private ApiEmulator emulator;
+	private ContinusecClient client;
+	private InMemoryClientMetrics metrics;
+	private EntryPageSizer sizer;
+
+	@Before
+	public void setUp() throws Exception {
+		this.emulator = new ApiEmulator("1234", "secret");
+		this.emulator.start();
+		// enough connections that adding thousands of entries is quick
+		this.client = new ContinusecClient("1234", "secret", this.emulator.getBaseURL(), new DefaultTransport(32));
+		this.metrics = new InMemoryClientMetrics();
+		this.client.setMetrics(this.metrics);
+		this.sizer = new EntryPageSizer();
+		this.client.setEntryPageSizer(this.sizer);
+	}
+
+	@After
+	public void tearDown() {
+		this.emulator.stop();
+	}
+
+	@Test
+	public void testStreamEntries() throws Exception {
+		this.sizer.setBounds(100, 100);
+		VerifiableLog log = this.createLog("stream", 1000);
+
+		// splits fall on page boundaries, with the first half returned, and a range within one page is not split
+		LogEntrySpliterator split = new LogEntrySpliterator(this.client, log.getPath(), 30, 1000, RawDataEntryFactory.getInstance());
+		Spliterator<VerifiableEntry> prefix = split.trySplit();
+		assertEquals(470, prefix.estimateSize());
+		assertEquals(500, split.estimateSize());
+		assertNull(new LogEntrySpliterator(this.client, log.getPath(), 30, 100, RawDataEntryFactory.getInstance()).trySplit());
+
+		ArrayList<String> expected = new ArrayList<String>();
+		for (VerifiableEntry e : log.getEntries(0, 1000, RawDataEntryFactory.getInstance())) {
+			expected.add(new String(e.getData()));
+		}
+		long pages = this.metrics.getEntriesPageCount();
+		List<VerifiableEntry> streamed;
+		try (Stream<VerifiableEntry> stream = log.streamEntries(0, 1000, RawDataEntryFactory.getInstance())) {
+			streamed = stream.parallel().collect(Collectors.toList());
+		}
+		assertEquals(expected.size(), streamed.size());
+		for (int i = 0; i < streamed.size(); i++) {
+			assertEquals(expected.get(i), new String(streamed.get(i).getData()));
+		}
+		assertEquals(pages + 10, this.metrics.getEntriesPageCount());
+
+		// abandoned chunks are released when the stream is closed
+		try (Stream<VerifiableEntry> stream = log.streamEntries(0, 1000, RawDataEntryFactory.getInstance())) {
+			assertEquals(expected.get(0), new String(stream.parallel().findFirst().get().getData()));
+		}
+	}
+
+	@Test
+	public void testPageSize() throws Exception {
+		this.sizer.setBounds(20, 5000);
+
+		// small entries grow the pages until the server returns fewer entries than asked for
+		this.emulator.setMaxEntriesPerPage(600);
+		VerifiableLog small = this.createLog("small", 3000);
+		HashSet<String> seen = new HashSet<String>();
+		for (VerifiableEntry e : small.getEntries(0, 3000, RawDataEntryFactory.getInstance())) {
+			seen.add(new String(e.getData()));
+		}
+		assertEquals(3000, seen.size());
+		assertEquals(600, this.sizer.getPageSize(small, RawDataEntryFactory.getInstance()));
+		assertTrue(this.metrics.getEntriesShortPageCount() > 0);
+		assertTrue(this.metrics.getEntriesMaxPageSize() > 600);
+		assertTrue(this.metrics.getEntriesMaxPageSize() <= 5000);
+
+		// large entries shrink the pages towards the target size, but no further than the bounds
+		ArrayList<RawDataEntry> entries = new ArrayList<RawDataEntry>();
+		for (int i = 0; i < 1500; i++) {
+			byte[] large = new byte[2048];
+			large[0] = (byte) i;
+			large[1] = (byte) (i >> 8);
+			entries.add(new RawDataEntry(large));
+		}
+		VerifiableLog big = this.client.getVerifiableLog("big");
+		big.create();
+		assertTrue(big.addAll(entries, 32).isSuccess());
+		this.emulator.sequenceNow();
+		this.sizer.setTarget(32 * 1024, 1000);
+		// the first batches are requested together before any have been read, so take two passes
+		for (int pass = 0; pass < 2; pass++) {
+			int count = 0;
+			for (VerifiableEntry e : big.getEntries(0, 1500, RawDataEntryFactory.getInstance())) {
+				count++;
+			}
+			assertEquals(1500, count);
+		}
+		assertEquals(20, this.sizer.getPageSize(big, RawDataEntryFactory.getInstance()));
+		assertEquals(this.metrics.getEntriesPageCount(), (long) this.metrics.getCounters().get("log.entries.page.count"));
+	}
+
+	/**
+	 * Create a log of distinct raw entries, and sequence them. Entries added together are not sequenced in order.
+	 */
+	private VerifiableLog createLog(String name, int count) throws ContinusecException {
+		ArrayList<RawDataEntry> entries = new ArrayList<RawDataEntry>();
+		for (int i = 0; i < count; i++) {
+			entries.add(new RawDataEntry((name + "-" + i).getBytes()));
+		}
+		VerifiableLog log = this.client.getVerifiableLog(name);
+		log.create();
+		assertTrue(log.addAll(entries, 32).isSuccess());
+		this.emulator.sequenceNow();
+		return log;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the pacing and burst size of {@link RateLimiter} token buckets.
+ */
+public class RateLimiterTest {
+	private ApiEmulator emulator;
+	private ContinusecClient client;
+	private RateLimiter limiter;
+
+	@Before
+	public void setUp() throws Exception {
+		this.emulator = new ApiEmulator("1234", "secret");
+		this.emulator.start();
+		this.client = new ContinusecClient("1234", "secret", this.emulator.getBaseURL());
+		this.limiter = new RateLimiter();
+		this.client.setRateLimiter(this.limiter);
+	}
+
+	@After
+	public void tearDown() {
+		this.emulator.stop();
+	}
+
+	@Test
+	public void testPacing() throws Exception {
+		this.limiter.setRate(OperationClass.PROOF_READ, 20.0, 5.0);
+
+		// a full bucket allows a burst straight away
+		long start = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			this.limiter.acquire(Operation.LOG_TREE_HEAD);
+		}
+		assertTrue(System.nanoTime() - start < 50000000L);
+		assertEquals(0, this.limiter.getThrottledCount());
+
+		// after which requests are paced at the rate
+		start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			this.limiter.acquire(Operation.MAP_GET);
+		}
+		long elapsed = System.nanoTime() - start;
+		assertTrue(elapsed >= 450000000L);
+		assertTrue(elapsed < 2000000000L);
+		assertTrue(this.limiter.getThrottledCount() >= 9);
+
+		// other classes have their own buckets, or none
+		this.limiter.setRate(OperationClass.WRITE, 1.0, 1.0);
+		start = System.nanoTime();
+		this.limiter.acquire(Operation.LOG_ADD);
+		for (int i = 0; i < 100; i++) {
+			this.limiter.acquire(Operation.LOG_ENTRIES);
+		}
+		assertTrue(System.nanoTime() - start < 50000000L);
+
+		// the burst refills while idle, but no higher than its size
+		this.limiter.setRate(OperationClass.PROOF_READ, 100.0, 3.0);
+		Thread.sleep(100);
+		start = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			this.limiter.acquire(Operation.LOG_TREE_HEAD);
+		}
+		assertTrue(System.nanoTime() - start < 50000000L);
+		long throttled = this.limiter.getThrottledCount();
+		this.limiter.acquire(Operation.LOG_TREE_HEAD);
+		assertEquals(throttled + 1, this.limiter.getThrottledCount());
+	}
+
+	@Test
+	public void testFailFast() throws ContinusecException {
+		this.limiter.setRate(OperationClass.WRITE, 1.0, 2.0);
+		this.limiter.setFailFast(true);
+		VerifiableLog log = this.client.getVerifiableLog("limited");
+		// creating the log takes the first token
+		log.create();
+		log.add(new RawDataEntry("foo".getBytes()));
+		try {
+			log.add(new RawDataEntry("bar".getBytes()));
+			fail();
+		} catch (RateLimitExceededException e) {
+			// good
+		}
+		assertEquals(1, this.limiter.getRejectedCount());
+		assertEquals(0, this.limiter.getThrottledCount());
+
+		// reads are not limited
+		this.emulator.sequenceNow();
+		assertEquals(1, log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+	}
+}
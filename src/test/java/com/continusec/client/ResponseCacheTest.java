@@ -0,0 +1,157 @@
+/*
+   Copyright 2016 Continusec Pty Ltd
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.continusec.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ResponseCache}, against an {@link ApiEmulator} behind a {@link FaultInjectingProxy} that counts requests.
+ */
+public class ResponseCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ApiEmulator emulator;
+	private FaultInjectingProxy proxy;
+	private ContinusecClient client;
+	private VerifiableLog log;
+
+	@Before
+	public void setUp() throws Exception {
+		this.emulator = new ApiEmulator("1234", "secret");
+		this.emulator.start();
+		this.proxy = new FaultInjectingProxy(this.emulator.getBaseURL());
+		this.proxy.start();
+		this.client = new ContinusecClient("1234", "secret", this.proxy.getBaseURL());
+		this.log = this.client.getVerifiableLog("cached");
+		this.log.create();
+		for (int i = 0; i < 20; i++) {
+			this.log.add(new RawDataEntry(("foo-" + i).getBytes()));
+		}
+		this.emulator.sequenceNow();
+	}
+
+	@After
+	public void tearDown() {
+		this.proxy.stop();
+		this.emulator.stop();
+	}
+
+	@Test
+	public void testImmutablePaths() {
+		assertTrue(ResponseCache.isImmutable("GET", "/log/foo/entry/3/xjson"));
+		assertTrue(ResponseCache.isImmutable("GET", "/log/foo/entries/0-500"));
+		assertTrue(ResponseCache.isImmutable("GET", "/log/foo/tree/10/consistency/5"));
+		assertTrue(ResponseCache.isImmutable("GET", "/map/foo/log/mutation/tree/10/inclusion/h/abcd"));
+		assertTrue(ResponseCache.isImmutable("GET", "/map/foo/tree/10/key/h/abcd/xjson"));
+		assertFalse(ResponseCache.isImmutable("GET", "/log/foo/tree/0"));
+		assertFalse(ResponseCache.isImmutable("GET", "/log/foo/tree/0/inclusion/h/abcd"));
+		assertFalse(ResponseCache.isImmutable("GET", "/map/foo/tree/0/key/h/abcd"));
+		assertFalse(ResponseCache.isImmutable("POST", "/log/foo/entry"));
+		assertFalse(ResponseCache.isImmutable("GET", "/logs"));
+	}
+
+	@Test
+	public void testCopiesBody() {
+		ResponseCache cache = new ResponseCache(1024 * 1024);
+		cache.put("key", new ResponseData("foo".getBytes(), new HashMap<String,List<String>>()));
+		ResponseData rd = cache.get("key");
+		rd.data[0] = 'b';
+		assertArrayEquals("foo".getBytes(), cache.get("key").data);
+	}
+
+	@Test
+	public void testDiskTier() throws Exception {
+		File dir = this.folder.newFolder();
+		ResponseCache cache = new ResponseCache(1024 * 1024, dir, 8 * 1024 * 1024);
+		this.client.setResponseCache(cache);
+		LogTreeHead head = this.log.getTreeHead(ContinusecClient.HEAD);
+		this.audit(head);
+		long requests = this.proxy.getRequestCount();
+		this.audit(head);
+		assertEquals(requests, this.proxy.getRequestCount());
+		cache.close();
+
+		// a new cache over the same directory is served from disk
+		cache = new ResponseCache(1024 * 1024, dir, 8 * 1024 * 1024);
+		this.client.setResponseCache(cache);
+		this.audit(head);
+		assertEquals(requests, this.proxy.getRequestCount());
+		assertTrue(cache.getDiskHitCount() > 0);
+		long diskBytes = cache.getDiskBytes();
+		cache.close();
+
+		// a record cut short is ignored, along with any after it
+		try (RandomAccessFile f = new RandomAccessFile(new File(dir, "segment-00000000.dat"), "rw")) {
+			f.seek(diskBytes - 1);
+			int b = f.read();
+			f.seek(diskBytes - 1);
+			f.write(b ^ 0xff);
+		}
+		cache = new ResponseCache(1024 * 1024, dir, 8 * 1024 * 1024);
+		assertTrue(cache.getDiskBytes() < diskBytes);
+		this.client.setResponseCache(cache);
+		this.audit(head);
+		assertTrue(this.proxy.getRequestCount() > requests);
+		cache.close();
+	}
+
+	@Test
+	public void testIncompletePage() throws Exception {
+		ResponseCache cache = new ResponseCache(1024 * 1024);
+		this.client.setResponseCache(cache);
+		this.proxy.injectNext(FaultInjectingProxy.Fault.TRUNCATE_ENTRIES, 1, ".*/entries/.*");
+		int count = 0;
+		for (VerifiableEntry e : this.log.getEntries(0, 20, RawDataEntryFactory.getInstance())) {
+			assertEquals("foo-" + count, new String(e.getData()));
+			count++;
+		}
+		assertEquals(20, count);
+
+		// the truncated page 0-20 was not cached, but the rest of it, 10-20, was
+		long requests = this.proxy.getRequestCount();
+		assertEquals(20, this.log.getTreeHead(ContinusecClient.HEAD).getTreeSize());
+		for (VerifiableEntry e : this.log.getEntries(10, 20, RawDataEntryFactory.getInstance())) {
+			e.getData();
+		}
+		assertEquals(requests + 1, this.proxy.getRequestCount());
+	}
+
+	private void audit(LogTreeHead head) throws ContinusecException {
+		final int[] count = new int[1];
+		this.log.verifyEntries(null, head, RawDataEntryFactory.getInstance(), (idx, e) -> count[0]++);
+		assertEquals(20, count[0]);
+		LogTreeHead head10 = this.log.getTreeHead(10);
+		this.log.getConsistencyProof(10, head.getTreeSize()).verify(head10, head);
+		this.log.verifyInclusion(head, new RawDataEntry("foo-7".getBytes()));
+		assertEquals("foo-3", new String(this.log.get(3, RawDataEntryFactory.getInstance()).getData()));
+	}
+}